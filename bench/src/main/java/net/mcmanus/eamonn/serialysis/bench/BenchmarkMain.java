@@ -0,0 +1,68 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation per
+ * operation is reported along with the throughput.  The arguments are
+ * the same as for JMH's own {@code Main}.  With no benchmark pattern,
+ * all of the benchmarks in this package are run.
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmd).addProfiler(GCProfiler.class);
+        if (cmd.getIncludes().isEmpty())
+            builder.include(BenchmarkMain.class.getPackage().getName() + ".");
+        Options options = builder.build();
+        new Runner(options).run();
+    }
+}
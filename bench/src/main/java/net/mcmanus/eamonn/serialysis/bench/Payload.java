@@ -0,0 +1,66 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+/**
+ * An object to be scanned by the benchmarks, together with its serial
+ * form.  Payloads that hold on to resources, such as exported remote
+ * objects, release them in {@link #close}.
+ */
+class Payload {
+    Payload(Object value) throws IOException {
+        this.value = value;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(value);
+        oout.close();
+        this.bytes = bout.toByteArray();
+    }
+
+    void close() throws Exception {
+    }
+
+    final Object value;
+    final byte[] bytes;
+}
@@ -0,0 +1,119 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import net.mcmanus.eamonn.serialysis.SEntity;
+import net.mcmanus.eamonn.serialysis.SerialScan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast {@link SerialScan} turns a serial stream into
+ * {@link SEntity} objects, for each {@link Shape} of object graph.
+ * {@code jdkReadObject} deserializes the same bytes with
+ * {@code ObjectInputStream}, as a point of comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"BOXED", "SMALL_OBJECTS", "DEEP", "LONG_STRING",
+            "PRIMITIVE_ARRAYS", "COLLECTIONS", "RMI_STUB", "JMX_STUB"})
+    public Shape shape;
+
+    private Payload payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        payload = shape.create();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        payload.close();
+    }
+
+    /** Scan the serial form from an {@code InputStream}. */
+    @Benchmark
+    public SEntity readObject() throws IOException {
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(payload.bytes));
+        return ss.readObject();
+    }
+
+    /** Scan the serial form from a {@code ByteBuffer}. */
+    @Benchmark
+    public SEntity readObjectBuffer() throws IOException {
+        SerialScan ss = new SerialScan(ByteBuffer.wrap(payload.bytes));
+        return ss.readObject();
+    }
+
+    /** Serialize the object and scan the result. */
+    @Benchmark
+    public SEntity examine() {
+        return SerialScan.examine(payload.value);
+    }
+
+    /** Deserialize the serial form with {@code ObjectInputStream}. */
+    @Benchmark
+    public Object jdkReadObject() throws Exception {
+        ObjectInputStream oin =
+                new ObjectInputStream(new ByteArrayInputStream(payload.bytes));
+        return oin.readObject();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis.bench;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.rmi.RMIConnectorServer;
+import javax.management.remote.rmi.RMIJRMPServerImpl;
+import javax.management.remote.rmi.RMIServerImpl;
+import javax.rmi.ssl.SslRMIClientSocketFactory;
+import javax.rmi.ssl.SslRMIServerSocketFactory;
+
+/**
+ * The kinds of object graph that the benchmarks scan.  Each stresses a
+ * different part of the scanner: object and class descriptor handling,
+ * back-references, recursion, string decoding, bulk copies of array
+ * data, and the block data and custom serial forms of real JDK classes.
+ */
+public enum Shape {
+    /** An array of boxed primitives of every type. */
+    BOXED {
+        Payload create() throws Exception {
+            Object[] values = new Object[1000];
+            for (int i = 0; i < values.length; i++) {
+                switch (i % 8) {
+                case 0: values[i] = Integer.valueOf(i); break;
+                case 1: values[i] = Long.valueOf(i * 1000003L); break;
+                case 2: values[i] = Double.valueOf(i / 7.0); break;
+                case 3: values[i] = Float.valueOf(i / 3.0f); break;
+                case 4: values[i] = Short.valueOf((short) i); break;
+                case 5: values[i] = Byte.valueOf((byte) i); break;
+                case 6: values[i] = Character.valueOf((char) ('a' + i % 26)); break;
+                default: values[i] = Boolean.valueOf(i % 3 == 0); break;
+                }
+            }
+            return new Payload(values);
+        }
+    },
+
+    /** Many small objects of the same class, each with a short string. */
+    SMALL_OBJECTS {
+        Payload create() throws Exception {
+            Point[] points = new Point[10000];
+            for (int i = 0; i < points.length; i++)
+                points[i] = new Point(i, -i, "p" + (i % 100));
+            return new Payload(points);
+        }
+    },
+
+    /**
+     * A linked list, which the scanner reads by recursion.  It is short
+     * enough not to overflow the stack of a JMH worker thread.
+     */
+    DEEP {
+        Payload create() throws Exception {
+            Node head = null;
+            for (int i = 0; i < 300; i++)
+                head = new Node(i, head);
+            return new Payload(head);
+        }
+    },
+
+    /** Strings longer than 64K bytes of modified UTF-8, some not ASCII. */
+    LONG_STRING {
+        Payload create() throws Exception {
+            StringBuilder ascii = new StringBuilder();
+            StringBuilder mixed = new StringBuilder();
+            for (int i = 0; i < 100000; i++) {
+                ascii.append((char) ('a' + i % 26));
+                mixed.append((char) ((i % 10 == 0) ? 0x3b1 + i % 20 : 'A' + i % 26));
+            }
+            return new Payload(new String[] {ascii.toString(), mixed.toString()});
+        }
+    },
+
+    /** Large arrays of primitives. */
+    PRIMITIVE_ARRAYS {
+        Payload create() throws Exception {
+            int[] ints = new int[256 * 1024];
+            double[] doubles = new double[64 * 1024];
+            byte[] bytes = new byte[1024 * 1024];
+            for (int i = 0; i < ints.length; i++)
+                ints[i] = i * 31;
+            for (int i = 0; i < doubles.length; i++)
+                doubles[i] = i * 0.5;
+            for (int i = 0; i < bytes.length; i++)
+                bytes[i] = (byte) i;
+            return new Payload(new Object[] {ints, doubles, bytes});
+        }
+    },
+
+    /** JDK collections, which have custom serial forms. */
+    COLLECTIONS {
+        Payload create() throws Exception {
+            Map<String, Integer> hashMap = new HashMap<String, Integer>();
+            Map<String, Integer> treeMap = new TreeMap<String, Integer>();
+            List<String> arrayList = new ArrayList<String>();
+            List<Integer> linkedList = new LinkedList<Integer>();
+            for (int i = 0; i < 1000; i++) {
+                String key = "key" + i;
+                hashMap.put(key, i);
+                treeMap.put(key, i);
+                arrayList.add(key);
+                linkedList.add(i);
+            }
+            return new Payload(new Object[] {hashMap, treeMap, arrayList, linkedList});
+        }
+    },
+
+    /** The stub of an RMI registry, as in {@code AnonymousRegistryTest}. */
+    RMI_STUB {
+        Payload create() throws Exception {
+            final Registry reg = LocateRegistry.createRegistry(0);
+            return new Payload(RemoteObject.toStub(reg)) {
+                void close() throws Exception {
+                    UnicastRemoteObject.unexportObject(reg, true);
+                }
+            };
+        }
+    },
+
+    /**
+     * The stub of a JMX connector server that uses SSL socket factories,
+     * as in {@code JmxSslTest}.  The stub includes the serial form of the
+     * client socket factory.
+     */
+    JMX_STUB {
+        Payload create() throws Exception {
+            RMIClientSocketFactory csf = new SslRMIClientSocketFactory();
+            RMIServerSocketFactory ssf = new SslRMIServerSocketFactory();
+            RMIServerImpl rmiServerImpl = new RMIJRMPServerImpl(0, csf, ssf, null);
+            final RMIConnectorServer cs = new RMIConnectorServer(
+                    new JMXServiceURL("service:jmx:rmi:///"), null,
+                    rmiServerImpl, ManagementFactory.getPlatformMBeanServer());
+            cs.start();
+            return new Payload(rmiServerImpl.toStub()) {
+                void close() throws Exception {
+                    cs.stop();
+                }
+            };
+        }
+    };
+
+    abstract Payload create() throws Exception;
+
+    static class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Point(int x, int y, String label) {
+            this.x = x;
+            this.y = y;
+            this.label = label;
+        }
+
+        private final int x;
+        private final int y;
+        private final String label;
+    }
+
+    static class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        Node(int value, Node next) {
+            this.value = value;
+            this.next = next;
+        }
+
+        private final int value;
+        private final Node next;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Scans a batch of independent serial streams on a pool of threads and
+ * reports the results to a SerialScanHandler in the calling thread.
+ * Payloads are only taken from the iterator as threads become free, so
+ * an iterator over millions of payloads is never held in memory at once.
+ *
+ * Each worker thread keeps a SymbolTable that it reuses for every stream
+ * it scans, and all workers share a ClassDescCache, so the names and
+ * descriptors that recur from one payload to the next are decoded once.
+ */
+class BatchScan {
+    /*
+     * A stream to be scanned, opened by the worker that scans it.
+     */
+    static abstract class Payload {
+        abstract SerialInput open() throws IOException;
+    }
+
+    static class BufferPayload extends Payload {
+        BufferPayload(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        SerialInput open() {
+            return new BufferSerialInput(buf);
+        }
+
+        private final ByteBuffer buf;
+    }
+
+    static class FilePayload extends Payload {
+        FilePayload(File file) {
+            this.file = file;
+        }
+
+        SerialInput open() throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                return new ChannelSerialInput(channel, true);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            } catch (RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public String toString() {
+            return file.getPath();
+        }
+
+        private final File file;
+    }
+
+    BatchScan(boolean ordered, SerialScanHandler handler, SerialLimits limits) {
+        this(Runtime.getRuntime().availableProcessors(), ordered, handler,
+                limits);
+    }
+
+    /*
+     * The limits are copied now, and each payload is read with a fresh
+     * budget of its own.
+     */
+    BatchScan(int threads, boolean ordered, SerialScanHandler handler,
+              SerialLimits limits) {
+        this.threads = threads;
+        this.ordered = ordered;
+        this.handler = handler;
+        this.budget = (limits == null) ? null : new SerialLimits.Budget(limits);
+    }
+
+    void run(Iterator<? extends Payload> payloads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, threadFactory);
+        try {
+            run(payloads, new ExecutorCompletionService<Result>(pool));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void run(Iterator<? extends Payload> payloads,
+                     CompletionService<Result> completion) throws IOException {
+        // Enough work queued to keep every thread busy, but not so much
+        // that a slow payload in ordered mode makes the others pile up.
+        final int maxOutstanding = threads * 4;
+        int submitted = 0;
+        int delivered = 0;
+        Map<Integer, Result> waiting = new HashMap<Integer, Result>();
+        while (true) {
+            while (submitted - delivered < maxOutstanding && payloads.hasNext()) {
+                completion.submit(new Task(submitted, payloads.next()));
+                submitted++;
+            }
+            if (delivered == submitted)
+                break;
+            Result r = take(completion);
+            if (ordered) {
+                waiting.put(r.index, r);
+                while ((r = waiting.remove(delivered)) != null) {
+                    deliver(r);
+                    delivered++;
+                }
+            } else {
+                deliver(r);
+                delivered++;
+            }
+        }
+    }
+
+    private static Result take(CompletionService<Result> completion)
+            throws IOException {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during batch scan");
+        } catch (ExecutionException e) {
+            // Task.call catches everything but Errors
+            Throwable cause = e.getCause();
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private void deliver(Result r) throws IOException {
+        if (r.exception == null)
+            handler.scanned(r.index, r.entity);
+        else
+            handler.failed(r.index, r.exception);
+    }
+
+    private class Task implements Callable<Result> {
+        Task(int index, Payload payload) {
+            this.index = index;
+            this.payload = payload;
+        }
+
+        public Result call() {
+            SerialInput in = null;
+            try {
+                in = payload.open();
+                in.symbols = workerSymbols.get();
+                SerialScan ss = new SerialScan(in);
+                ss.setClassDescCache(classDescCache);
+                if (budget != null)
+                    ss.budget = budget.copy();
+                return new Result(index, ss.readObject(), null);
+            } catch (IOException e) {
+                return new Result(index, null, describe(e));
+            } catch (RuntimeException e) {
+                // Corrupt input can provoke unchecked exceptions that
+                // shouldn't stop the rest of the batch.
+                StreamCorruptedException sce =
+                        new StreamCorruptedException(e.toString());
+                sce.initCause(e);
+                return new Result(index, null, describe(sce));
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // we have what we wanted from it
+                    }
+                }
+            }
+        }
+
+        private IOException describe(IOException e) {
+            if (!(payload instanceof FilePayload))
+                return e;
+            IOException fe = new IOException(payload + ": " + e.getMessage());
+            fe.initCause(e);
+            return fe;
+        }
+
+        private final int index;
+        private final Payload payload;
+    }
+
+    private static class Result {
+        Result(int index, SEntity entity, IOException exception) {
+            this.index = index;
+            this.entity = entity;
+            this.exception = exception;
+        }
+
+        final int index;
+        final SEntity entity;
+        final IOException exception;
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SerialScan batch");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final int threads;
+    private final boolean ordered;
+    private final SerialScanHandler handler;
+    private final SerialLimits.Budget budget;
+    private final ClassDescCache classDescCache = new ClassDescCache(1024);
+    private final ThreadLocal<SymbolTable> workerSymbols =
+            new ThreadLocal<SymbolTable>() {
+        protected SymbolTable initialValue() {
+            return new SymbolTable();
+        }
+    };
+}
@@ -0,0 +1,214 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * A SerialInput that reads from a ByteBuffer, for example one that is
+ * mapped from a file.  Block data and primitive arrays are returned as
+ * slices of the buffer rather than copies.
+ *
+ * Subclasses can supply the input as a succession of buffers by
+ * overriding refill.
+ */
+class BufferSerialInput extends SerialInput {
+    BufferSerialInput(ByteBuffer buf) {
+        this(buf, 0);
+    }
+
+    /*
+     * The given buffer is not modified.  Its position is taken to be at
+     * the given offset from the start of the serial stream.
+     */
+    BufferSerialInput(ByteBuffer buf, long base) {
+        this.buf = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        this.base = base;
+        this.source = this.buf;
+        this.sourceBase = base;
+    }
+
+    /**
+     * Replace the current buffer so that it has at least {@code n}
+     * bytes remaining, if possible, and return false if not.  The new
+     * buffer must start at the current position.  This implementation
+     * has no more input so it returns false.
+     */
+    boolean refill(int n) throws IOException {
+        return false;
+    }
+
+    /*
+     * Make the current buffer start at the current position, which is
+     * the given offset from the start of the serial stream.
+     */
+    final void setBuffer(ByteBuffer buf, long base) {
+        this.buf = buf.order(ByteOrder.BIG_ENDIAN);
+        this.base = base;
+    }
+
+    final ByteBuffer buffer() {
+        return buf;
+    }
+
+    private void need(int n) throws IOException {
+        if (buf.remaining() < n && !refill(n))
+            throw new EOFException();
+    }
+
+    int read() throws IOException {
+        if (!buf.hasRemaining() && !refill(1))
+            return -1;
+        return buf.get() & 0xff;
+    }
+
+    byte readByte() throws IOException {
+        need(1);
+        return buf.get();
+    }
+
+    short readShort() throws IOException {
+        need(2);
+        return buf.getShort();
+    }
+
+    int readInt() throws IOException {
+        need(4);
+        return buf.getInt();
+    }
+
+    long readLong() throws IOException {
+        need(8);
+        return buf.getLong();
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        need(len);
+        buf.get(b, off, len);
+    }
+
+    ByteBuffer readBuffer(int len) throws IOException {
+        need(len);
+        ByteBuffer slice = buf.slice();
+        slice.limit(len);
+        buf.position(buf.position() + len);
+        return slice;
+    }
+
+    void skipFully(long len) throws IOException {
+        while (len > 0) {
+            int n = (int) Math.min(len, Integer.MAX_VALUE);
+            if (buf.remaining() < n)
+                n = Math.max(buf.remaining(), 1);
+            need(n);
+            buf.position(buf.position() + n);
+            len -= n;
+        }
+    }
+
+    String readUTF(long len) throws IOException {
+        if (len > Integer.MAX_VALUE)
+            throw new StreamCorruptedException("String too long: " + len);
+        ByteBuffer data = readBuffer((int) len);
+        if (data.hasArray())
+            return UTFDecoder.decodeAll(data.array(), data.arrayOffset(), data.remaining());
+        // Decode a direct buffer through a small array rather than
+        // copying all of a possibly huge string.
+        UTFDecoder d = new UTFDecoder(len);
+        byte[] chunk = new byte[(int) Math.min(len, 8192)];
+        int kept = 0;
+        while (data.hasRemaining()) {
+            int n = Math.min(chunk.length - kept, data.remaining());
+            data.get(chunk, kept, n);
+            n += kept;
+            int used = d.decode(chunk, 0, n);
+            kept = n - used;
+            System.arraycopy(chunk, used, chunk, 0, kept);
+        }
+        return d.finish();
+    }
+
+    void skipUTF(long len) throws IOException {
+        if (!buf.hasArray() || len > Integer.MAX_VALUE) {
+            super.skipUTF(len);
+            return;
+        }
+        ByteBuffer data = readBuffer((int) len);
+        int used = UTFDecoder.check(data.array(), data.arrayOffset(), (int) len, 0);
+        if (used != len)
+            throw UTFDecoder.badUTF(used);
+    }
+
+    String readSymbol(int len) throws IOException {
+        ByteBuffer data = readBuffer(len);
+        if (data.hasArray())
+            return symbols.get(data.array(), data.arrayOffset(), len);
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        data.get(scratch, 0, len);
+        return symbols.get(scratch, 0, len);
+    }
+
+    long position() {
+        return base + buf.position();
+    }
+
+    SerialInput duplicate(long position) throws IOException {
+        if (position < sourceBase || position - sourceBase > source.limit())
+            throw new EOFException();
+        ByteBuffer dup = source.duplicate();
+        dup.position((int) (position - sourceBase));
+        return new BufferSerialInput(dup, position);
+    }
+
+    public void close() throws IOException {
+    }
+
+    private ByteBuffer buf;
+    private long base;
+    private final ByteBuffer source;
+    private final long sourceBase;
+
+    private byte[] scratch = new byte[256];
+}
@@ -0,0 +1,128 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * A SerialInput that reads from a file by mapping it into memory.  A
+ * MappedByteBuffer can't be bigger than 2GB, so a large file is mapped
+ * as a moving window.  A slice that doesn't fit in the current window
+ * gets a mapping of its own, so slices are never copies.  The serial
+ * stream starts at the channel's position when this object is created.
+ */
+class ChannelSerialInput extends BufferSerialInput {
+    ChannelSerialInput(FileChannel channel, boolean closeChannel)
+            throws IOException {
+        this(channel, channel.position(), 0, closeChannel);
+    }
+
+    /*
+     * The serial stream starts at file offset start, and we are at the
+     * given position within it.
+     */
+    private ChannelSerialInput(FileChannel channel, long start, long position,
+            boolean closeChannel) throws IOException {
+        super(EMPTY);
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        this.start = start;
+        this.size = channel.size();
+        if (start + position > size)
+            throw new EOFException();
+        map(start + position, 0);
+    }
+
+    SerialInput duplicate(long position) throws IOException {
+        return new ChannelSerialInput(channel, start, position, false);
+    }
+
+    boolean refill(int n) throws IOException {
+        long pos = start + position();
+        if (size - pos < n)
+            return false;
+        map(pos, n);
+        return true;
+    }
+
+    ByteBuffer readBuffer(int len) throws IOException {
+        if (buffer().remaining() >= len)
+            return super.readBuffer(len);
+        long pos = start + position();
+        if (size - pos < len)
+            throw new EOFException();
+        ByteBuffer slice = channel.map(FileChannel.MapMode.READ_ONLY, pos, len);
+        map(pos + len, 0);
+        return slice;
+    }
+
+    void skipFully(long len) throws IOException {
+        if (buffer().remaining() >= len) {
+            super.skipFully(len);
+            return;
+        }
+        long pos = start + position();
+        if (size - pos < len)
+            throw new EOFException();
+        map(pos + len, 0);
+    }
+
+    private void map(long pos, int n) throws IOException {
+        long len = Math.min(Math.max(WINDOW, n), size - pos);
+        setBuffer(channel.map(FileChannel.MapMode.READ_ONLY, pos, len),
+                pos - start);
+    }
+
+    public void close() throws IOException {
+        if (closeChannel)
+            channel.close();
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int WINDOW = 1 << 28;
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final long start;
+    private final long size;
+}
@@ -0,0 +1,182 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.mcmanus.eamonn.serialysis.SerialScan.FieldDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.ObjectClassDesc;
+
+/**
+ * <p>A cache of class descriptors that can be shared between any number
+ * of {@link SerialScan} instances, including ones running in different
+ * threads.  An application that scans many streams containing the same
+ * classes, such as RMI or JMX messages, can use one cache for all of them
+ * so that the field descriptors and class hierarchy of each class are
+ * built once rather than once per stream.</p>
+ *
+ * <p>Descriptors are identified by class name and serialVersionUID, and
+ * a cached descriptor is only used if its flags, fields and superclass
+ * are the same as those in the stream.  If a stream contains a different
+ * version of a class that has the same name and serialVersionUID, the
+ * descriptor from that stream replaces the cached one.</p>
+ *
+ * <p>The cache holds at most a given number of descriptors, discarding
+ * the least recently used one when it is full.</p>
+ *
+ * @see SerialScan#setClassDescCache
+ */
+public class ClassDescCache {
+    /**
+     * Create a cache that holds at most {@code maxSize} class
+     * descriptors.
+     *
+     * @param maxSize the maximum number of class descriptors to keep.
+     * @exception IllegalArgumentException if {@code maxSize} is not
+     * positive.
+     */
+    public ClassDescCache(final int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Bad cache size: " + maxSize);
+        this.map = new LinkedHashMap<Key, ObjectClassDesc>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, ObjectClassDesc> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The number of times a descriptor in a stream was replaced by the
+     * cached one.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * The number of times a descriptor in a stream was not in the cache,
+     * or did not match the cached one.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * The number of descriptors that have been discarded to stay within
+     * the maximum size.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * The number of descriptors currently in the cache.
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Discard all descriptors from the cache.  The counters are not reset.
+     */
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    /*
+     * The cached descriptor with this name and serialVersionUID, if any.
+     * The SerialScan uses its fields as the expected ones, so that it
+     * doesn't need to build new FieldDesc objects if they are the same.
+     */
+    synchronized ObjectClassDesc get(String name, long serialVersionUID) {
+        return map.get(new Key(name, serialVersionUID));
+    }
+
+    /*
+     * Return the cached equivalent of the given descriptor, which has
+     * been completely read, or cache it and return it if there is none.
+     */
+    synchronized ObjectClassDesc canonical(ObjectClassDesc desc) {
+        Key key = new Key(desc.getType(), desc.getSerialVersionUID());
+        ObjectClassDesc cached = map.get(key);
+        if (cached != null && cached.getFlags() == desc.getFlags() &&
+                cached.getFields() == desc.getFields() &&
+                cached.getSuperClassDesc() == desc.getSuperClassDesc()) {
+            hits++;
+            return cached;
+        }
+        misses++;
+        map.put(key, desc);
+        return desc;
+    }
+
+    private static class Key {
+        Key(String name, long serialVersionUID) {
+            this.name = name;
+            this.serialVersionUID = serialVersionUID;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return serialVersionUID == k.serialVersionUID && name.equals(k.name);
+        }
+
+        public int hashCode() {
+            return name.hashCode() ^ (int) (serialVersionUID ^ (serialVersionUID >>> 32));
+        }
+
+        private final String name;
+        private final long serialVersionUID;
+    }
+
+    private final Map<Key, ObjectClassDesc> map;
+    private long hits;
+    private long misses;
+    private long evictions;
+}
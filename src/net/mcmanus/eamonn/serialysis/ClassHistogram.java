@@ -0,0 +1,400 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import net.mcmanus.eamonn.serialysis.SerialEventReader.Event;
+
+/**
+ * <p>A summary of the objects in a serial stream by class, like the
+ * output of {@code jmap -histo} for a heap.  For each class there is
+ * the number of instances, the number of bytes of the stream that they
+ * account for, and for array classes the total number of elements.  The
+ * largest strings and arrays are also listed individually.</p>
+ *
+ * <p>A histogram is made by {@link SerialScan#histogram}, which reads the
+ * stream in one pass without building a representation of its objects,
+ * so the memory it needs does not grow with the number of objects,
+ * apart from the scanner's handle table.  Strings and binary data are
+ * not decoded.</p>
+ *
+ * <p>The bytes of an object or array are those of its own representation
+ * in the stream, not including nested objects, arrays or strings, which
+ * are counted for their own classes.  Class descriptors are counted as
+ * part of the first object that uses them.  So the byte counts of all the
+ * classes add up to the size of the stream, apart from the stream header
+ * and top-level resets.</p>
+ */
+public class ClassHistogram {
+    /**
+     * The counts for one class.
+     */
+    public static class Row {
+        Row(String className) {
+            this.className = className;
+        }
+
+        /**
+         * The name of the class.  For an array class this is the JVM
+         * name such as {@code "[I"}.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * The number of instances of the class in the stream.  An object
+         * that is referenced more than once is counted once.
+         */
+        public long getInstanceCount() {
+            return instances;
+        }
+
+        /**
+         * The number of bytes of the stream taken by the instances of the
+         * class, not including the objects they contain.
+         */
+        public long getByteCount() {
+            return bytes;
+        }
+
+        /**
+         * The total number of elements of the instances of an array class,
+         * or 0 for other classes.
+         */
+        public long getElementCount() {
+            return elements;
+        }
+
+        public String toString() {
+            return className + ": " + instances + " instances, " + bytes + " bytes";
+        }
+
+        private final String className;
+        long instances;
+        long bytes;
+        long elements;
+    }
+
+    /**
+     * One of the largest strings or arrays in the stream.
+     */
+    public static class Item {
+        Item(String className, int handle, long position, int length,
+                long bytes) {
+            this.className = className;
+            this.handle = handle;
+            this.position = position;
+            this.length = length;
+            this.bytes = bytes;
+        }
+
+        /**
+         * The class of the item, {@code "java.lang.String"} for a string.
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * The handle assigned to the item in the stream.
+         */
+        public int getHandle() {
+            return handle;
+        }
+
+        /**
+         * The position of the item's type code in the stream, where the
+         * stream header is at position 0.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * The number of elements of an array, or the length in bytes of
+         * the modified UTF-8 encoding of a string.
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * The number of bytes of the stream taken by the item, including
+         * everything it contains.
+         */
+        public long getByteCount() {
+            return bytes;
+        }
+
+        public String toString() {
+            return className + " @" + position + ": length " + length +
+                    ", " + bytes + " bytes";
+        }
+
+        private final String className;
+        private final int handle;
+        private final long position;
+        private final int length;
+        private final long bytes;
+    }
+
+    /*
+     * Read the rest of the stream from the given reader, keeping the
+     * given number of largest strings and arrays.
+     */
+    ClassHistogram(SerialEventReader reader, int top) throws IOException {
+        if (top < 0)
+            throw new IllegalArgumentException("Negative count: " + top);
+        this.top = top;
+        reader.setSkipping(true);
+        try {
+            read(reader);
+        } finally {
+            reader.setSkipping(false);
+        }
+    }
+
+    /**
+     * Return the counts for each class in the stream, in decreasing order
+     * of the number of bytes.
+     */
+    public List<Row> getRows() {
+        List<Row> list = new ArrayList<Row>(rows.values());
+        Collections.sort(list, new Comparator<Row>() {
+            public int compare(Row a, Row b) {
+                if (a.bytes != b.bytes)
+                    return (a.bytes > b.bytes) ? -1 : 1;
+                return a.className.compareTo(b.className);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Return the counts for the given class, or null if there were no
+     * instances of it.
+     */
+    public Row getRow(String className) {
+        return rows.get(className);
+    }
+
+    /**
+     * Return the largest strings in the stream, largest first.
+     */
+    public List<Item> getLargestStrings() {
+        return largestFirst(strings);
+    }
+
+    /**
+     * Return the largest arrays in the stream, largest first.  The size
+     * of an array includes the objects it contains.
+     */
+    public List<Item> getLargestArrays() {
+        return largestFirst(arrays);
+    }
+
+    /**
+     * Return the number of bytes of the stream that were read.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Return the histogram as a table, one class per line, in the same
+     * order as {@link #getRows()}.
+     */
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Formatter f = new Formatter(sb);
+        f.format("%5s %12s %14s %12s  %s%n",
+                "num", "#instances", "#bytes", "#elements", "class name");
+        int num = 0;
+        long instances = 0;
+        long bytes = 0;
+        for (Row row : getRows()) {
+            f.format("%4d: %12d %14d %12d  %s%n", ++num, row.instances,
+                    row.bytes, row.elements, row.className);
+            instances += row.instances;
+            bytes += row.bytes;
+        }
+        f.format("Total %12d %14d%n", instances, bytes);
+        return sb.toString();
+    }
+
+    private void read(SerialEventReader reader) throws IOException {
+        long startPosition = reader.position();
+        List<Frame> stack = new ArrayList<Frame>();
+        while (reader.hasNext()) {
+            long start = reader.position();
+            Event event = reader.next();
+            long end = reader.position();
+            Frame frame;
+            switch (event) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    Row row = row(reader.getClassName());
+                    row.instances++;
+                    if (event == Event.START_ARRAY)
+                        row.elements += reader.getLength();
+                    stack.add(new Frame(row, reader.getHandle(), start,
+                            reader.getLength()));
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    frame = stack.remove(stack.size() - 1);
+                    long total = end - frame.start;
+                    frame.row.bytes += total - frame.nested;
+                    nested(stack, total);
+                    if (event == Event.END_ARRAY) {
+                        arrays = offer(arrays, frame.row.className,
+                                frame.handle, frame.start, frame.length, total);
+                    }
+                    break;
+                case STRING:
+                    total = end - start;
+                    row = row("java.lang.String");
+                    row.instances++;
+                    row.bytes += total;
+                    nested(stack, total);
+                    strings = offer(strings, "java.lang.String",
+                            reader.getHandle(), start, reader.getLength(), total);
+                    break;
+                case CLASS:
+                    total = end - start;
+                    row = row("java.lang.Class");
+                    row.instances++;
+                    row.bytes += total;
+                    nested(stack, total);
+                    break;
+                default:
+                    // Part of the enclosing object.
+                    break;
+            }
+        }
+        byteCount = reader.position() - startPosition;
+    }
+
+    private Row row(String className) {
+        Row row = rows.get(className);
+        if (row == null) {
+            row = new Row(className);
+            rows.put(className, row);
+        }
+        return row;
+    }
+
+    private static void nested(List<Frame> stack, long bytes) {
+        if (!stack.isEmpty())
+            stack.get(stack.size() - 1).nested += bytes;
+    }
+
+    /*
+     * Add the described item to the queue if it is among the largest.
+     * The queue is created when the first item is added, and its head
+     * is always the smallest item kept.
+     */
+    private PriorityQueue<Item> offer(PriorityQueue<Item> queue,
+            String className, int handle, long position, int length,
+            long bytes) {
+        if (top == 0)
+            return queue;
+        if (queue == null)
+            queue = new PriorityQueue<Item>(top, SMALLEST_FIRST);
+        else if (queue.size() == top) {
+            if (bytes <= queue.peek().bytes)
+                return queue;
+            queue.poll();
+        }
+        queue.add(new Item(className, handle, position, length, bytes));
+        return queue;
+    }
+
+    private static List<Item> largestFirst(Collection<Item> items) {
+        if (items == null)
+            return Collections.emptyList();
+        List<Item> list = new ArrayList<Item>(items);
+        Collections.sort(list, Collections.reverseOrder(SMALLEST_FIRST));
+        return list;
+    }
+
+    /* An object or array whose end has not yet been read. */
+    private static class Frame {
+        Frame(Row row, int handle, long start, int length) {
+            this.row = row;
+            this.handle = handle;
+            this.start = start;
+            this.length = length;
+        }
+
+        final Row row;
+        final int handle;
+        final long start;
+        final int length;
+        // The bytes of the objects within this one
+        long nested;
+    }
+
+    private static final Comparator<Item> SMALLEST_FIRST =
+            new Comparator<Item>() {
+        public int compare(Item a, Item b) {
+            if (a.bytes != b.bytes)
+                return (a.bytes < b.bytes) ? -1 : 1;
+            return (a.position < b.position) ? 1 : (a.position > b.position) ? -1 : 0;
+        }
+    };
+
+    private final int top;
+    private final Map<String, Row> rows = new HashMap<String, Row>();
+    private PriorityQueue<Item> strings;
+    private PriorityQueue<Item> arrays;
+    private long byteCount;
+}
@@ -0,0 +1,301 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Scan a serial stream that arrives in pieces, without blocking.  This
+ * is intended for streams read from non-blocking channels, where a thread
+ * cannot wait for the rest of an object to arrive.  Each time more of the
+ * stream is available, it is given to {@link #feed feed}, which returns
+ * the next complete object if there is one, or {@link #NEED_MORE_INPUT}
+ * if not.  Handles are remembered from one object to the next, as they
+ * are by {@link SerialScan}, so later objects can refer to earlier
+ * ones.</p>
+ *
+ * <pre>
+ * IncrementalScan scan = new IncrementalScan();
+ * ...
+ * // when the channel is readable:
+ * channel.read(buffer);
+ * buffer.flip();
+ * for (SEntity x = scan.feed(buffer); x != IncrementalScan.NEED_MORE_INPUT;
+ *         x = scan.next()) {
+ *     ...handle x...
+ * }
+ * buffer.clear();
+ * </pre>
+ *
+ * <p>The scanner keeps its place in an object that is incomplete, and
+ * continues from there when more input arrives, so however the stream
+ * is divided each byte is read about twice: once to find where its
+ * object ends, and once to build the object's representation when all
+ * of it has arrived.  Only a single field or element that was cut off
+ * is read again from its start, and not before enough input has arrived
+ * to get past the point where the previous attempt stopped.  The bytes
+ * of the stream are copied into a buffer of this object's own, and
+ * {@link SBlockData} and {@link SPrimitiveArray} instances refer to that
+ * buffer rather than copying from it.</p>
+ *
+ * <p>An {@code IncrementalScan} is not thread-safe, but it can be used by
+ * different threads at different times.</p>
+ */
+public class IncrementalScan {
+    /**
+     * The value returned by {@link #feed feed} and {@link #next next} when
+     * the input so far does not contain another complete object.  It is
+     * compared by identity, like this:
+     * {@code if (x == IncrementalScan.NEED_MORE_INPUT)}.
+     */
+    public static final SEntity NEED_MORE_INPUT = new NeedMoreInput();
+
+    /**
+     * Create a scanner for a serial stream whose first bytes, including
+     * the stream header, have not yet been fed to it.
+     */
+    public IncrementalScan() {
+        try {
+            this.scan = new SerialScan(input, false);
+        } catch (IOException e) {
+            // Doesn't read anything when the header isn't wanted
+            throw new AssertionError(e);
+        }
+        this.reader = new SerialEventReader(scan);
+        reader.setSkipping(true);
+    }
+
+    /**
+     * Add the remaining bytes in the given buffer to the input, and
+     * return the next complete object.  The buffer's position is advanced
+     * to its limit.  If the input, including the new bytes, contains more
+     * than one complete object, only the first is returned, and the others
+     * can be retrieved with {@link #next()}.
+     *
+     * @param data the next bytes of the serial stream.
+     * @return the representation of the next object, or
+     * {@link #NEED_MORE_INPUT} if there is not yet a complete object.
+     * @exception IOException if the input is not a valid serial stream.
+     * The scanner cannot be used after this.
+     */
+    public SEntity feed(ByteBuffer data) throws IOException {
+        append(data);
+        return next();
+    }
+
+    /**
+     * Return the next complete object from the input fed so far, if any.
+     *
+     * @return the representation of the next object, or
+     * {@link #NEED_MORE_INPUT} if there is not yet a complete object.
+     * @exception IOException if the input is not a valid serial stream.
+     * The scanner cannot be used after this.
+     */
+    public SEntity next() throws IOException {
+        if (base + (limit - start) < required)
+            return NEED_MORE_INPUT;
+        if (!headerRead) {
+            setInput(base);
+            try {
+                scan.readStreamHeader();
+            } catch (EOFException e) {
+                return NEED_MORE_INPUT;
+            }
+            headerRead = true;
+            consume();
+        }
+        if (!findEnd())
+            return NEED_MORE_INPUT;
+        // Forget what finding the end assigned, and read the object again
+        // now that all of it is here.
+        scan.truncateHandles(objectHandle);
+        setInput(base);
+        SEntity x = scan.readObject();
+        consume();
+        return x;
+    }
+
+    /*
+     * Skip events from where the last call stopped until the end of the
+     * next top-level value, returning false if the input runs out first.
+     * The reader is marked before each event, so an event that is cut
+     * off can be read again from its start when there is more input.
+     */
+    private boolean findEnd() throws IOException {
+        setInput(resume);
+        if (scan.budget != null)
+            scan.budget.restartClock();
+        try {
+            while (true) {
+                reader.mark();
+                resume = input.position();
+                if (!inObject)
+                    objectHandle = scan.nextHandle();
+                if (!reader.hasNext())
+                    return false;
+                SerialEventReader.Event event = reader.next();
+                if (event == SerialEventReader.Event.RESET) {
+                    consume();
+                    continue;
+                }
+                inObject = (reader.getDepth() > 0
+                        || event == SerialEventReader.Event.START_OBJECT
+                        || event == SerialEventReader.Event.START_ARRAY);
+                if (!inObject)
+                    return true;
+            }
+        } catch (EOFException e) {
+            reader.rollback();
+            return false;
+        }
+    }
+
+    /**
+     * Limit the resources that this {@code IncrementalScan} may use to
+     * read each object, as {@link SerialScan#setLimits
+     * SerialScan.setLimits} does.  Since an object can take any time to
+     * arrive, the timeout applies to each call to {@link #feed feed} or
+     * {@link #next next} rather than to the whole object.  This method
+     * should be called before the first call to {@code feed}.
+     *
+     * @param limits the limits, or null for no limits.
+     */
+    public void setLimits(SerialLimits limits) {
+        scan.setLimits(limits);
+    }
+
+    /**
+     * Count the objects read by this {@code IncrementalScan} in the given
+     * metrics, as {@link SerialScan#setMetrics SerialScan.setMetrics}
+     * does.  Each object is counted once, when all of it has arrived.
+     *
+     * @param metrics the metrics to add to, or null to stop counting.
+     */
+    public void setMetrics(SerialScanMetrics metrics) {
+        scan.setMetrics(metrics);
+    }
+
+    /**
+     * The number of bytes that have been fed but are not part of a
+     * complete object.
+     */
+    public int getBufferedByteCount() {
+        return limit - start;
+    }
+
+    private void setInput(long position) {
+        int offset = start + (int) (position - base);
+        input.setBuffer(ByteBuffer.wrap(storage, offset, limit - offset).slice(),
+                position);
+    }
+
+    private void consume() {
+        long position = input.position();
+        start += (int) (position - base);
+        base = resume = position;
+        required = 0;
+    }
+
+    private void append(ByteBuffer data) {
+        int n = data.remaining();
+        if (storage.length - limit < n) {
+            // Entities can refer to bytes already in storage, so rather
+            // than moving the unread bytes down, copy them to a new array.
+            int unread = limit - start;
+            int size = Math.max(2 * (unread + n), MIN_STORAGE);
+            byte[] newStorage = new byte[size];
+            System.arraycopy(storage, start, newStorage, 0, unread);
+            storage = newStorage;
+            start = 0;
+            limit = unread;
+        }
+        data.get(storage, limit, n);
+        limit += n;
+    }
+
+    /*
+     * A BufferSerialInput over the bytes fed so far, which notes how much
+     * input the read that failed would have needed.
+     */
+    private class Input extends BufferSerialInput {
+        Input() {
+            super(ByteBuffer.allocate(0));
+        }
+
+        boolean refill(int n) {
+            required = position() + n;
+            return false;
+        }
+    }
+
+    private static class NeedMoreInput extends SEntity {
+        NeedMoreInput() {
+            super("NEED_MORE_INPUT");
+        }
+
+        String kind() {
+            return "IncrementalScan";
+        }
+
+        void renderContents(SerialRenderer.Output out) {
+        }
+    }
+
+    private static final int MIN_STORAGE = 8192;
+
+    private final Input input = new Input();
+    private final SerialScan scan;
+    private final SerialEventReader reader;
+    private boolean headerRead;
+    private byte[] storage = new byte[0];
+    // storage[start] is at this offset in the stream
+    private long base;
+    private int start;
+    private int limit;
+    // Don't try again until the stream has this many bytes
+    private long required;
+    // Where findEnd continues, within an object if inObject
+    private long resume;
+    private boolean inObject;
+    // The first handle assigned in the object that findEnd is reading
+    private int objectHandle;
+}
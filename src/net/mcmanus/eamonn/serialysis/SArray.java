@@ -39,10 +39,13 @@
 
 package net.mcmanus.eamonn.serialysis;
 
+import java.io.IOException;
+
 /**
  * <p>A representation of a serialized array.  The represented array can be
  * an array of objects (for example String[]) or of primitives (for example
- * int[]).</p>
+ * int[]).  Arrays of primitives are represented by the subclass
+ * {@link SPrimitiveArray}.</p>
  */
 public class SArray extends SEntity {
 
@@ -53,22 +56,48 @@ public class SArray extends SEntity {
         this.array = new SEntity[size];
     }
 
+    /**
+     * Constructor for subclasses that store their elements themselves
+     * and override the methods that access them.
+     */
+    SArray(String type) {
+        super(type);
+        this.array = null;
+    }
+
+    /**
+     * Get the representations of the elements of this array.
+     */
     public SEntity[] getValue() {
-        return array.clone();
+        return elements().clone();
+    }
+
+    /**
+     * Get the number of elements in this array.
+     */
+    public int getLength() {
+        return elements().length;
+    }
+
+    /**
+     * The array of elements itself, not a copy.
+     */
+    SEntity[] elements() {
+        return array;
     }
 
     String kind() {
         return "SArray";
     }
 
-    String contents() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("\n");
-        for (SEntity obj : array) {
-            indent(sb);
-            sb.append(obj).append("\n");
+    void renderContents(SerialRenderer.Output out) throws IOException {
+        out.newLine();
+        SEntity[] elements = elements();
+        for (int i = 0; i < elements.length && out.element(i, elements.length); i++) {
+            out.indent();
+            out.entity(elements[i]);
+            out.newLine();
         }
-        return sb.toString();
     }
 
     void set(int i, SEntity object) {
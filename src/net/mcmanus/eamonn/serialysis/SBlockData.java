@@ -42,8 +42,10 @@ package net.mcmanus.eamonn.serialysis;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * <p>A representation of arbitrary binary data included in a serial stream.
@@ -56,7 +58,7 @@ import java.io.ObjectOutputStream;
  */
 public class SBlockData extends SEntity {
     
-    SBlockData(byte[] data) {
+    SBlockData(ByteBuffer data) {
         super("blockdata");
         this.data = data;
     }
@@ -65,14 +67,30 @@ public class SBlockData extends SEntity {
      * Get the binary data.
      */
     public byte[] getValue() {
-        return data.clone();
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Get a read-only view of the binary data.  If the serial stream was
+     * scanned from a {@code ByteBuffer} or a file, this is a view of the
+     * same memory rather than a copy.
+     */
+    public ByteBuffer asByteBuffer() {
+        return data.asReadOnlyBuffer();
     }
     
     /**
      * Get a DataInputStream that can read the binary data.
      */
     public DataInputStream getDataInputStream() {
-        ByteArrayInputStream bin = new ByteArrayInputStream(data);
+        ByteArrayInputStream bin;
+        if (data.hasArray()) {
+            bin = new ByteArrayInputStream(data.array(),
+                    data.arrayOffset() + data.position(), data.remaining());
+        } else
+            bin = new ByteArrayInputStream(getValue());
         return new DataInputStream(bin);
     }
     
@@ -80,10 +98,11 @@ public class SBlockData extends SEntity {
         return "SBlockData";
     }
     
-    String contents() {
-        return data.length + " byte" + (data.length == 1 ? "" : "s") +
-                " of binary data";
+    void renderContents(SerialRenderer.Output out) throws IOException {
+        int length = data.remaining();
+        out.append(length + " byte" + (length == 1 ? "" : "s") +
+                " of binary data");
     }
     
-    private final byte[] data;
+    private final ByteBuffer data;
 }
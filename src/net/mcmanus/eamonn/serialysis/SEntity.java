@@ -39,10 +39,7 @@
 
 package net.mcmanus.eamonn.serialysis;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.Stack;
+import java.io.IOException;
 
 /**
  * A representation of a serialized object.  Scanning a serial stream
@@ -60,40 +57,26 @@ public abstract class SEntity {
     }
 
     abstract String kind();
-    abstract String contents();
 
+    /*
+     * Write what goes between the braces in the representation of this
+     * entity.
+     */
+    abstract void renderContents(SerialRenderer.Output out) throws IOException;
+
+    /**
+     * A readable representation of this entity and everything it refers
+     * to.  To write the representation of a large entity somewhere
+     * without building it as a string, or to abbreviate it, use a
+     * {@link SerialRenderer}.
+     */
     public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append(kind()).append("(").append(type).append("){");
-        Stack<SEntity> stack = stringThings.get();
-        if (stack.contains(this)) {
-            sb.append("...");
-        } else {
-            stack.push(this);
-            sb.append(contents());
-            stack.pop();
-        }
-        if (sb.charAt(sb.length() - 1) == '\n')
-            indent(sb);
-        sb.append("}");
-        return sb.toString();
+        return new SerialRenderer().render(this);
     }
 
     String getType() {
         return type;
     }
 
-    static void indent(StringBuilder sb) {
-        Stack<SEntity> stack = stringThings.get();
-        for (int i = stack.size(); i > 0; i--)
-            sb.append("  ");
-    }
-
     private final String type;
-    private static final ThreadLocal<Stack<SEntity>> stringThings =
-            new ThreadLocal<Stack<SEntity>>() {
-                protected Stack<SEntity> initialValue() {
-                    return new Stack<SEntity>();
-                }
-            };
 }
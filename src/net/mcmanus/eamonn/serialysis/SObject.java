@@ -39,6 +39,7 @@
 
 package net.mcmanus.eamonn.serialysis;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -108,23 +109,29 @@ public class SObject extends SEntity {
         return "SObject";
     }
 
-    String contents() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("\n");
+    void renderContents(SerialRenderer.Output out) throws IOException {
+        out.newLine();
+        int i = 0;
         for (Map.Entry<String, SEntity> entry : fields.entrySet()) {
-            indent(sb);
-            sb.append(entry.getKey()).append(" = ")
-            .append(entry.getValue()).append("\n");
+            if (!out.element(i++, fields.size()))
+                break;
+            out.indent();
+            out.append(entry.getKey()).append(" = ").entity(entry.getValue());
+            out.newLine();
         }
         if (annots.size() > 0) {
-            indent(sb);
-            sb.append("-- data written by class's writeObject:\n");
+            out.indent();
+            out.append("-- data written by class's writeObject:");
+            out.newLine();
+            i = 0;
             for (SEntity annot : annots) {
-                indent(sb);
-                sb.append(annot + "\n");
+                if (!out.element(i++, annots.size()))
+                    break;
+                out.indent();
+                out.entity(annot);
+                out.newLine();
             }
         }
-        return sb.toString();
     }
 
     public String getType() {
@@ -39,6 +39,7 @@
 
 package net.mcmanus.eamonn.serialysis;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Map;
@@ -58,7 +59,16 @@ public class SPrim extends SEntity {
      * the represented primitive is an int.
      */
     SPrim(Object x) {
-        super(wrappedClassToPrimName.get(x.getClass()));
+        this(wrappedClassToPrimName.get(x.getClass()), x);
+    }
+
+    /**
+     * Create a representation of the given wrapped primitive object when
+     * the name of the primitive type is already known, as it is when
+     * reading a serial stream.
+     */
+    SPrim(String type, Object x) {
+        super(type);
         this.value = x;
     }
 
@@ -66,8 +76,8 @@ public class SPrim extends SEntity {
         return "SPrim";
     }
 
-    String contents() {
-        return value.toString();
+    void renderContents(SerialRenderer.Output out) throws IOException {
+        out.append(value.toString());
     }
 
     /**
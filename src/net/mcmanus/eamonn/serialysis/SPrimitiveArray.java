@@ -0,0 +1,224 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>A representation of a serialized array of primitives, for example
+ * int[].  The elements are kept in their serialized form, which is much
+ * more compact than an {@link SPrim} for each element.  They can be
+ * retrieved as a Java primitive array with the method corresponding to the
+ * element type, for example {@link #getInts()} for an int[], or as raw
+ * big-endian bytes with {@link #asByteBuffer()}.</p>
+ *
+ * <p>The inherited {@link #getValue()} method still returns an
+ * {@code SPrim} for each element, but that is costly for large arrays.</p>
+ */
+public class SPrimitiveArray extends SArray {
+
+    SPrimitiveArray(String type, SerialScan.PrimitiveClassDesc componentDesc,
+            ByteBuffer data) {
+        super(type);
+        this.componentDesc = componentDesc;
+        this.data = data.slice();
+        this.length = data.remaining() / componentDesc.getSize();
+    }
+
+    /**
+     * Get the name of the primitive type of the elements of this array,
+     * for example {@code "int"}.
+     */
+    public String getComponentType() {
+        return componentDesc.toString();
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Get representations of the elements of this array.  Prefer the
+     * typed methods such as {@link #getInts()}, which don't create an
+     * object for each element.
+     */
+    public SEntity[] getValue() {
+        ByteBuffer buf = buffer();
+        SEntity[] array = new SEntity[length];
+        for (int i = 0; i < length; i++)
+            array[i] = componentDesc.get(buf, i);
+        return array;
+    }
+
+    /**
+     * Get a read-only view of the serialized bytes of the elements of
+     * this array.  The elements are in big-endian order, as in the serial
+     * stream, and the buffer's byte order is set accordingly.
+     */
+    public ByteBuffer asByteBuffer() {
+        return buffer().asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Get the value of this array if it is a boolean[].
+     * @exception IllegalStateException if it is not a boolean[].
+     */
+    public boolean[] getBooleans() {
+        checkType('Z', "boolean");
+        ByteBuffer buf = buffer();
+        boolean[] a = new boolean[length];
+        for (int i = 0; i < length; i++)
+            a[i] = (buf.get(i) != 0);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is a byte[].
+     * @exception IllegalStateException if it is not a byte[].
+     */
+    public byte[] getBytes() {
+        checkType('B', "byte");
+        byte[] a = new byte[length];
+        buffer().get(a);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is a char[].
+     * @exception IllegalStateException if it is not a char[].
+     */
+    public char[] getChars() {
+        checkType('C', "char");
+        char[] a = new char[length];
+        buffer().asCharBuffer().get(a);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is a short[].
+     * @exception IllegalStateException if it is not a short[].
+     */
+    public short[] getShorts() {
+        checkType('S', "short");
+        short[] a = new short[length];
+        buffer().asShortBuffer().get(a);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is an int[].
+     * @exception IllegalStateException if it is not an int[].
+     */
+    public int[] getInts() {
+        checkType('I', "int");
+        int[] a = new int[length];
+        buffer().asIntBuffer().get(a);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is a long[].
+     * @exception IllegalStateException if it is not a long[].
+     */
+    public long[] getLongs() {
+        checkType('J', "long");
+        long[] a = new long[length];
+        buffer().asLongBuffer().get(a);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is a float[].
+     * @exception IllegalStateException if it is not a float[].
+     */
+    public float[] getFloats() {
+        checkType('F', "float");
+        float[] a = new float[length];
+        buffer().asFloatBuffer().get(a);
+        return a;
+    }
+
+    /**
+     * Get the value of this array if it is a double[].
+     * @exception IllegalStateException if it is not a double[].
+     */
+    public double[] getDoubles() {
+        checkType('D', "double");
+        double[] a = new double[length];
+        buffer().asDoubleBuffer().get(a);
+        return a;
+    }
+
+    /* The representation of element i alone. */
+    SEntity get(int i) {
+        return componentDesc.get(buffer(), i);
+    }
+
+    void renderContents(SerialRenderer.Output out) throws IOException {
+        out.newLine();
+        ByteBuffer buf = buffer();
+        for (int i = 0; i < length && out.element(i, length); i++) {
+            out.indent();
+            out.entity(componentDesc.get(buf, i));
+            out.newLine();
+        }
+    }
+
+    void set(int i, SEntity object) {
+        throw new UnsupportedOperationException();
+    }
+
+    private void checkType(char typeCode, String typeName) {
+        if (componentDesc.getTypeCode() != typeCode)
+            throw new IllegalStateException("Not a " + typeName + "[]: " +
+                    getComponentType() + "[]");
+    }
+
+    /* A private view so that callers can't disturb the position of data. */
+    private ByteBuffer buffer() {
+        return data.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private final SerialScan.PrimitiveClassDesc componentDesc;
+    private final ByteBuffer data;
+    private final int length;
+}
@@ -39,6 +39,8 @@
 
 package net.mcmanus.eamonn.serialysis;
 
+import java.io.IOException;
+
 /**
  * A representation of a serialized String.
  */
@@ -59,7 +61,7 @@ public class SString extends SEntity {
         return "SString";
     }
 
-    String contents() {
-        return '"' + string + '"';
+    void renderContents(SerialRenderer.Output out) throws IOException {
+        out.string(string);
     }
 }
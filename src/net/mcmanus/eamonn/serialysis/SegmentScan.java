@@ -0,0 +1,180 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Scans a single stream on several threads by splitting it at its
+ * top-level TC_RESETs.  A reset clears the handle table, so nothing after
+ * it can refer to anything before it, and each segment between resets can
+ * be decoded on its own.  A first pass with a SerialEventReader finds the
+ * segments without decoding strings, block data or arrays, then each
+ * segment is decoded by its own SerialScan on a duplicate of the input,
+ * and the results are put back together in stream order.
+ */
+class SegmentScan {
+    private SegmentScan() {
+    }
+
+    /*
+     * Read the rest of the stream that the given SerialScan is reading,
+     * which must be from an input that supports duplicate.  Objects in the
+     * first segment can refer to objects the SerialScan has already read.
+     * When this returns, the SerialScan is at the end of the stream.
+     */
+    static List<SEntity> scan(SerialScan scan, int threads) throws IOException {
+        SerialInput in = scan.in;
+        SerialScan skipper = scan.copy(in.duplicate(in.position()));
+        List<Segment> segments = findSegments(skipper);
+        for (Segment segment : segments)
+            segment.parent = scan;
+        segments.get(0).continues = true;
+        List<SEntity> all = new ArrayList<SEntity>();
+        if (segments.size() == 1 || threads <= 1) {
+            for (Segment segment : segments)
+                all.addAll(segment.call());
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(
+                    Math.min(threads, segments.size()), threadFactory);
+            try {
+                List<Future<List<SEntity>>> futures =
+                        new ArrayList<Future<List<SEntity>>>();
+                for (Segment segment : segments)
+                    futures.add(pool.submit(segment));
+                for (Future<List<SEntity>> future : futures)
+                    all.addAll(get(future));
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        in.skipFully(skipper.in.position() - in.position());
+        if (segments.size() > 1)
+            scan.reset();
+        return all;
+    }
+
+    private static List<Segment> findSegments(SerialScan scan)
+            throws IOException {
+        SerialInput in = scan.in;
+        SerialEventReader reader = new SerialEventReader(scan);
+        List<Segment> segments = new ArrayList<Segment>();
+        Segment current = new Segment(in, in.position());
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case RESET:
+                    segments.add(current);
+                    current = new Segment(in, in.position());
+                    break;
+                case START_OBJECT:
+                case START_ARRAY:
+                    reader.skip();
+                    current.count++;
+                    break;
+                default:
+                    current.count++;
+                    break;
+            }
+        }
+        segments.add(current);
+        return segments;
+    }
+
+    private static List<SEntity> get(Future<List<SEntity>> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during scan");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static class Segment implements Callable<List<SEntity>> {
+        Segment(SerialInput in, long start) {
+            this.in = in;
+            this.start = start;
+        }
+
+        public List<SEntity> call() throws IOException {
+            SerialInput input = in.duplicate(start);
+            SerialScan scan = continues ?
+                    parent.copy(input) : parent.emptyCopy(input);
+            List<SEntity> entities = new ArrayList<SEntity>(count);
+            for (int i = 0; i < count; i++)
+                entities.add(scan.readObject());
+            return entities;
+        }
+
+        private final SerialInput in;
+        private final long start;
+        int count;
+        // The scanner whose settings this segment is read with
+        SerialScan parent;
+        // True if the segment starts with the parent's handles
+        boolean continues;
+    }
+
+    private static final ThreadFactory threadFactory = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SerialScan segment");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+}
@@ -0,0 +1,388 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>A comparison of two serial streams, or of two entities, that lists
+ * the fields, array elements and annotations whose values differ.  Each
+ * difference has a path in the syntax of {@link SerialPath}, such as
+ * {@code elementData[3].name}, so it can be used to extract the values
+ * from other streams with the same structure.</p>
+ *
+ * <p>A hash of every object and array is computed as it is read, from
+ * the hashes of its contents, so a subtree that is the same in both
+ * streams is recognized without comparing what is in it.  Two subtrees
+ * are considered the same if their hashes are the same, which for
+ * different subtrees has a probability of about 2<sup>-64</sup>.</p>
+ *
+ * <p>Values are compared, not identities: an object that is shared in
+ * one stream and copied in the other is not reported as a difference.
+ * Cycles are allowed, and a pair of objects that is reached again while
+ * it is being compared is taken to be equal.</p>
+ */
+public class SerialDiff {
+    /**
+     * One difference between the two streams or entities.
+     */
+    public static class Difference {
+        /**
+         * What kind of difference this is.
+         */
+        public enum Kind {
+            /** The value is only in the second stream. */
+            ADDED,
+            /** The value is only in the first stream. */
+            REMOVED,
+            /** The value is different in the two streams. */
+            CHANGED
+        }
+
+        Difference(Kind kind, int objectIndex, String path,
+                SEntity oldValue, SEntity newValue) {
+            this.kind = kind;
+            this.objectIndex = objectIndex;
+            this.path = path;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * The index of the top-level object in which the difference was
+         * found, starting at 0.  When two entities were compared, this is
+         * always 0.
+         */
+        public int getObjectIndex() {
+            return objectIndex;
+        }
+
+        /**
+         * The path to the value within the top-level object, which is
+         * empty if the top-level objects themselves differ.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * The value in the first stream, or null if the kind is
+         * {@link Kind#ADDED ADDED}.
+         */
+        public SEntity getOldValue() {
+            return oldValue;
+        }
+
+        /**
+         * The value in the second stream, or null if the kind is
+         * {@link Kind#REMOVED REMOVED}.
+         */
+        public SEntity getNewValue() {
+            return newValue;
+        }
+
+        /**
+         * A description of the difference, such as
+         * {@code "CHANGED [0] elementData[3].name"}.  The values are not
+         * included since they can be large.
+         */
+        public String toString() {
+            return kind + " [" + objectIndex + "] " + path;
+        }
+
+        private final Kind kind;
+        private final int objectIndex;
+        private final String path;
+        private final SEntity oldValue;
+        private final SEntity newValue;
+    }
+
+    private SerialDiff(SubtreeHasher oldHashes, SubtreeHasher newHashes) {
+        this.oldHashes = oldHashes;
+        this.newHashes = newHashes;
+    }
+
+    /**
+     * Compare two entities, which can come from different streams.
+     *
+     * @param oldValue the first entity.
+     * @param newValue the second entity.
+     * @return the differences between them, in the order they were found.
+     */
+    public static List<Difference> compare(SEntity oldValue, SEntity newValue) {
+        SerialDiff diff = new SerialDiff(new SubtreeHasher(), new SubtreeHasher());
+        diff.oldHashes.hash(oldValue);
+        diff.newHashes.hash(newValue);
+        diff.value("", oldValue, newValue);
+        return diff.differences;
+    }
+
+    /**
+     * Compare the objects in two serial streams.  The first object of one
+     * stream is compared with the first object of the other, and so on.
+     * If one stream has more objects than the other, each extra one is
+     * reported as {@link Difference.Kind#ADDED ADDED} or
+     * {@link Difference.Kind#REMOVED REMOVED} with an empty path.  Each
+     * stream is read to its end, with a {@link SerialScan}, and neither
+     * is closed.
+     *
+     * @param oldStream the first stream.
+     * @param newStream the second stream.
+     * @return the differences between the streams, in stream order.
+     * @exception IOException if either stream cannot be read or is not a
+     * valid serial stream.
+     */
+    public static List<Difference> compare(InputStream oldStream,
+            InputStream newStream) throws IOException {
+        SerialDiff diff = new SerialDiff(new SubtreeHasher(), new SubtreeHasher());
+        Iterator<SEntity> olds =
+                new HashingScan(oldStream, diff.oldHashes).iterator();
+        Iterator<SEntity> news =
+                new HashingScan(newStream, diff.newHashes).iterator();
+        try {
+            while (olds.hasNext() || news.hasNext()) {
+                if (!news.hasNext())
+                    diff.add(Difference.Kind.REMOVED, "", olds.next(), null);
+                else if (!olds.hasNext())
+                    diff.add(Difference.Kind.ADDED, "", null, news.next());
+                else
+                    diff.value("", olds.next(), news.next());
+                diff.objectIndex++;
+            }
+        } catch (IllegalStateException e) {
+            // The iterators wrap the IOException
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        return diff.differences;
+    }
+
+    private void value(String path, SEntity x, SEntity y) {
+        if (x == y && x == null)
+            return;
+        if (x == null || y == null || x.getClass() != y.getClass()
+                || !x.getType().equals(y.getType())) {
+            add(Difference.Kind.CHANGED, path, x, y);
+            return;
+        }
+        if (x instanceof SObject || x instanceof SArray) {
+            Long hx = oldHashes.hashOf(x);
+            if (hx != null && hx.equals(newHashes.hashOf(y)))
+                return;
+            if (!compared.add(new Pair(x, y)))
+                return;
+            if (x instanceof SObject)
+                object(path, (SObject) x, (SObject) y);
+            else if (x instanceof SPrimitiveArray)
+                primitiveArray(path, (SPrimitiveArray) x, (SPrimitiveArray) y);
+            else
+                array(path, ((SArray) x).getValue(), ((SArray) y).getValue());
+            return;
+        }
+        boolean same;
+        if (x instanceof SString)
+            same = ((SString) x).getValue().equals(((SString) y).getValue());
+        else if (x instanceof SPrim)
+            same = ((SPrim) x).getValue().equals(((SPrim) y).getValue());
+        else if (x instanceof SBlockData)
+            same = ((SBlockData) x).asByteBuffer().equals(
+                    ((SBlockData) y).asByteBuffer());
+        else {
+            // A Class, whose type has already been compared
+            same = true;
+        }
+        if (!same)
+            add(Difference.Kind.CHANGED, path, x, y);
+    }
+
+    private void object(String path, SObject x, SObject y) {
+        String prefix = path.length() == 0 ? "" : path + ".";
+        Set<String> yNames = y.getFieldNames();
+        for (String name : x.getFieldNames()) {
+            if (yNames.contains(name))
+                value(prefix + name, x.getField(name), y.getField(name));
+            else
+                add(Difference.Kind.REMOVED, prefix + name, x.getField(name), null);
+        }
+        Set<String> xNames = x.getFieldNames();
+        for (String name : yNames) {
+            if (!xNames.contains(name))
+                add(Difference.Kind.ADDED, prefix + name, null, y.getField(name));
+        }
+        List<SEntity> xs = x.getAnnotations();
+        List<SEntity> ys = y.getAnnotations();
+        if (!xs.isEmpty() || !ys.isEmpty()) {
+            array(prefix + "<annotations>", xs.toArray(new SEntity[0]),
+                    ys.toArray(new SEntity[0]));
+        }
+    }
+
+    private void array(String path, SEntity[] xs, SEntity[] ys) {
+        int n = Math.min(xs.length, ys.length);
+        for (int i = 0; i < n; i++)
+            value(path + "[" + i + "]", xs[i], ys[i]);
+        for (int i = n; i < xs.length; i++)
+            add(Difference.Kind.REMOVED, path + "[" + i + "]", xs[i], null);
+        for (int i = n; i < ys.length; i++)
+            add(Difference.Kind.ADDED, path + "[" + i + "]", null, ys[i]);
+    }
+
+    /*
+     * Compare the elements of two primitive arrays of the same type in
+     * their serialized form, building SPrims only for the elements that
+     * are reported.
+     */
+    private void primitiveArray(String path, SPrimitiveArray x,
+            SPrimitiveArray y) {
+        ByteBuffer xb = x.asByteBuffer();
+        ByteBuffer yb = y.asByteBuffer();
+        int n = Math.min(x.getLength(), y.getLength());
+        int size = (n == 0) ? 0 : xb.remaining() / x.getLength();
+        for (int i = 0; i < n; i++) {
+            int offset = i * size;
+            for (int j = 0; j < size; j++) {
+                if (xb.get(offset + j) != yb.get(offset + j)) {
+                    add(Difference.Kind.CHANGED, path + "[" + i + "]",
+                            x.get(i), y.get(i));
+                    break;
+                }
+            }
+        }
+        for (int i = n; i < x.getLength(); i++)
+            add(Difference.Kind.REMOVED, path + "[" + i + "]", x.get(i), null);
+        for (int i = n; i < y.getLength(); i++)
+            add(Difference.Kind.ADDED, path + "[" + i + "]", null, y.get(i));
+    }
+
+    private void add(Difference.Kind kind, String path,
+            SEntity oldValue, SEntity newValue) {
+        differences.add(
+                new Difference(kind, objectIndex, path, oldValue, newValue));
+    }
+
+    /*
+     * A scanner that tells a SubtreeHasher about each object and array as
+     * it is created and completed.  An object or array is created either
+     * with its handle, or, when read through a SerialEventReader, when its
+     * handle's placeholder is replaced.
+     */
+    private static class HashingScan extends SerialScan {
+        HashingScan(InputStream in, SubtreeHasher hasher) throws IOException {
+            super(new StreamSerialInput(in,
+                    StreamSerialInput.WHOLE_STREAM_READ_AHEAD));
+            this.hasher = hasher;
+        }
+
+        int newHandle(SEntity o, long start) throws IOException {
+            int handle = super.newHandle(o, start);
+            begin(handle, o);
+            return handle;
+        }
+
+        void replaceHandle(int handle, SEntity o) {
+            super.replaceHandle(handle, o);
+            begin(handle, o);
+        }
+
+        void endHandle(int handle) {
+            int n = building.size();
+            if (n > 0 && buildingHandles.get(n - 1) == handle) {
+                buildingHandles.remove(n - 1);
+                hasher.end(building.remove(n - 1));
+            }
+        }
+
+        private void begin(int handle, SEntity o) {
+            if (o instanceof SObject || o instanceof SArray) {
+                building.add(o);
+                buildingHandles.add(handle);
+                hasher.start(o);
+            }
+        }
+
+        private final SubtreeHasher hasher;
+        // The objects and arrays being built, and their handles
+        private final List<SEntity> building = new ArrayList<SEntity>();
+        private final List<Integer> buildingHandles = new ArrayList<Integer>();
+    }
+
+    /*
+     * A pair of entities, compared by identity.
+     */
+    private static class Pair {
+        Pair(SEntity x, SEntity y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Pair))
+                return false;
+            Pair p = (Pair) o;
+            return p.x == x && p.y == y;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(x) * 31 + System.identityHashCode(y);
+        }
+
+        private final SEntity x;
+        private final SEntity y;
+    }
+
+    private final SubtreeHasher oldHashes;
+    private final SubtreeHasher newHashes;
+    private final List<Difference> differences = new ArrayList<Difference>();
+    // The pairs of objects and arrays already compared or being compared
+    private final Set<Pair> compared = new HashSet<Pair>();
+    private int objectIndex;
+}
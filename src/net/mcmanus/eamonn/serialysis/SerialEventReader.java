@@ -0,0 +1,992 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import static java.io.ObjectStreamConstants.*;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.mcmanus.eamonn.serialysis.SerialScan.ArrayClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.ClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.FieldDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.ObjectClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.PrimitiveClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.PrimitiveFieldDesc;
+
+/**
+ * <p>Read a serial stream as a sequence of events, without building a
+ * representation of the objects in it.  This is analogous to the StAX
+ * {@code XMLStreamReader}: each call to {@link #next()} advances to the
+ * next event, and the methods such as {@link #getClassName()} return
+ * information about that event.  The memory used is proportional to the
+ * nesting depth of the objects being read and to the number of handles
+ * assigned, but not to the size of the objects.</p>
+ *
+ * <p>An object is reported as {@link Event#START_OBJECT START_OBJECT},
+ * followed by a {@link Event#FIELD FIELD} event and a value for each of
+ * its serial fields, and then {@link Event#END_OBJECT END_OBJECT}.  A value
+ * is either a single event such as {@link Event#PRIMITIVE PRIMITIVE} or
+ * {@link Event#STRING STRING}, or a nested object or array.  Values within
+ * an object that are not preceded by a {@code FIELD} event are data written
+ * by a class's {@code writeObject} or {@code writeExternal} method, as
+ * returned by {@link SObject#getAnnotations}.  An enumeration constant is
+ * reported like the equivalent {@link SObject}, with a single field
+ * called {@code "<name>"}.  An array is reported as
+ * {@link Event#START_ARRAY START_ARRAY}, one value per element, and
+ * {@link Event#END_ARRAY END_ARRAY}.</p>
+ *
+ * <p>Class descriptors are read using the same code as {@link SerialScan},
+ * and are not reported.</p>
+ */
+public class SerialEventReader {
+
+    /**
+     * The kinds of event reported by a {@link SerialEventReader}.
+     */
+    public static enum Event {
+        /** The start of an object.  {@link #getClassName()} and
+         * {@link #getHandle()} are valid. */
+        START_OBJECT,
+        /** The end of an object.  {@link #getClassName()} and
+         * {@link #getHandle()} are valid. */
+        END_OBJECT,
+        /** The next value is the value of the serial field whose name is
+         * given by {@link #getFieldName()}. */
+        FIELD,
+        /** The start of an array.  {@link #getClassName()},
+         * {@link #getHandle()} and {@link #getLength()} are valid. */
+        START_ARRAY,
+        /** The end of an array.  {@link #getClassName()} and
+         * {@link #getHandle()} are valid. */
+        END_ARRAY,
+        /** A primitive value.  {@link #getPrimitive()} and
+         * {@link #getPrimitiveType()} are valid. */
+        PRIMITIVE,
+        /** A string.  {@link #getString()}, {@link #getHandle()} and
+         * {@link #getLength()} are valid. */
+        STRING,
+        /** Binary data.  {@link #getBlockData()} and {@link #getLength()}
+         * are valid. */
+        BLOCK_DATA,
+        /** A reference to an object, array, string or class that appeared
+         * earlier in the stream.  {@link #getHandle()} is valid. */
+        REFERENCE,
+        /** A null reference. */
+        NULL,
+        /** A {@code Class} object.  {@link #getClassName()} and
+         * {@link #getHandle()} are valid. */
+        CLASS,
+        /** The writer reset the stream, so handles assigned up to now
+         * will not be referenced again.  This is also reported when a
+         * new stream header follows a complete top-level value, as when
+         * a new {@code ObjectOutputStream} has appended to a file. */
+        RESET
+    }
+
+    /**
+     * Read the given {@code InputStream} as a serial stream.
+     *
+     * @param in the serial stream to be read.
+     * @exception IOException if there is a problem reading the
+     * {@code InputStream}, for example if it does not begin with
+     * the correct sequence of bytes.
+     */
+    public SerialEventReader(InputStream in) throws IOException {
+        this(new SerialScan(in));
+    }
+
+    /*
+     * Read events using the given scanner, which supplies the input,
+     * the class descriptor grammar, and the handle table.
+     */
+    SerialEventReader(SerialScan scan) {
+        this.scan = scan;
+    }
+
+    /**
+     * Return true if there is another event.  This is false only when
+     * the stream ends cleanly after a complete top-level value.
+     */
+    public boolean hasNext() throws IOException {
+        if (!stack.isEmpty() || pendingTag >= 0)
+            return true;
+        int b = scan.in.read();
+        if (b < 0)
+            return false;
+        pendingTag = b;
+        return true;
+    }
+
+    /**
+     * Advance to the next event.
+     *
+     * @return the new current event.
+     * @exception NoSuchElementException if {@link #hasNext()} is false.
+     * @exception IOException if the stream cannot be read or is not
+     * a valid serial stream.
+     */
+    public Event next() throws IOException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        clear();
+        Frame top = top();
+        if (top == null) {
+            if (scan.budget != null)
+                scan.budget.start();
+            event = value(nextTag(), true);
+            if (stack.isEmpty() && scan.budget != null)
+                scan.budget.end();
+        } else
+            event = top.advance();
+        return event;
+    }
+
+    /**
+     * If the current event is {@link Event#START_OBJECT START_OBJECT} or
+     * {@link Event#START_ARRAY START_ARRAY}, advance to the matching
+     * {@code END_OBJECT} or {@code END_ARRAY} without reporting the
+     * contents.  The contents are still checked for validity, but strings
+     * and binary data within them are not decoded.
+     *
+     * @exception IllegalStateException if the current event is not
+     * {@code START_OBJECT} or {@code START_ARRAY}.
+     */
+    public void skip() throws IOException {
+        if (event != Event.START_OBJECT && event != Event.START_ARRAY)
+            throw new IllegalStateException("Not at start of object or array");
+        int target = stack.size() - 1;
+        boolean wasSkipping = skipping;
+        skipping = true;
+        try {
+            while (stack.size() > target) {
+                clear();
+                event = top().advance();
+            }
+        } finally {
+            skipping = wasSkipping;
+        }
+    }
+
+    /*
+     * Advance past the next value without decoding any of it, and return
+     * the event that began it.  The class name of that event is still
+     * available from getClassName afterwards.
+     */
+    Event skipValue() throws IOException {
+        boolean wasSkipping = skipping;
+        skipping = true;
+        try {
+            Event first = next();
+            if (first == Event.START_OBJECT || first == Event.START_ARRAY) {
+                String name = className;
+                skip();
+                className = name;
+            }
+            return first;
+        } finally {
+            skipping = wasSkipping;
+        }
+    }
+
+    /*
+     * If true, strings are decoded even when they are skipped, so that
+     * later references to them can be resolved by readCurrent.
+     */
+    void setDecodeStrings(boolean decodeStrings) {
+        this.decodeStrings = decodeStrings;
+    }
+
+    /*
+     * If true, every event is read as if it were being skipped: strings
+     * and binary data are not decoded, and primitive arrays go straight
+     * from START_ARRAY to END_ARRAY.
+     */
+    void setSkipping(boolean skipping) {
+        this.skipping = skipping;
+    }
+
+    /*
+     * Within an object or array, advance to just before its next value
+     * and return true, without reading any of the value, which can then
+     * be read with next() or skipValue().  getFieldName() is the name of
+     * the serial field that the value belongs to, or null if the value
+     * is an annotation or an array element.  If there are no more
+     * values, advance to the END_OBJECT or END_ARRAY and return false.
+     */
+    boolean nextValue() throws IOException {
+        Frame top = top();
+        if (top == null)
+            throw new IllegalStateException("Not within an object or array");
+        clear();
+        return top.nextValue();
+    }
+
+    /*
+     * Build the representation of the value that starts with the current
+     * event, reading the rest of it with the scanner, as readObject would.
+     * For START_OBJECT or START_ARRAY, this must be called straight after
+     * the event, and leaves the reader at the matching END_OBJECT or
+     * END_ARRAY.  A reference to an object that was skipped or only read
+     * as events cannot be resolved.
+     */
+    SEntity readCurrent() throws IOException {
+        switch (event) {
+            case START_OBJECT:
+            case START_ARRAY:
+                SEntity entity = top().read();
+                event = pop((event == Event.START_OBJECT) ?
+                        Event.END_OBJECT : Event.END_ARRAY);
+                return entity;
+            case STRING:
+            case CLASS:
+            case REFERENCE:
+                SEntity x = scan.handle(handle);
+                if (x == SerialScan.UNREAD)
+                    throw new StreamCorruptedException("Reference to unread object");
+                return x;
+            case PRIMITIVE:
+                return new SPrim(getPrimitiveType(), getPrimitive());
+            case BLOCK_DATA:
+                return new SBlockData(blockData);
+            case NULL:
+                return null;
+            default:
+                throw new IllegalStateException("Not at start of value: " + event);
+        }
+    }
+
+    /*
+     * The position in the stream of the first byte of the next event.
+     */
+    long position() {
+        long position = scan.in.position();
+        return (pendingTag >= 0) ? position - 1 : position;
+    }
+
+    /*
+     * Remember the state of the reader between events.  If reading the
+     * next event then fails, for example with EOFException because the
+     * input ran out, rollback() puts the reader back as it was here, and
+     * once the input is back at the position it had here the event can
+     * be read again.  Only the innermost frame can change before a read
+     * fails, since frames are pushed and popped after the reads for an
+     * event, so only that frame is saved.
+     */
+    void mark() {
+        markPendingTag = pendingTag;
+        markHandle = scan.nextHandle();
+        Frame top = top();
+        if (top != null)
+            top.mark();
+        if (scan.budget != null)
+            scan.budget.mark();
+    }
+
+    void rollback() {
+        pendingTag = markPendingTag;
+        scan.truncateHandles(markHandle);
+        Frame top = top();
+        if (top != null)
+            top.rollback();
+        if (scan.budget != null)
+            scan.budget.rollback();
+    }
+
+    /*
+     * If true, strings that are skipped are still checked to be valid
+     * modified UTF-8, as they would be when decoded.
+     */
+    void setCheckStrings(boolean checkStrings) {
+        this.checkStrings = checkStrings;
+    }
+
+    /*
+     * Report the value that starts with the current event to the
+     * given visitor, leaving the reader at the last event of the value.
+     */
+    void accept(SerialVisitor visitor) throws IOException {
+        switch (event) {
+            case START_OBJECT:
+                if (visitor.visitObject(className, handle) ==
+                        SerialVisitor.Action.SKIP) {
+                    skip();
+                    return;
+                }
+                while (next() != Event.END_OBJECT) {
+                    if (event == Event.FIELD) {
+                        if (visitor.visitField(fieldName) ==
+                                SerialVisitor.Action.SKIP) {
+                            skipValue();
+                            continue;
+                        }
+                        next();
+                    }
+                    accept(visitor);
+                }
+                visitor.visitEnd();
+                break;
+            case START_ARRAY:
+                if (visitor.visitArray(className, length, handle) ==
+                        SerialVisitor.Action.SKIP) {
+                    skip();
+                    return;
+                }
+                while (next() != Event.END_ARRAY)
+                    accept(visitor);
+                visitor.visitEnd();
+                break;
+            case PRIMITIVE:
+                visitor.visitPrimitive(getPrimitive());
+                break;
+            case STRING:
+                visitor.visitString(string, handle);
+                break;
+            case BLOCK_DATA:
+                visitor.visitBlockData(blockData.asReadOnlyBuffer());
+                break;
+            case REFERENCE:
+                visitor.visitReference(handle);
+                break;
+            case NULL:
+                visitor.visitNull();
+                break;
+            case CLASS:
+                visitor.visitClass(className, handle);
+                break;
+            default:
+                throw new IllegalStateException("Not at start of value: " + event);
+        }
+    }
+
+    /**
+     * The current event, or null if {@link #next()} has not been called.
+     */
+    public Event getEvent() {
+        return event;
+    }
+
+    /**
+     * The number of objects and arrays that enclose the current event.
+     * A top-level value, and the end of a top-level object or array,
+     * have depth 0.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * The name of the class of the current object, array, or
+     * {@code Class}.  For an array this is the JVM name such as
+     * {@code "[I"}.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * The name of the serial field whose value is next.
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * The handle assigned to the current object, array, string or
+     * {@code Class}, or the handle referenced by a
+     * {@link Event#REFERENCE REFERENCE}.  Handles are assigned in the
+     * order they appear in the stream, starting from
+     * {@link java.io.ObjectStreamConstants#baseWireHandle baseWireHandle},
+     * and restart from there after a {@link Event#RESET RESET}.
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+     * The number of elements in the current array, the number of
+     * bytes of the current binary data, or the length in bytes of the
+     * modified UTF-8 encoding of the current string.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * The value of the current string.
+     */
+    public String getString() {
+        return string;
+    }
+
+    /**
+     * The value of the current primitive, wrapped in the corresponding
+     * wrapper type, for example Integer if the primitive is an int.
+     */
+    public Object getPrimitive() {
+        return (primitiveDesc == null) ? null : primitiveDesc.box(primitiveBits);
+    }
+
+    /**
+     * The name of the type of the current primitive, for example
+     * {@code "int"}.
+     */
+    public String getPrimitiveType() {
+        return (primitiveDesc == null) ? null : primitiveDesc.toString();
+    }
+
+    /**
+     * A copy of the current binary data.
+     */
+    public byte[] getBlockData() {
+        if (event != Event.BLOCK_DATA)
+            return null;
+        byte[] data = new byte[length];
+        blockData.duplicate().get(data);
+        return data;
+    }
+
+    private void clear() {
+        className = fieldName = string = null;
+        primitiveDesc = null;
+        blockData = null;
+        handle = length = 0;
+        depth = stack.size();
+    }
+
+    private int nextTag() throws IOException {
+        if (pendingTag >= 0) {
+            int tag = (byte) pendingTag;
+            pendingTag = -1;
+            return tag;
+        }
+        return scan.in.readByte();
+    }
+
+    /*
+     * Read the value introduced by the given type code, following the
+     * same grammar as SerialScan.readObjectOrEnd.  Resets are reported
+     * only at top level, since elsewhere a RESET event would take the
+     * place of the value being read.
+     */
+    private Event value(int tag, boolean topLevel) throws IOException {
+        while (true) {
+            switch (tag) {
+                case TC_OBJECT:
+                    return startObject();
+                case TC_CLASS: {
+                    ClassDesc desc = scan.newClass();
+                    if (desc == null)
+                        throw new StreamCorruptedException("Null class");
+                    className = desc.getType();
+                    handle = scan.nextHandle() - 1;
+                    return Event.CLASS;
+                }
+                case TC_ARRAY:
+                    return startArray();
+                case TC_STRING:
+                case TC_LONGSTRING:
+                    return string(tag);
+                case TC_ENUM:
+                    return startEnum();
+                case TC_CLASSDESC:
+                case TC_PROXYCLASSDESC:
+                    scan.classDesc(tag);
+                    break;
+                case TC_REFERENCE:
+                    handle = scan.in.readInt();
+                    scan.handle(handle);  // check it
+                    return Event.REFERENCE;
+                case TC_NULL:
+                    return Event.NULL;
+                case TC_EXCEPTION:
+                    scan.exception();
+                    break;
+                case TC_RESET:
+                    scan.reset();
+                    if (topLevel)
+                        return Event.RESET;
+                    break;
+                case (byte) (STREAM_MAGIC >> 8):
+                    if (!topLevel)
+                        throw new StreamCorruptedException("Bad type code: " + tag);
+                    scan.appendedStreamHeader();
+                    return Event.RESET;
+                case TC_BLOCKDATA:
+                    return blockData(scan.in.readUnsignedByte());
+                case TC_BLOCKDATALONG:
+                    return blockData(scan.in.readInt());
+                case TC_ENDBLOCKDATA:
+                    throw new StreamCorruptedException("Unexpected end-block-data");
+                default:
+                    throw new StreamCorruptedException("Bad type code: " + tag);
+            }
+            tag = nextTag();
+        }
+    }
+
+    private Event startObject() throws IOException {
+        if (scan.budget != null)
+            scan.budget.enter();
+        long start = scan.in.position() - 1;
+        ObjectClassDesc desc = scan.classDesc();
+        if (desc == null)
+            throw new StreamCorruptedException("Null class descriptor");
+        int h = scan.newHandle(SerialScan.UNREAD, start);
+        push(new ObjectFrame(desc, h));
+        return Event.START_OBJECT;
+    }
+
+    private Event startEnum() throws IOException {
+        long start = scan.in.position() - 1;
+        ObjectClassDesc desc = scan.classDesc();
+        if (desc == null)
+            throw new StreamCorruptedException("Null class descriptor");
+        int h = scan.newHandle(SerialScan.UNREAD, start);
+        push(new EnumFrame(desc, h));
+        return Event.START_OBJECT;
+    }
+
+    private Event startArray() throws IOException {
+        if (scan.budget != null)
+            scan.budget.enter();
+        long start = scan.in.position() - 1;
+        ObjectClassDesc desc = scan.classDesc();
+        if (!(desc instanceof ArrayClassDesc))
+            throw new StreamCorruptedException("Bad array class descriptor");
+        int size = scan.in.readInt();
+        if (size < 0)
+            throw new StreamCorruptedException("Bad array size: " + size);
+        if (scan.budget != null) {
+            // Charged here for the whole array, as SerialScan.newArray
+            // does, whether its elements are then read, skipped or built.
+            scan.budget.array(size);
+            ClassDesc componentDesc =
+                    ((ArrayClassDesc) desc).getComponentClassDesc();
+            if (componentDesc instanceof PrimitiveClassDesc) {
+                scan.budget.bytes((long) size *
+                        ((PrimitiveClassDesc) componentDesc).getSize());
+            }
+        }
+        int h = scan.newHandle(SerialScan.UNREAD, start);
+        push(new ArrayFrame((ArrayClassDesc) desc, h, size));
+        length = size;
+        return Event.START_ARRAY;
+    }
+
+    private Event string(int tag) throws IOException {
+        handle = scan.nextHandle();
+        long start = scan.in.position() - 1;
+        if (skipping && !decodeStrings) {
+            long len = (tag == TC_STRING) ?
+                scan.in.readUnsignedShort() : scan.in.readLong();
+            if (len < 0)
+                throw new StreamCorruptedException("Bad string length: " + len);
+            if (scan.budget != null)
+                scan.budget.string(len);
+            if (checkStrings)
+                scan.in.skipUTF(len);
+            else
+                scan.in.skipFully(len);
+            scan.endHandle(scan.newHandle(SerialScan.UNREAD, start));
+        } else {
+            SString s = (tag == TC_STRING) ?
+                scan.newString() : scan.newLongString();
+            string = s.getValue();
+        }
+        long len = scan.in.position() - start - (tag == TC_STRING ? 3 : 9);
+        length = (int) Math.min(len, Integer.MAX_VALUE);
+        return Event.STRING;
+    }
+
+    private Event primitive(PrimitiveClassDesc desc) throws IOException {
+        primitiveDesc = desc;
+        switch (desc.getSize()) {
+            case 1:
+                primitiveBits = scan.in.readByte(); break;
+            case 2:
+                primitiveBits = scan.in.readShort(); break;
+            case 4:
+                primitiveBits = scan.in.readInt(); break;
+            default:
+                primitiveBits = scan.in.readLong(); break;
+        }
+        return Event.PRIMITIVE;
+    }
+
+    private Event blockData(int len) throws IOException {
+        if (len < 0)
+            throw new StreamCorruptedException("Bad block data length: " + len);
+        if (scan.budget != null)
+            scan.budget.bytes(len);
+        if (skipping)
+            scan.in.skipFully(len);
+        else
+            blockData = scan.in.readBuffer(len);
+        length = len;
+        return Event.BLOCK_DATA;
+    }
+
+    private Frame top() {
+        return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+    }
+
+    private void push(Frame frame) {
+        stack.add(frame);
+        className = frame.className;
+        handle = frame.handle;
+    }
+
+    /*
+     * The budget, if any, is charged as SerialScan.readObject charges it:
+     * each object or array except an enum constant is a level of nesting,
+     * and the totals start again with each top-level value.
+     */
+    private Event pop(Event end) {
+        Frame frame = stack.remove(stack.size() - 1);
+        scan.endHandle(frame.handle);
+        if (scan.budget != null) {
+            if (!(frame instanceof EnumFrame))
+                scan.budget.exit();
+            if (stack.isEmpty())
+                scan.budget.end();
+        }
+        className = frame.className;
+        handle = frame.handle;
+        depth = stack.size();
+        return end;
+    }
+
+    private abstract class Frame {
+        Frame(String className, int handle) {
+            this.className = className;
+            this.handle = handle;
+        }
+
+        abstract Event advance() throws IOException;
+
+        /* See SerialEventReader.nextValue. */
+        abstract boolean nextValue() throws IOException;
+
+        /*
+         * Read the whole of this object or array with the scanner, which
+         * must not have been advanced yet.
+         */
+        abstract SEntity read() throws IOException;
+
+        /* See SerialEventReader.mark and rollback. */
+        abstract void mark();
+        abstract void rollback();
+
+        final String className;
+        final int handle;
+    }
+
+    /*
+     * The classData for each class in the hierarchy, as in
+     * SerialScan.classData: the serial fields, then any annotation
+     * up to TC_ENDBLOCKDATA.
+     */
+    private class ObjectFrame extends Frame {
+        ObjectFrame(ObjectClassDesc desc, int handle) {
+            super(desc.getType(), handle);
+            this.hierarchy = desc.getHierarchy();
+        }
+
+        Event advance() throws IOException {
+            while (true) {
+                if (fields != null && field < fields.length) {
+                    FieldDesc fieldDesc = fields[field];
+                    if (!fieldStarted) {
+                        fieldStarted = true;
+                        fieldName = fieldDesc.getName();
+                        return Event.FIELD;
+                    }
+                    fieldStarted = false;
+                    field++;
+                    if (fieldDesc instanceof PrimitiveFieldDesc) {
+                        return primitive(
+                                ((PrimitiveFieldDesc) fieldDesc).getClassDesc());
+                    }
+                    return value(nextTag(), false);
+                }
+                if (annotated) {
+                    int tag = nextTag();
+                    if (tag != TC_ENDBLOCKDATA)
+                        return value(tag, false);
+                    annotated = false;
+                }
+                if (!nextLevel())
+                    return pop(Event.END_OBJECT);
+            }
+        }
+
+        boolean nextValue() throws IOException {
+            while (true) {
+                if (fields != null && field < fields.length) {
+                    fieldStarted = true;
+                    fieldName = fields[field].getName();
+                    event = Event.FIELD;
+                    return true;
+                }
+                if (annotated) {
+                    int tag = nextTag();
+                    if (tag != TC_ENDBLOCKDATA) {
+                        pendingTag = tag & 0xff;
+                        return true;
+                    }
+                    annotated = false;
+                }
+                if (!nextLevel()) {
+                    event = pop(Event.END_OBJECT);
+                    return false;
+                }
+            }
+        }
+
+        SEntity read() throws IOException {
+            if (level >= 0)
+                throw new IllegalStateException("Object already started");
+            SObject t = new SObject(className);
+            scan.replaceHandle(handle, t);
+            for (ObjectClassDesc cd : hierarchy)
+                scan.classData(t, cd);
+            return t;
+        }
+
+        /* Move to the class data of the next class in the hierarchy. */
+        private boolean nextLevel() throws IOException {
+            level++;
+            if (level == hierarchy.size())
+                return false;
+            ObjectClassDesc cd = hierarchy.get(level);
+            int flags = cd.getFlags();
+            field = 0;
+            if ((flags & SC_SERIALIZABLE) != 0) {
+                fields = cd.getFields();
+                annotated = ((flags & SC_WRITE_METHOD) != 0);
+            } else if ((flags & SC_EXTERNALIZABLE) != 0) {
+                if ((flags & SC_BLOCK_DATA) == 0)
+                    throw new IOException("Can't handle externalContents");
+                fields = null;
+                annotated = true;
+            } else {
+                fields = null;
+                annotated = false;
+            }
+            return true;
+        }
+
+        void mark() {
+            markLevel = level;
+            markFields = fields;
+            markField = field;
+            markFieldStarted = fieldStarted;
+            markAnnotated = annotated;
+        }
+
+        void rollback() {
+            level = markLevel;
+            fields = markFields;
+            field = markField;
+            fieldStarted = markFieldStarted;
+            annotated = markAnnotated;
+        }
+
+        private final List<ObjectClassDesc> hierarchy;
+        private int level = -1;
+        private FieldDesc[] fields;
+        private int field;
+        private boolean fieldStarted;
+        private boolean annotated;
+        private int markLevel;
+        private FieldDesc[] markFields;
+        private int markField;
+        private boolean markFieldStarted;
+        private boolean markAnnotated;
+    }
+
+    /* An enum constant, reported like SerialScan's SObject for it. */
+    private class EnumFrame extends Frame {
+        EnumFrame(ObjectClassDesc desc, int handle) {
+            super(desc.getType(), handle);
+        }
+
+        Event advance() throws IOException {
+            switch (state++) {
+                case 0:
+                    fieldName = "<name>";
+                    return Event.FIELD;
+                case 1:
+                    Event e = value(nextTag(), false);
+                    if (e != Event.STRING && e != Event.REFERENCE)
+                        throw new StreamCorruptedException("Bad enum constant");
+                    return e;
+                default:
+                    return pop(Event.END_OBJECT);
+            }
+        }
+
+        boolean nextValue() throws IOException {
+            if (state < 2) {
+                state = 1;
+                fieldName = "<name>";
+                event = Event.FIELD;
+                return true;
+            }
+            event = pop(Event.END_OBJECT);
+            return false;
+        }
+
+        SEntity read() throws IOException {
+            if (state > 0)
+                throw new IllegalStateException("Enum constant already started");
+            SObject enumConst = new SObject(className);
+            scan.replaceHandle(handle, enumConst);
+            enumConst.setField("<name>", scan.readString());
+            state = 2;
+            return enumConst;
+        }
+
+        void mark() {
+            markState = state;
+        }
+
+        void rollback() {
+            state = markState;
+        }
+
+        private int state;
+        private int markState;
+    }
+
+    private class ArrayFrame extends Frame {
+        ArrayFrame(ArrayClassDesc desc, int handle, int size) {
+            super(desc.getType(), handle);
+            this.componentDesc = desc.getComponentClassDesc();
+            this.size = size;
+        }
+
+        Event advance() throws IOException {
+            if (index < size) {
+                if (componentDesc instanceof PrimitiveClassDesc) {
+                    PrimitiveClassDesc primDesc =
+                            (PrimitiveClassDesc) componentDesc;
+                    if (skipping) {
+                        long nbytes = (long) (size - index) * primDesc.getSize();
+                        scan.in.skipFully(nbytes);
+                        index = size;
+                        return pop(Event.END_ARRAY);
+                    }
+                    index++;
+                    return primitive(primDesc);
+                }
+                index++;
+                return value(nextTag(), false);
+            }
+            return pop(Event.END_ARRAY);
+        }
+
+        boolean nextValue() throws IOException {
+            if (index < size)
+                return true;
+            event = pop(Event.END_ARRAY);
+            return false;
+        }
+
+        SEntity read() throws IOException {
+            if (index > 0)
+                throw new IllegalStateException("Array already started");
+            index = size;
+            if (componentDesc instanceof PrimitiveClassDesc) {
+                PrimitiveClassDesc primDesc = (PrimitiveClassDesc) componentDesc;
+                long nbytes = (long) size * primDesc.getSize();
+                if (nbytes > Integer.MAX_VALUE)
+                    throw new StreamCorruptedException("Array too large: " + size);
+                SArray array = new SPrimitiveArray(className, primDesc,
+                        scan.in.readBuffer((int) nbytes));
+                scan.replaceHandle(handle, array);
+                return array;
+            }
+            SArray array = new SArray(className, size);
+            scan.replaceHandle(handle, array);
+            for (int i = 0; i < size; i++)
+                array.set(i, componentDesc.read(scan));
+            return array;
+        }
+
+        void mark() {
+            markIndex = index;
+        }
+
+        void rollback() {
+            index = markIndex;
+        }
+
+        private final ClassDesc componentDesc;
+        private final int size;
+        private int index;
+        private int markIndex;
+    }
+
+    private final SerialScan scan;
+    private final List<Frame> stack = new ArrayList<Frame>();
+    private int pendingTag = -1;
+    private boolean skipping;
+    private boolean checkStrings;
+    private boolean decodeStrings;
+    private int markPendingTag = -1;
+    private int markHandle;
+
+    private Event event;
+    private int depth;
+    private String className;
+    private String fieldName;
+    private ByteBuffer blockData;
+    private int handle;
+    private int length;
+    private String string;
+    private PrimitiveClassDesc primitiveDesc;
+    private long primitiveBits;
+}
@@ -0,0 +1,1212 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import static java.io.ObjectStreamConstants.*;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import net.mcmanus.eamonn.serialysis.SerialScan.ArrayClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.ClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.FieldDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.ObjectClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.PrimitiveClassDesc;
+import net.mcmanus.eamonn.serialysis.SerialScan.PrimitiveFieldDesc;
+
+/**
+ * <p>An index of where each object appears in a serial stream, allowing
+ * the objects to be decoded lazily.  Constructing a {@code SerialIndex}
+ * makes one pass over the stream, checking that it is valid and recording
+ * the position and extent of every object, array, string and class
+ * descriptor in it, but not decoding them.  The entities returned by
+ * {@link #getObject getObject} decode their contents from the stream only
+ * when they are accessed, for example with {@link SObject#getField
+ * getField} or {@link SArray#getValue getValue}, so the memory used is
+ * proportional to the part of the stream actually examined.</p>
+ *
+ * <p>Apart from being built lazily, the entities are the same as the ones
+ * {@link SerialScan#readObject} would return, and references between them
+ * are preserved: if two fields refer to the same object then
+ * {@code getField} returns the same {@code SEntity} for both.</p>
+ *
+ * <p>The stream must be in memory or in a file, since entities are
+ * decoded from it in an arbitrary order.  It must not be modified while
+ * the index is in use.  A {@code SerialIndex} and the entities it returns
+ * can be used from several threads at once.</p>
+ *
+ * <p>The index itself can be saved with {@link #write write}, typically
+ * to a file alongside the stream, and loaded again with one of the
+ * constructors that take an {@code InputStream}.  Loading an index does
+ * not read the stream, so a program can go straight to an object near
+ * the end of a very large file.</p>
+ *
+ * <p>Decoded entities are not all kept.  An entity stays the same as long
+ * as something else refers to it, and the most recently decoded ones are
+ * kept in a cache whose size is set with {@link #setCacheSize
+ * setCacheSize}, but otherwise an entity that is no longer referenced
+ * may be decoded again, as a new object, the next time it is needed.</p>
+ */
+public class SerialIndex {
+
+    /**
+     * Index the serial stream in the given buffer, starting at its current
+     * position.  The buffer's position is not changed.
+     *
+     * @param buf the buffer containing the serial stream to be indexed.
+     * @exception IOException if the buffer does not contain a valid
+     * serial stream.
+     */
+    public SerialIndex(ByteBuffer buf) throws IOException {
+        this(new BufferSerialInput(buf));
+    }
+
+    /**
+     * Index the serial stream in the given file, starting at the channel's
+     * current position.  The channel must remain open while the index is
+     * in use.
+     *
+     * @param channel the channel of the file containing the serial stream
+     * to be indexed.
+     * @exception IOException if the file cannot be mapped or does not
+     * contain a valid serial stream.
+     */
+    public SerialIndex(FileChannel channel) throws IOException {
+        this(new ChannelSerialInput(channel, false));
+    }
+
+    /**
+     * Load an index that was saved with {@link #write write} for the
+     * serial stream in the given buffer, starting at its current
+     * position.  The buffer's position is not changed.
+     *
+     * @param buf the buffer containing the serial stream that was indexed.
+     * @param index the stream to read the saved index from.  It is read
+     * to the end of the index but not closed.
+     * @exception IOException if the index cannot be read, or is not an
+     * index for a stream of the length of the one in {@code buf}.
+     */
+    public SerialIndex(ByteBuffer buf, InputStream index) throws IOException {
+        this(new BufferSerialInput(buf), index);
+    }
+
+    /**
+     * Load an index that was saved with {@link #write write} for the
+     * serial stream in the given file, starting at the channel's current
+     * position.  The channel must remain open while the index is in use.
+     *
+     * @param channel the channel of the file containing the serial stream
+     * that was indexed.
+     * @param index the stream to read the saved index from.  It is read
+     * to the end of the index but not closed.
+     * @exception IOException if the file cannot be mapped, or if the
+     * index cannot be read or is not an index for a stream of the length
+     * of the one in the file.
+     */
+    public SerialIndex(FileChannel channel, InputStream index)
+            throws IOException {
+        this(new ChannelSerialInput(channel, false), index);
+    }
+
+    private SerialIndex(SerialInput in) throws IOException {
+        this.source = in;
+        addEpoch(0);
+        IndexingScan scan = new IndexingScan(in);
+        SerialEventReader reader = new SerialEventReader(scan);
+        while (reader.hasNext()) {
+            long start = in.position() - 1;
+            SerialEventReader.Event event = reader.next();
+            switch (event) {
+                case RESET:
+                    continue;
+                case START_OBJECT:
+                case START_ARRAY:
+                    reader.skip();
+                    break;
+                default:
+                    break;
+            }
+            if (objectCount == objectOffsets.length)
+                objectOffsets = grow(objectOffsets);
+            objectOffsets[objectCount++] = start;
+        }
+        length = in.position();
+    }
+
+    private SerialIndex(SerialInput in, InputStream index) throws IOException {
+        this.source = in;
+        // The buffer may only read as far as the section whose length is
+        // known, so that the bytes after the index are left in the stream.
+        IndexInputStream limited = new IndexInputStream(index, 18);
+        DataInputStream din =
+                new DataInputStream(new BufferedInputStream(limited));
+        if (din.readInt() != INDEX_MAGIC)
+            throw new IOException("Not a serial stream index");
+        int version = din.readUnsignedShort();
+        if (version != INDEX_VERSION)
+            throw new IOException("Unsupported index version: " + version);
+        length = din.readLong();
+        try {
+            in.duplicate(length);
+        } catch (EOFException e) {
+            throw new IOException("Index is for a longer stream");
+        }
+
+        objectCount = count(din);
+        limited.allow(objectCount * 8L + 4);
+        objectOffsets = new long[Math.max(objectCount, 1)];
+        for (int i = 0; i < objectCount; i++)
+            objectOffsets[i] = offset(din);
+
+        epochCount = count(din);
+        limited.allow(epochCount * 12L + 4);
+        epochStarts = new long[Math.max(epochCount, 1)];
+        epochHandles = new int[Math.max(epochCount, 1)];
+        for (int i = 0; i < epochCount; i++) {
+            epochStarts[i] = offset(din);
+            epochHandles[i] = din.readInt();
+        }
+
+        handleCount = count(din);
+        limited.allow(handleCount * 16L + 4);
+        starts = new long[Math.max(handleCount, 1)];
+        ends = new long[starts.length];
+        byStart = new int[starts.length];
+        for (int h = 0; h < handleCount; h++) {
+            starts[h] = offset(din);
+            ends[h] = offset(din);
+            byStart[h] = h;
+        }
+        // The saved handles need not be nearly in order, as they are when
+        // they come from a stream, so they are not inserted one by one.
+        sortByStart(0, handleCount, new int[handleCount]);
+
+        refCount = count(din);
+        limited.allow(refCount * 12L);
+        refPositions = new long[Math.max(refCount, 1)];
+        refTargets = new int[refPositions.length];
+        for (int i = 0; i < refCount; i++) {
+            refPositions[i] = offset(din);
+            refTargets[i] = din.readInt();
+            if (refTargets[i] < 0 || refTargets[i] >= handleCount)
+                throw new IOException("Bad handle in index: " + refTargets[i]);
+        }
+    }
+
+    /**
+     * Save this index to the given stream, so that it can be loaded
+     * again without reading the serial stream, using
+     * {@link #SerialIndex(ByteBuffer, InputStream)} or
+     * {@link #SerialIndex(FileChannel, InputStream)}.  The saved index
+     * records the position of each top-level object, reset, handle and
+     * back-reference.  It takes about 16 bytes for each handle in the
+     * stream and 12 for each back-reference.
+     *
+     * @param out the stream to write the index to.  It is flushed but not
+     * closed.
+     * @exception IOException if the index cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dout =
+                new DataOutputStream(new BufferedOutputStream(out));
+        dout.writeInt(INDEX_MAGIC);
+        dout.writeShort(INDEX_VERSION);
+        dout.writeLong(length);
+        dout.writeInt(objectCount);
+        for (int i = 0; i < objectCount; i++)
+            dout.writeLong(objectOffsets[i]);
+        dout.writeInt(epochCount);
+        for (int i = 0; i < epochCount; i++) {
+            dout.writeLong(epochStarts[i]);
+            dout.writeInt(epochHandles[i]);
+        }
+        dout.writeInt(handleCount);
+        for (int h = 0; h < handleCount; h++) {
+            dout.writeLong(starts[h]);
+            dout.writeLong(ends[h]);
+        }
+        dout.writeInt(refCount);
+        for (int i = 0; i < refCount; i++) {
+            dout.writeLong(refPositions[i]);
+            dout.writeInt(refTargets[i]);
+        }
+        dout.flush();
+    }
+
+    private static int count(DataInputStream din) throws IOException {
+        int n = din.readInt();
+        if (n < 0)
+            throw new IOException("Bad count in index: " + n);
+        return n;
+    }
+
+    private long offset(DataInputStream din) throws IOException {
+        long offset = din.readLong();
+        if (offset < 0 || offset > length)
+            throw new IOException("Bad offset in index: " + offset);
+        return offset;
+    }
+
+    /**
+     * The number of top-level objects in the stream, that is, the number
+     * of times {@link SerialScan#readObject} could be called on it.
+     */
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Return the given top-level object in the stream.  This is the same
+     * as the result of the {@code (i+1)}th call to
+     * {@link SerialScan#readObject} on the stream, except that objects
+     * and arrays are not decoded until they are accessed.
+     *
+     * @param i the index of the object, from 0 to
+     * {@link #getObjectCount()}{@code - 1}.
+     * @exception IndexOutOfBoundsException if {@code i} is out of range.
+     * @exception IOException if the object cannot be decoded.
+     */
+    public SEntity getObject(int i) throws IOException {
+        if (i < 0 || i >= objectCount)
+            throw new IndexOutOfBoundsException(String.valueOf(i));
+        return decoder(objectOffsets[i]).readObject();
+    }
+
+    /**
+     * The number of handles assigned in the stream, counting handles
+     * assigned again after a reset.  The handles are numbered from 0 to
+     * {@code getHandleCount() - 1} in the order they are assigned, so
+     * that handle {@code n} is the {@code (n+1)}th object, array, string,
+     * enumeration constant or class descriptor in the stream.
+     */
+    public int getHandleCount() {
+        return handleCount;
+    }
+
+    /**
+     * Return the entity with the given handle.  Objects and arrays are
+     * not decoded until they are accessed.
+     *
+     * @param handle the handle, from 0 to
+     * {@link #getHandleCount()}{@code - 1}.
+     * @exception IndexOutOfBoundsException if {@code handle} is out of
+     * range.
+     * @exception IOException if the entity cannot be decoded.
+     */
+    public SEntity getHandle(int handle) throws IOException {
+        if (handle < 0 || handle >= handleCount)
+            throw new IndexOutOfBoundsException(String.valueOf(handle));
+        return entity(handle);
+    }
+
+    /**
+     * Return the index of the top-level object that contains the entity
+     * with the given handle, that is, the object whose
+     * {@link SerialScan#readObject} call reads it.
+     *
+     * @param handle the handle, from 0 to
+     * {@link #getHandleCount()}{@code - 1}.
+     * @exception IndexOutOfBoundsException if {@code handle} is out of
+     * range.
+     */
+    public int getOwningObjectIndex(int handle) {
+        if (handle < 0 || handle >= handleCount)
+            throw new IndexOutOfBoundsException(String.valueOf(handle));
+        long position = starts[handle];
+        int lo = 0;
+        int hi = objectCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (objectOffsets[mid] <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Set the number of recently decoded entities that are kept even when
+     * nothing else refers to them.  The entities in the cache are held
+     * through soft references, so the garbage collector can still reclaim
+     * them if memory runs short.  The default is {@value #DEFAULT_CACHE_SIZE}.
+     *
+     * @param size the new cache size, which can be 0.
+     * @exception IllegalArgumentException if {@code size} is negative.
+     */
+    public synchronized void setCacheSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative cache size: " + size);
+        cacheSize = size;
+        while (recent.size() > size) {
+            Integer eldest = recent.keySet().iterator().next();
+            recent.remove(eldest);
+        }
+    }
+
+    /**
+     * The number of recently decoded entities that are kept even when
+     * nothing else refers to them.
+     */
+    public synchronized int getCacheSize() {
+        return cacheSize;
+    }
+
+    private Decoder decoder(long position) throws IOException {
+        return new Decoder(source.duplicate(position));
+    }
+
+    /*
+     * The handle whose representation starts at the given position.
+     */
+    private int handleAt(long position) throws IOException {
+        int lo = 0;
+        int hi = handleCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midPos = starts[byStart[mid]];
+            if (midPos < position)
+                lo = mid + 1;
+            else if (midPos > position)
+                hi = mid - 1;
+            else
+                return byStart[mid];
+        }
+        throw new StreamCorruptedException("No handle at position " + position);
+    }
+
+    /*
+     * The index of the handle with the given wire handle value, as seen
+     * by an entity at the given position.
+     */
+    private int resolve(int wireHandle, long position) throws IOException {
+        int epoch = epochAt(position);
+        int first = epochHandles[epoch];
+        int limit = (epoch + 1 < epochCount) ?
+                epochHandles[epoch + 1] : handleCount;
+        int i = wireHandle - baseWireHandle;
+        if (i < 0 || i >= limit - first)
+            throw new StreamCorruptedException("Bad handle: " + wireHandle);
+        return first + i;
+    }
+
+    /*
+     * The following methods give SerialPatch access to the layout of the
+     * stream.  Handles are numbered across the whole stream, as for
+     * getHandle, and epochs are numbered from 0 at the start of the stream.
+     */
+
+    /*
+     * A duplicate of the input positioned at the given offset.
+     */
+    SerialInput input(long position) throws IOException {
+        return source.duplicate(position);
+    }
+
+    /*
+     * The position of the end of the indexed stream.
+     */
+    long length() {
+        return length;
+    }
+
+    /*
+     * The epoch that the given position is in.
+     */
+    int epochAt(long position) {
+        int lo = 0;
+        int hi = epochCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (epochStarts[mid] <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /*
+     * The epoch in which the given handle was assigned.
+     */
+    private int epochOfHandle(int handle) {
+        int lo = 0;
+        int hi = epochCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (epochHandles[mid] <= handle)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /*
+     * The position where the given epoch ends, which is the end of the
+     * stream for the last epoch.
+     */
+    long epochEnd(int epoch) {
+        return (epoch + 1 < epochCount) ? epochStarts[epoch + 1] : length;
+    }
+
+    /*
+     * The wire handle of the given handle within the given epoch.
+     */
+    int wireHandle(int handle, int epoch) {
+        return baseWireHandle + handle - epochHandles[epoch];
+    }
+
+    /*
+     * True if the given handle was assigned in the given epoch.
+     */
+    boolean inEpoch(int handle, int epoch) {
+        return handle >= epochHandles[epoch]
+                && (epoch + 1 == epochCount || handle < epochHandles[epoch + 1]);
+    }
+
+    /*
+     * The number of handles whose representation starts before the given
+     * position.  At the boundary between two values, this is the number
+     * of handles assigned so far, so the handles assigned within a value
+     * running from start to end are handlesBefore(start) up to
+     * handlesBefore(end).
+     */
+    int handlesBefore(long position) {
+        int lo = 0;
+        int hi = handleCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[byStart[mid]] < position)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * The position where the given handle's representation starts.
+     */
+    long handleStart(int handle) {
+        return starts[handle];
+    }
+
+    /*
+     * The handle of the given entity, which must have been returned by
+     * this index, or -1 if it was not.
+     */
+    synchronized int handleOf(SEntity entity) {
+        Integer h = handles.get(entity);
+        return (h == null) ? -1 : h;
+    }
+
+    /*
+     * The number of TC_REFERENCEs in the stream, and the position and
+     * target handle of each, in stream order.
+     */
+    int referenceCount() {
+        return refCount;
+    }
+
+    long referencePosition(int i) {
+        return refPositions[i];
+    }
+
+    int referenceTarget(int i) {
+        return refTargets[i];
+    }
+
+    /*
+     * The index of the first TC_REFERENCE at or after the given position.
+     */
+    int firstReferenceAt(long position) {
+        int lo = 0;
+        int hi = refCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (refPositions[mid] < position)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /*
+     * Where a field or array element is in the stream.  If the slot holds
+     * a primitive, primitive is its type and the slot is exactly as long
+     * as that type.  Otherwise the slot holds a complete value, which can
+     * be replaced by any other value.
+     */
+    static class Slot {
+        Slot(long start, long end, PrimitiveClassDesc primitive) {
+            this.start = start;
+            this.end = end;
+            this.primitive = primitive;
+        }
+
+        final long start;
+        final long end;
+        final PrimitiveClassDesc primitive;
+    }
+
+    /*
+     * The slot of the named field in the object with the given handle.  If
+     * more than one class in the hierarchy has a field of that name, this
+     * is the one that SObject.getField returns, which is the last.
+     */
+    Slot fieldSlot(int handle, String name) throws IOException {
+        Decoder d = decoder(starts[handle]);
+        if (d.in.readByte() != TC_OBJECT)
+            throw new IllegalArgumentException("Not an ordinary object");
+        SerialInput in = d.in;
+        ObjectClassDesc desc = d.classDesc();
+        Slot slot = null;
+        for (ObjectClassDesc cd : desc.getHierarchy()) {
+            int flags = cd.getFlags();
+            if ((flags & SC_SERIALIZABLE) != 0) {
+                for (FieldDesc fieldDesc : cd.getFields()) {
+                    long start = in.position();
+                    PrimitiveClassDesc primitive = null;
+                    if (fieldDesc instanceof PrimitiveFieldDesc) {
+                        primitive = ((PrimitiveFieldDesc) fieldDesc).getClassDesc();
+                        in.skipFully(primitive.getSize());
+                    } else
+                        skipValue(in, in.readByte());
+                    if (fieldDesc.getName().equals(name))
+                        slot = new Slot(start, in.position(), primitive);
+                }
+                if ((flags & SC_WRITE_METHOD) != 0)
+                    skipAnnotation(in);
+            } else if ((flags & SC_EXTERNALIZABLE) != 0)
+                skipAnnotation(in);
+        }
+        if (slot == null)
+            throw new IllegalArgumentException("No field " + name + " in " +
+                    desc.getType());
+        return slot;
+    }
+
+    /*
+     * The slot of the given element of the array with the given handle.
+     */
+    Slot elementSlot(int handle, int index) throws IOException {
+        Decoder d = decoder(starts[handle]);
+        if (d.in.readByte() != TC_ARRAY)
+            throw new IllegalArgumentException("Not an array");
+        SerialInput in = d.in;
+        ArrayClassDesc desc = (ArrayClassDesc) d.classDesc();
+        int size = in.readInt();
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        ClassDesc componentDesc = desc.getComponentClassDesc();
+        if (componentDesc instanceof PrimitiveClassDesc) {
+            PrimitiveClassDesc primitive = (PrimitiveClassDesc) componentDesc;
+            long start = in.position() + (long) index * primitive.getSize();
+            return new Slot(start, start + primitive.getSize(), primitive);
+        }
+        for (int i = 0; i < index; i++)
+            skipValue(in, in.readByte());
+        long start = in.position();
+        skipValue(in, in.readByte());
+        return new Slot(start, in.position(), null);
+    }
+
+    /*
+     * Skip the value introduced by the given type code, which has just
+     * been read.  A value with a handle is skipped in one step.
+     */
+    private void skipValue(SerialInput in, int code) throws IOException {
+        switch (code) {
+            case TC_NULL:
+                break;
+            case TC_REFERENCE:
+                in.readInt();
+                break;
+            case TC_OBJECT:
+            case TC_ARRAY:
+            case TC_STRING:
+            case TC_LONGSTRING:
+            case TC_ENUM:
+            case TC_CLASS:
+                in.skipFully(ends[handleAt(in.position() - 1)] - in.position());
+                break;
+            default:
+                throw new StreamCorruptedException("Bad type code: " + code);
+        }
+    }
+
+    private void skipAnnotation(SerialInput in) throws IOException {
+        while (true) {
+            int code = in.readByte();
+            switch (code) {
+                case TC_BLOCKDATA:
+                    in.skipFully(in.readUnsignedByte());
+                    break;
+                case TC_BLOCKDATALONG:
+                    in.skipFully(in.readInt() & 0xffffffffL);
+                    break;
+                case TC_ENDBLOCKDATA:
+                    return;
+                default:
+                    skipValue(in, code);
+                    break;
+            }
+        }
+    }
+
+    /*
+     * The entity for the given handle, which is created when it is needed
+     * and is not already cached.  Objects and object arrays are created as
+     * empty shells which fill themselves in when accessed.  Other entities
+     * are small, or in the case of primitive arrays are slices of the
+     * input, so they are built straight away.
+     */
+    private synchronized SEntity entity(int h) throws IOException {
+        SEntity entity = cached(h);
+        if (entity != null)
+            return entity;
+        Decoder d = decoder(starts[h]);
+        int code = d.in.readByte();
+        switch (code) {
+            case TC_OBJECT: {
+                ObjectClassDesc desc = d.classDesc();
+                entity = new LazySObject(desc.getType(), h);
+                break;
+            }
+            case TC_ARRAY: {
+                ArrayClassDesc desc = (ArrayClassDesc) d.classDesc();
+                int size = d.in.readInt();
+                ClassDesc componentDesc = desc.getComponentClassDesc();
+                if (componentDesc instanceof PrimitiveClassDesc) {
+                    entity = d.newPrimitiveArray(desc.getType(),
+                            (PrimitiveClassDesc) componentDesc, size, starts[h]);
+                } else
+                    entity = new LazySArray(desc.getType(), size, h);
+                break;
+            }
+            case TC_STRING:
+                entity = new SString(d.in.readUTF());
+                break;
+            case TC_LONGSTRING:
+                entity = new SString(d.in.readUTF(d.in.readLong()));
+                break;
+            case TC_ENUM: {
+                ObjectClassDesc desc = d.classDesc();
+                SObject enumConst = new SObject(desc.getType());
+                enumConst.setField("<name>", d.readObject());
+                entity = enumConst;
+                break;
+            }
+            case TC_CLASS:
+                entity = d.classDesc();
+                break;
+            case TC_CLASSDESC:
+            case TC_PROXYCLASSDESC:
+                entity = d.decodeClassDesc(code);
+                break;
+            default:
+                throw new StreamCorruptedException("Bad type code: " + code);
+        }
+        cache(h, entity);
+        return entity;
+    }
+
+    /*
+     * The entity for the given handle if it has already been built and
+     * has not been collected.  Called with the lock held.
+     */
+    private SEntity cached(int h) {
+        Integer key = h;
+        SEntity entity = kept.get(key);
+        if (entity != null)
+            return entity;
+        Reference<SEntity> ref = live.get(key);
+        if (ref != null) {
+            entity = ref.get();
+            if (entity != null) {
+                if (cacheSize > 0)
+                    recent.put(key, new SoftReference<SEntity>(entity));
+                return entity;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Remember the entity built for the given handle.  Class descriptors
+     * are few and are needed to decode everything else, so they are kept,
+     * as described at keep(int, SEntity).  Other entities are found
+     * through weak references as long as they are in use, and through the
+     * cache for a while after that.  Called with the lock held.
+     */
+    private void cache(int h, SEntity entity) {
+        Integer key = h;
+        handles.put(entity, key);
+        if (entity instanceof ClassDesc)
+            keep(key, entity);
+        else
+            track(key, entity);
+    }
+
+    /*
+     * Keep a class descriptor until descriptors from another epoch are
+     * needed.  A writer sends its descriptors again after each reset, so
+     * keeping every one would grow with the number of resets.  The
+     * descriptors of the epoch that was left are then found like other
+     * entities, and decoded again if they have been collected.
+     */
+    private void keep(Integer key, SEntity desc) {
+        int epoch = epochOfHandle(key);
+        if (epoch != keptEpoch) {
+            for (Map.Entry<Integer, SEntity> e : kept.entrySet())
+                track(e.getKey(), e.getValue());
+            kept.clear();
+            keptEpoch = epoch;
+        }
+        kept.put(key, desc);
+    }
+
+    private void track(Integer key, SEntity entity) {
+        HandleReference ref;
+        while ((ref = (HandleReference) queue.poll()) != null) {
+            if (live.get(ref.handle) == ref)
+                live.remove(ref.handle);
+        }
+        live.put(key, new HandleReference(entity, key, queue));
+        if (cacheSize > 0)
+            recent.put(key, new SoftReference<SEntity>(entity));
+    }
+
+    private void addHandle(SEntity o, long start) {
+        if (handleCount == starts.length) {
+            starts = grow(starts);
+            ends = grow(ends);
+            byStart = grow(byStart);
+        }
+        int h = handleCount++;
+        starts[h] = start;
+        if (o instanceof ClassDesc) {
+            handles.put(o, h);
+            keep(h, o);
+        }
+        insertByStart(h);
+    }
+
+    private void insertByStart(int h) {
+        /* Handles are mostly assigned in the order they appear in the
+         * stream.  The exceptions are objects, arrays and enums whose
+         * class descriptor appears inline: the descriptor gets its handle
+         * first although it comes later.  So this insertion is nearly
+         * always immediate. */
+        long start = starts[h];
+        int i = h;
+        while (i > 0 && starts[byStart[i - 1]] > start) {
+            byStart[i] = byStart[i - 1];
+            i--;
+        }
+        byStart[i] = h;
+    }
+
+    /*
+     * Merge sort byStart[lo, hi) by start position, keeping handles with
+     * the same start in order.  A range whose halves are already in order
+     * is not merged, so sorted input takes linear time.
+     */
+    private void sortByStart(int lo, int hi, int[] tmp) {
+        if (hi - lo < 2)
+            return;
+        int mid = (lo + hi) >>> 1;
+        sortByStart(lo, mid, tmp);
+        sortByStart(mid, hi, tmp);
+        if (starts[byStart[mid - 1]] <= starts[byStart[mid]])
+            return;
+        System.arraycopy(byStart, lo, tmp, lo, hi - lo);
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j == hi || (i < mid && starts[tmp[i]] <= starts[tmp[j]]))
+                byStart[k] = tmp[i++];
+            else
+                byStart[k] = tmp[j++];
+        }
+    }
+
+    private void addReference(long position, int target) {
+        if (refCount == refPositions.length) {
+            refPositions = grow(refPositions);
+            refTargets = grow(refTargets);
+        }
+        refPositions[refCount] = position;
+        refTargets[refCount] = target;
+        refCount++;
+    }
+
+    private void addEpoch(long start) {
+        if (epochCount == epochStarts.length) {
+            epochStarts = grow(epochStarts);
+            epochHandles = grow(epochHandles);
+        }
+        epochStarts[epochCount] = start;
+        epochHandles[epochCount] = handleCount;
+        epochCount++;
+    }
+
+    private static long[] grow(long[] a) {
+        long[] b = new long[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /*
+     * The scanner for the indexing pass, which records where each handle
+     * starts and ends.  The class descriptors it builds are kept, as if
+     * they had been decoded, until the next reset.
+     */
+    private class IndexingScan extends SerialScan {
+        IndexingScan(SerialInput in) throws IOException {
+            super(in);
+        }
+
+        int newHandle(SEntity o, long start) throws IOException {
+            addHandle(o, start);
+            return super.newHandle(o, start);
+        }
+
+        void endHandle(int handle) {
+            int h = epochHandles[epochCount - 1] + handle - baseWireHandle;
+            ends[h] = in.position();
+        }
+
+        void reset() {
+            super.reset();
+            addEpoch(in.position());
+        }
+
+        /* Every TC_REFERENCE is looked up here straight after its handle
+         * is read, so this is where references are recorded. */
+        SEntity handle(int handle) throws IOException {
+            SEntity x = super.handle(handle);
+            addReference(in.position() - 5,
+                    epochHandles[epochCount - 1] + handle - baseWireHandle);
+            return x;
+        }
+    }
+
+    /*
+     * A scanner that decodes the contents of one entity.  Every value
+     * nested in it, and every reference from it, is replaced by the
+     * corresponding entity from the index, and the input skips over the
+     * nested value's representation.
+     */
+    private class Decoder extends SerialScan {
+        Decoder(SerialInput in) throws IOException {
+            super(in, false);
+        }
+
+        private SEntity inline() throws IOException {
+            int h = handleAt(in.position() - 1);
+            in.skipFully(ends[h] - in.position());
+            return entity(h);
+        }
+
+        SEntity newObject() throws IOException {
+            return inline();
+        }
+
+        SArray newArray() throws IOException {
+            return (SArray) inline();
+        }
+
+        SString newString() throws IOException {
+            return (SString) inline();
+        }
+
+        SString newLongString() throws IOException {
+            return (SString) inline();
+        }
+
+        SObject newEnum() throws IOException {
+            return (SObject) inline();
+        }
+
+        ClassDesc newClass() throws IOException {
+            return (ClassDesc) inline();
+        }
+
+        /*
+         * Decode a class descriptor at the current position, which
+         * follows its type code.  Nested descriptors and class annotations
+         * come from the index as usual.
+         */
+        ObjectClassDesc decodeClassDesc(int code) throws IOException {
+            return super.classDesc(code);
+        }
+
+        ObjectClassDesc classDesc(int code) throws IOException {
+            switch (code) {
+                case TC_CLASSDESC:
+                case TC_PROXYCLASSDESC:
+                    return (ObjectClassDesc) inline();
+                case TC_NULL:
+                    return null;
+                case TC_REFERENCE:
+                    return (ObjectClassDesc) prevObject();
+                default:
+                    throw new StreamCorruptedException("Bad class descriptor");
+            }
+        }
+
+        SEntity prevObject() throws IOException {
+            long position = in.position();
+            return entity(resolve(in.readInt(), position));
+        }
+
+        int newHandle(SEntity o, long start) {
+            return -1;
+        }
+    }
+
+    private class LazySObject extends SObject {
+        LazySObject(String type, int handle) {
+            super(type);
+            this.handle = handle;
+        }
+
+        public SEntity getField(String name) {
+            load();
+            return super.getField(name);
+        }
+
+        public Set<String> getFieldNames() {
+            load();
+            return super.getFieldNames();
+        }
+
+        public List<SEntity> getAnnotations() {
+            load();
+            return super.getAnnotations();
+        }
+
+        void renderContents(SerialRenderer.Output out) throws IOException {
+            load();
+            super.renderContents(out);
+        }
+
+        private synchronized void load() {
+            if (loaded)
+                return;
+            try {
+                Decoder d = decoder(starts[handle] + 1);
+                ObjectClassDesc desc = d.classDesc();
+                for (ObjectClassDesc cd : desc.getHierarchy())
+                    d.classData(this, cd);
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                        "Could not decode object at " + starts[handle], e);
+            }
+            loaded = true;
+        }
+
+        private final int handle;
+        private boolean loaded;
+    }
+
+    private class LazySArray extends SArray {
+        LazySArray(String type, int size, int handle) {
+            super(type);
+            this.size = size;
+            this.handle = handle;
+        }
+
+        public int getLength() {
+            return size;
+        }
+
+        synchronized SEntity[] elements() {
+            if (elements == null) {
+                try {
+                    Decoder d = decoder(starts[handle] + 1);
+                    ArrayClassDesc desc = (ArrayClassDesc) d.classDesc();
+                    d.in.readInt();
+                    ClassDesc componentDesc = desc.getComponentClassDesc();
+                    SEntity[] a = new SEntity[size];
+                    for (int i = 0; i < size; i++)
+                        a[i] = componentDesc.read(d);
+                    elements = a;
+                } catch (IOException e) {
+                    throw new IllegalStateException(
+                            "Could not decode array at " + starts[handle], e);
+                }
+            }
+            return elements;
+        }
+
+        private final int size;
+        private final int handle;
+        private SEntity[] elements;
+    }
+
+    /**
+     * An input stream that reads no more than the bytes it has been
+     * allowed to, which are the bytes of the saved index that are known
+     * to come next.
+     */
+    private static class IndexInputStream extends InputStream {
+        IndexInputStream(InputStream in, long allowed) {
+            this.in = in;
+            this.allowed = allowed;
+        }
+
+        void allow(long n) {
+            allowed += n;
+        }
+
+        public int read() throws IOException {
+            if (allowed == 0)
+                return -1;
+            int b = in.read();
+            if (b >= 0)
+                allowed--;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (allowed == 0)
+                return -1;
+            int n = in.read(b, off, (int) Math.min(len, allowed));
+            if (n > 0)
+                allowed -= n;
+            return n;
+        }
+
+        private final InputStream in;
+        private long allowed;
+    }
+
+    private static class HandleReference extends WeakReference<SEntity> {
+        HandleReference(SEntity entity, Integer handle,
+                ReferenceQueue<SEntity> queue) {
+            super(entity, queue);
+            this.handle = handle;
+        }
+
+        final Integer handle;
+    }
+
+    /**
+     * The number of recently decoded entities kept by a new index.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final int INDEX_MAGIC = 0x53534958;  // "SSIX"
+    private static final int INDEX_VERSION = 1;
+
+    private final SerialInput source;
+    // Position of the end of the indexed stream
+    private final long length;
+
+    // Position of each top-level object
+    private long[] objectOffsets = new long[16];
+    private int objectCount;
+
+    // For each handle, where it starts and ends, and its entity if built
+    private long[] starts = new long[256];
+    private long[] ends = new long[256];
+    private int handleCount;
+    // Handles sorted by starting position
+    private int[] byStart = new int[256];
+
+    // Position and target handle of each TC_REFERENCE
+    private long[] refPositions = new long[64];
+    private int[] refTargets = new int[64];
+    private int refCount;
+
+    // Position of each reset, and the first handle assigned after it
+    private long[] epochStarts = new long[4];
+    private int[] epochHandles = new int[4];
+    private int epochCount;
+
+    // Entities that have been built, by handle; see cache(int, SEntity)
+    private final Map<Integer, SEntity> kept = new HashMap<Integer, SEntity>();
+    // The epoch of the class descriptors in kept
+    private int keptEpoch;
+    private final Map<Integer, Reference<SEntity>> live =
+            new HashMap<Integer, Reference<SEntity>>();
+    private final ReferenceQueue<SEntity> queue = new ReferenceQueue<SEntity>();
+    // The handle of each entity that has been built and is still in use
+    private final Map<SEntity, Integer> handles =
+            new WeakHashMap<SEntity, Integer>();
+    private int cacheSize = DEFAULT_CACHE_SIZE;
+    private final Map<Integer, SoftReference<SEntity>> recent =
+            new LinkedHashMap<Integer, SoftReference<SEntity>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, SoftReference<SEntity>> eldest) {
+            return size() > cacheSize;
+        }
+    };
+}
@@ -0,0 +1,176 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * The source of bytes for a SerialScan.  This has the DataInput methods
+ * that the scanner needs, plus a few that let an implementation avoid
+ * copying, such as readBuffer.  Positions are counted from the start of
+ * the serial stream, i.e. the stream header is at position 0.
+ */
+abstract class SerialInput implements Closeable {
+    /**
+     * Read one byte, or return -1 if the input is at its end.
+     */
+    abstract int read() throws IOException;
+
+    abstract byte readByte() throws IOException;
+    abstract short readShort() throws IOException;
+    abstract int readInt() throws IOException;
+    abstract long readLong() throws IOException;
+
+    /**
+     * Read exactly {@code len} bytes into the given array.
+     */
+    abstract void readFully(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Return a buffer containing the next {@code len} bytes, positioned
+     * at 0.  Implementations that have the bytes in memory already
+     * return a slice of that memory rather than a copy.
+     */
+    abstract ByteBuffer readBuffer(int len) throws IOException;
+
+    /**
+     * Skip exactly {@code len} bytes.
+     */
+    abstract void skipFully(long len) throws IOException;
+
+    /**
+     * Read {@code len} bytes of modified UTF-8, as written by
+     * {@link java.io.DataOutput#writeUTF writeUTF} but without the
+     * initial two-byte length.
+     */
+    abstract String readUTF(long len) throws IOException;
+
+    /**
+     * Read {@code len} bytes of modified UTF-8 that are a class name,
+     * field name or type signature, and return the canonical String
+     * for them from {@link #symbols}.
+     */
+    abstract String readSymbol(int len) throws IOException;
+
+    /**
+     * The number of bytes read so far.
+     */
+    abstract long position();
+
+    /**
+     * Return a new input that reads the same bytes as this one, starting
+     * at the given position.  This input is not affected.
+     *
+     * @exception UnsupportedOperationException if this input can't be
+     * read out of order, for example because it is an InputStream.
+     */
+    abstract SerialInput duplicate(long position) throws IOException;
+
+    public abstract void close() throws IOException;
+
+    int readUnsignedByte() throws IOException {
+        return readByte() & 0xff;
+    }
+
+    int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    String readUTF() throws IOException {
+        return readUTF(readUnsignedShort());
+    }
+
+    /**
+     * Skip {@code len} bytes of modified UTF-8, checking that they are
+     * well-formed but without decoding them.
+     */
+    void skipUTF(long len) throws IOException {
+        if (utfScratch == null)
+            utfScratch = new byte[8192];
+        byte[] chunk = utfScratch;
+        long remaining = len;
+        int kept = 0;
+        while (remaining > 0) {
+            int n = (int) Math.min(chunk.length - kept, remaining);
+            readFully(chunk, kept, n);
+            remaining -= n;
+            n += kept;
+            int used = UTFDecoder.check(chunk, 0, n, len - remaining - n);
+            kept = n - used;
+            System.arraycopy(chunk, used, chunk, 0, kept);
+        }
+        if (kept > 0)
+            throw UTFDecoder.badUTF(len - kept);
+    }
+
+    String readSymbol() throws IOException {
+        return readSymbol(readUnsignedShort());
+    }
+
+    /*
+     * A BatchScan worker replaces this with a table that it reuses for
+     * every payload it scans.
+     */
+    SymbolTable symbols = new SymbolTable();
+
+    private byte[] utfScratch;
+}
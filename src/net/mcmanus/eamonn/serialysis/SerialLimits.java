@@ -0,0 +1,337 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the resources that a {@code SerialScan} may use to read a
+ * stream, so that a stream from an untrusted source cannot make it
+ * allocate huge amounts of memory, recurse until the stack overflows,
+ * or run indefinitely.  A few bytes of serial stream can declare an
+ * array of two billion elements, so without limits the size of what is
+ * read is controlled by whoever wrote the stream.
+ *
+ * <p>Limits are set on a scanner with {@link SerialScan#setLimits
+ * SerialScan.setLimits}, or given to the {@code SerialScan.scanAll}
+ * methods that scan batches of streams.  When a limit is exceeded, the scanner throws
+ * {@link SerialLimitException} before allocating anything for the item
+ * that exceeded it.  Every limit is initially unlimited.</p>
+ *
+ * <p>The totals of elements and bytes, and the timeout, apply separately
+ * to each call to {@link SerialScan#readObject()}, and in the same way
+ * to each top-level object that is skipped, visited, iterated over or
+ * otherwise read by the scanner without {@code readObject}.  The handle limit
+ * applies to the scanner's handle table, which grows as objects are read
+ * until the stream is reset.</p>
+ */
+public class SerialLimits {
+    /**
+     * Create limits with every value unlimited.
+     */
+    public SerialLimits() {
+    }
+
+    /**
+     * Set the maximum length of any one array, including arrays of
+     * primitives and the list of interfaces in a proxy class descriptor.
+     *
+     * @exception IllegalArgumentException if the value is negative.
+     */
+    public void setMaxArrayLength(int maxArrayLength) {
+        this.maxArrayLength = check(maxArrayLength);
+    }
+
+    public int getMaxArrayLength() {
+        return maxArrayLength;
+    }
+
+    /**
+     * Set the maximum total number of array elements read by one call
+     * to {@code readObject}, counting all of the arrays in the object
+     * graph.
+     *
+     * @exception IllegalArgumentException if the value is negative.
+     */
+    public void setMaxElements(long maxElements) {
+        this.maxElements = check(maxElements);
+    }
+
+    public long getMaxElements() {
+        return maxElements;
+    }
+
+    /**
+     * Set the maximum total number of bytes of primitive array data,
+     * block data, and strings read by one call to {@code readObject}.
+     *
+     * @exception IllegalArgumentException if the value is negative.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = check(maxBytes);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Set the maximum number of entries in the handle table, which is
+     * the number of objects, strings, arrays, and class descriptors read
+     * since the start of the stream or its last reset.
+     *
+     * @exception IllegalArgumentException if the value is negative.
+     */
+    public void setMaxHandles(int maxHandles) {
+        this.maxHandles = check(maxHandles);
+    }
+
+    public int getMaxHandles() {
+        return maxHandles;
+    }
+
+    /**
+     * Set the maximum nesting of objects, arrays, and class descriptors
+     * within one another.  The object returned by {@code readObject} is
+     * at depth 1.
+     *
+     * @exception IllegalArgumentException if the value is negative.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = check(maxDepth);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Set the maximum length in bytes of the modified UTF-8 encoding of
+     * any one string.
+     *
+     * @exception IllegalArgumentException if the value is negative.
+     */
+    public void setMaxStringLength(long maxStringLength) {
+        this.maxStringLength = check(maxStringLength);
+    }
+
+    public long getMaxStringLength() {
+        return maxStringLength;
+    }
+
+    /**
+     * Set the maximum time that one call to {@code readObject} may take.
+     * The time is checked as each object is read, so a read that is
+     * blocked waiting for input is not interrupted, but the scan fails
+     * as soon as the input arrives.
+     *
+     * @param time the maximum time, or 0 for no limit.
+     * @param unit the unit of {@code time}.
+     * @exception IllegalArgumentException if {@code time} is negative.
+     */
+    public void setTimeout(long time, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(check(time));
+    }
+
+    /**
+     * Return the maximum time that one call to {@code readObject} may
+     * take, in the given unit, or 0 if there is no limit.
+     */
+    public long getTimeout(TimeUnit unit) {
+        return unit.convert(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static int check(int value) {
+        return (int) check((long) value);
+    }
+
+    private static long check(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Negative limit: " + value);
+        return value;
+    }
+
+    /*
+     * The use of the limits by one scanner.  The values are copied when
+     * the budget is made, so later changes to the SerialLimits do not
+     * affect a scanner that is already using them.
+     */
+    static class Budget {
+        Budget(SerialLimits limits) {
+            maxArrayLength = limits.maxArrayLength;
+            maxElements = limits.maxElements;
+            maxBytes = limits.maxBytes;
+            maxHandles = limits.maxHandles;
+            maxDepth = limits.maxDepth;
+            maxStringLength = limits.maxStringLength;
+            timeoutNanos = limits.timeoutNanos;
+        }
+
+        private Budget(Budget budget) {
+            maxArrayLength = budget.maxArrayLength;
+            maxElements = budget.maxElements;
+            maxBytes = budget.maxBytes;
+            maxHandles = budget.maxHandles;
+            maxDepth = budget.maxDepth;
+            maxStringLength = budget.maxStringLength;
+            timeoutNanos = budget.timeoutNanos;
+        }
+
+        /* A budget with the same limits and nothing used yet. */
+        Budget copy() {
+            return new Budget(this);
+        }
+
+        /*
+         * Field values are read with readObject too, so only the
+         * outermost call starts a new budget.
+         */
+        void start() {
+            if (nesting++ > 0)
+                return;
+            depth = 0;
+            elements = 0;
+            bytes = 0;
+            if (timeoutNanos > 0)
+                deadline = System.nanoTime() + timeoutNanos;
+        }
+
+        void end() {
+            nesting--;
+        }
+
+        /*
+         * Save and restore what has been used, for SerialEventReader.mark
+         * and rollback.
+         */
+        void mark() {
+            markNesting = nesting;
+            markDepth = depth;
+            markElements = elements;
+            markBytes = bytes;
+        }
+
+        void rollback() {
+            nesting = markNesting;
+            depth = markDepth;
+            elements = markElements;
+            bytes = markBytes;
+        }
+
+        /* Start the time limit again for a read that resumes later. */
+        void restartClock() {
+            if (timeoutNanos > 0)
+                deadline = System.nanoTime() + timeoutNanos;
+        }
+
+        void enter() throws SerialLimitException {
+            if (++depth > maxDepth)
+                throw exceeded("maxDepth", "Nesting deeper than " + maxDepth);
+            checkTime();
+        }
+
+        void exit() {
+            depth--;
+        }
+
+        void array(long length) throws SerialLimitException {
+            if (length > maxArrayLength)
+                throw exceeded("maxArrayLength", "Array length " + length);
+            elements += length;
+            if (elements > maxElements)
+                throw exceeded("maxElements", "More than " + maxElements + " array elements");
+        }
+
+        void bytes(long n) throws SerialLimitException {
+            bytes += n;
+            if (bytes > maxBytes)
+                throw exceeded("maxBytes", "More than " + maxBytes + " bytes of data");
+        }
+
+        void string(long length) throws SerialLimitException {
+            if (length > maxStringLength)
+                throw exceeded("maxStringLength", "String length " + length);
+            bytes(length);
+        }
+
+        /* Called before adding a handle to a table of the given size. */
+        void handle(int size) throws SerialLimitException {
+            if (size >= maxHandles)
+                throw exceeded("maxHandles", "More than " + maxHandles + " handles");
+            checkTime();
+        }
+
+        private void checkTime() throws SerialLimitException {
+            if (timeoutNanos > 0 && System.nanoTime() - deadline > 0) {
+                throw exceeded("timeout", "Read took longer than " +
+                        TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms");
+            }
+        }
+
+        private static SerialLimitException exceeded(String limit, String message) {
+            return new SerialLimitException(limit, message + " exceeds limit");
+        }
+
+        private final int maxArrayLength;
+        private final long maxElements;
+        private final long maxBytes;
+        private final int maxHandles;
+        private final int maxDepth;
+        private final long maxStringLength;
+        private final long timeoutNanos;
+        private int nesting;
+        private int depth;
+        private long elements;
+        private long bytes;
+        private long deadline;
+        private int markNesting;
+        private int markDepth;
+        private long markElements;
+        private long markBytes;
+    }
+
+    private int maxArrayLength = Integer.MAX_VALUE;
+    private long maxElements = Long.MAX_VALUE;
+    private long maxBytes = Long.MAX_VALUE;
+    private int maxHandles = Integer.MAX_VALUE;
+    private int maxDepth = Integer.MAX_VALUE;
+    private long maxStringLength = Long.MAX_VALUE;
+    private long timeoutNanos;
+}
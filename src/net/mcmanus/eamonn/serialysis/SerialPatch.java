@@ -0,0 +1,506 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import static java.io.ObjectStreamConstants.*;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.mcmanus.eamonn.serialysis.SerialIndex.Slot;
+
+/**
+ * <p>A set of changes to the serial stream indexed by a
+ * {@link SerialIndex}, which can be written out as a new serial stream.
+ * Changes are made by giving new values for the fields of
+ * {@link SObject}s and the elements of {@link SArray}s returned by the
+ * index.  When the new stream is written, everything that was not
+ * changed is copied from the original stream byte for byte, and only the
+ * new values are encoded, so the cost of encoding is proportional to
+ * the size of the changes rather than to the size of the stream.</p>
+ *
+ * <p>A new value can be:</p>
+ *
+ * <ul>
+ * <li>For a field or element of primitive type, a value of the
+ * corresponding wrapper type, for example {@code Integer} for an
+ * {@code int} field, or an {@link SPrim} of the same type.</li>
+ * <li>For a field or element of reference type, {@code null}, a
+ * {@code String}, or an entity from the same index that appears earlier
+ * in the stream than the value it replaces, which is written as a
+ * reference to that entity.</li>
+ * </ul>
+ *
+ * <p>The type of a new reference value is not checked against the type
+ * of the field or array, so the new stream will not deserialize if, for
+ * example, a {@code String} is assigned to a field of type
+ * {@code Integer}.</p>
+ *
+ * <p>Handles are numbered in the order they appear in the stream, so a
+ * new value with a different number of handles from the old one changes
+ * the handle of every later entity.  The back-references after the
+ * change are renumbered as they are copied.  The old value cannot be
+ * replaced if something outside it refers back to an entity within it,
+ * including the class descriptors that it defines, unless that
+ * reference is itself within a value that is replaced.
+ * {@link #write write} checks this before it writes anything.</p>
+ *
+ * <p>A {@code SerialPatch} is not safe for use by several threads at
+ * once.</p>
+ */
+public class SerialPatch {
+    /**
+     * Create an empty set of changes to the stream indexed by the given
+     * index.
+     *
+     * @param index the index of the stream to be changed.
+     */
+    public SerialPatch(SerialIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Change the value of the named field of the given object.  If the
+     * object's class and one of its superclasses both have a field of
+     * this name, it is the one that {@link SObject#getField} returns that
+     * is changed.  A second change to the same field replaces the first.
+     *
+     * @param object an object returned by the index.
+     * @param name the name of the field.
+     * @param value the new value, as described in the
+     * {@linkplain SerialPatch class description}.
+     * @exception IllegalArgumentException if the object did not come from
+     * the index, or has no field of this name, or if the value is not
+     * suitable for the field, or if the field is within a value that has
+     * already been changed or contains one.
+     * @exception IOException if the object cannot be decoded.
+     */
+    public void setField(SObject object, String name, Object value)
+            throws IOException {
+        Slot slot = index.fieldSlot(handle(object), name);
+        add(edit(slot, value));
+    }
+
+    /**
+     * Change the value of the given element of the given array.  A
+     * second change to the same element replaces the first.
+     *
+     * @param array an array returned by the index.
+     * @param i the index of the element.
+     * @param value the new value, as described in the
+     * {@linkplain SerialPatch class description}.
+     * @exception IndexOutOfBoundsException if {@code i} is not a valid
+     * index for the array.
+     * @exception IllegalArgumentException if the array did not come from
+     * the index, or if the value is not suitable for the array, or if the
+     * element is within a value that has already been changed or contains
+     * one.
+     * @exception IOException if the array cannot be decoded.
+     */
+    public void setElement(SArray array, int i, Object value)
+            throws IOException {
+        Slot slot = index.elementSlot(handle(array), i);
+        add(edit(slot, value));
+    }
+
+    /**
+     * Write the changed stream to the given channel.  The unchanged parts
+     * of the stream are written from the buffers that the index reads,
+     * without copying them, which for a file means straight from its
+     * mapping.  The channel is not closed.
+     *
+     * @param out the channel to write to.
+     * @exception IllegalStateException if a value that was replaced is
+     * referred to from elsewhere in the stream.  Nothing is written in
+     * that case.
+     * @exception IOException if the stream cannot be read or the channel
+     * cannot be written.
+     */
+    public void write(WritableByteChannel out) throws IOException {
+        checkReferences();
+        Writer writer = new Writer(out);
+        long position = 0;
+        for (Edit edit : edits.values()) {
+            writer.copy(position, edit.start);
+            writer.edit(edit);
+            position = edit.end;
+        }
+        writer.copy(position, index.length());
+    }
+
+    /**
+     * Write the changed stream to the given output stream, which is
+     * not closed.
+     *
+     * @param out the stream to write to.
+     * @exception IllegalStateException if a value that was replaced is
+     * referred to from elsewhere in the stream.  Nothing is written in
+     * that case.
+     * @exception IOException if the stream cannot be read or the output
+     * cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        write(Channels.newChannel(out));
+        out.flush();
+    }
+
+    private int handle(SEntity entity) {
+        int h = index.handleOf(entity);
+        if (h < 0)
+            throw new IllegalArgumentException("Not from this index: " + entity);
+        return h;
+    }
+
+    /*
+     * Add an edit, replacing one for the same slot, and checking that it
+     * does not overlap any other.
+     */
+    private void add(Edit edit) {
+        Long key = edit.start;
+        Edit same = edits.get(key);
+        if (same != null && same.end == edit.end) {
+            edits.put(key, edit);
+            return;
+        }
+        SortedMap<Long, Edit> before = edits.headMap(key);
+        SortedMap<Long, Edit> after = edits.tailMap(key);
+        if ((!before.isEmpty() && edits.get(before.lastKey()).end > edit.start)
+                || (!after.isEmpty() && after.firstKey() < edit.end))
+            throw new IllegalArgumentException("Overlaps an earlier change");
+        edits.put(key, edit);
+    }
+
+    /*
+     * Check that no entity in a replaced value is referred to from outside
+     * the replaced values, either in the original stream or by a new
+     * value, since the reference could not be written.  This is done
+     * before anything is written so that a failure does not leave a
+     * partial stream.  The removed handles of the edits are in the same
+     * order as the edits, and do not overlap.
+     */
+    private void checkReferences() {
+        TreeMap<Integer, Edit> removing = new TreeMap<Integer, Edit>();
+        for (Edit edit : edits.values()) {
+            if (edit.removed > 0)
+                removing.put(edit.firstHandle, edit);
+        }
+        if (removing.isEmpty())
+            return;
+        for (Edit edit : edits.values()) {
+            if (edit.target >= 0)
+                checkReference(removing, edit.target, edit.start);
+        }
+        // A reference to a removed handle is in the same epoch
+        Edit last = removing.get(removing.lastKey());
+        long end = index.epochEnd(index.epochAt(last.start));
+        Iterator<Edit> it = edits.values().iterator();
+        Edit slot = it.next();
+        int n = index.referenceCount();
+        for (int i = index.firstReferenceAt(slot.start); i < n; i++) {
+            long position = index.referencePosition(i);
+            if (position >= end)
+                break;
+            while (slot != null && slot.end <= position)
+                slot = it.hasNext() ? it.next() : null;
+            if (slot != null && slot.start <= position)
+                continue;  // replaced, so not written
+            checkReference(removing, index.referenceTarget(i), position);
+        }
+    }
+
+    private static void checkReference(TreeMap<Integer, Edit> removing,
+            int handle, long position) {
+        SortedMap<Integer, Edit> head = removing.headMap(handle + 1);
+        if (head.isEmpty())
+            return;
+        Edit edit = head.get(head.lastKey());
+        if (handle < edit.firstHandle + edit.removed) {
+            throw new IllegalStateException("Value replaced at " +
+                    edit.start + " is referred to at " + position);
+        }
+    }
+
+    private Edit edit(Slot slot, Object value) throws IOException {
+        Edit edit = new Edit(slot.start, slot.end);
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        if (slot.primitive != null)
+            primitive(dout, slot.primitive.getTypeCode(), value);
+        else if (value == null)
+            dout.writeByte(TC_NULL);
+        else if (value instanceof String) {
+            string(dout, (String) value);
+            edit.added = 1;
+        } else if (value instanceof SEntity) {
+            int target = handle((SEntity) value);
+            if (index.handleStart(target) >= slot.start
+                    || !index.inEpoch(target, index.epochAt(slot.start)))
+                throw new IllegalArgumentException(
+                        "Not written before the value it replaces: " + value);
+            edit.target = target;
+        } else {
+            throw new IllegalArgumentException("Not a reference value: " +
+                    value.getClass().getName());
+        }
+        dout.flush();
+        edit.bytes = bout.toByteArray();
+        edit.firstHandle = index.handlesBefore(slot.start);
+        edit.removed = index.handlesBefore(slot.end) - edit.firstHandle;
+        return edit;
+    }
+
+    private static void primitive(DataOutputStream dout, char typeCode,
+            Object value) throws IOException {
+        if (value instanceof SPrim)
+            value = ((SPrim) value).getValue();
+        int i = PRIMITIVE_CODES.indexOf(typeCode);
+        if (i < 0)
+            throw new IllegalArgumentException("Bad type code: " + typeCode);
+        if (!WRAPPERS[i].isInstance(value)) {
+            String type = (value == null) ? "null" : value.getClass().getName();
+            throw new IllegalArgumentException("Expected " +
+                    WRAPPERS[i].getName() + ": " + type);
+        }
+        switch (typeCode) {
+            case 'B':
+                dout.writeByte((Byte) value); break;
+            case 'C':
+                dout.writeChar((Character) value); break;
+            case 'D':
+                dout.writeDouble((Double) value); break;
+            case 'F':
+                dout.writeFloat((Float) value); break;
+            case 'I':
+                dout.writeInt((Integer) value); break;
+            case 'J':
+                dout.writeLong((Long) value); break;
+            case 'S':
+                dout.writeShort((Short) value); break;
+            case 'Z':
+                dout.writeBoolean((Boolean) value); break;
+        }
+    }
+
+    /*
+     * Write a string as TC_STRING or TC_LONGSTRING in modified UTF-8,
+     * which DataOutputStream.writeUTF can't do for long strings.
+     */
+    private static void string(DataOutputStream dout, String s)
+            throws IOException {
+        int n = s.length();
+        long utfLength = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f)
+                utfLength++;
+            else if (c <= 0x07ff)
+                utfLength += 2;
+            else
+                utfLength += 3;
+        }
+        if (utfLength <= 0xffff) {
+            dout.writeByte(TC_STRING);
+            dout.writeShort((int) utfLength);
+        } else {
+            dout.writeByte(TC_LONGSTRING);
+            dout.writeLong(utfLength);
+        }
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f)
+                dout.writeByte(c);
+            else if (c <= 0x07ff) {
+                dout.writeByte(0xc0 | (c >> 6));
+                dout.writeByte(0x80 | (c & 0x3f));
+            } else {
+                dout.writeByte(0xe0 | (c >> 12));
+                dout.writeByte(0x80 | ((c >> 6) & 0x3f));
+                dout.writeByte(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /*
+     * The replacement of the bytes from start to end by new ones.  The old
+     * bytes assigned the handles from firstHandle to
+     * firstHandle + removed - 1, and the new ones assign added handles.
+     * If target is not -1, the new bytes are a reference to that handle,
+     * which can only be encoded when the stream is written.
+     */
+    private static class Edit {
+        Edit(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        final long start;
+        final long end;
+        byte[] bytes;
+        int target = -1;
+        int firstHandle;
+        int removed;
+        int added;
+    }
+
+    /*
+     * Writes the stream in order, keeping track of the edits made so far
+     * in the current epoch so that handles can be renumbered.
+     */
+    private class Writer {
+        Writer(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        /*
+         * Copy the original stream from start to end, renumbering the
+         * back-references in it if edits earlier in the same epoch have
+         * changed the number of handles.
+         */
+        void copy(long start, long end) throws IOException {
+            while (start < end) {
+                int e = epoch(start);
+                long limit = Math.min(end, index.epochEnd(e));
+                if (!applied.isEmpty()) {
+                    int n = index.referenceCount();
+                    for (int i = index.firstReferenceAt(start); i < n; i++) {
+                        long position = index.referencePosition(i);
+                        if (position >= limit)
+                            break;
+                        int target = index.referenceTarget(i);
+                        int wire = renumber(target);
+                        if (wire != index.wireHandle(target, e)) {
+                            raw(start, position + 1);
+                            ByteBuffer buf = ByteBuffer.allocate(4);
+                            buf.putInt(wire).flip();
+                            put(buf);
+                            start = position + 5;
+                        }
+                    }
+                }
+                raw(start, limit);
+                start = limit;
+            }
+        }
+
+        void edit(Edit edit) throws IOException {
+            epoch(edit.start);
+            byte[] bytes = edit.bytes;
+            if (edit.target >= 0) {
+                ByteBuffer buf = ByteBuffer.allocate(5);
+                buf.put(TC_REFERENCE);
+                buf.putInt(renumber(edit.target));
+                bytes = buf.array();
+            }
+            put(ByteBuffer.wrap(bytes));
+            applied.add(edit);
+        }
+
+        private int epoch(long position) {
+            int e = index.epochAt(position);
+            if (e != epoch) {
+                epoch = e;
+                applied.clear();
+            }
+            return e;
+        }
+
+        /*
+         * The new wire handle of the given handle in the current epoch.
+         * checkReferences has made sure that it was not removed.
+         */
+        private int renumber(int handle) {
+            int delta = 0;
+            for (Edit edit : applied) {
+                if (handle >= edit.firstHandle + edit.removed)
+                    delta += edit.added - edit.removed;
+            }
+            return index.wireHandle(handle, epoch) + delta;
+        }
+
+        /*
+         * Copy the original stream from start to end.  The input only
+         * ever moves forward, so one input serves for the whole stream.
+         */
+        private void raw(long start, long end) throws IOException {
+            if (start >= end)
+                return;
+            if (in == null)
+                in = index.input(start);
+            else
+                in.skipFully(start - in.position());
+            for (long n = end - start; n > 0; ) {
+                int len = (int) Math.min(n, CHUNK);
+                put(in.readBuffer(len));
+                n -= len;
+            }
+        }
+
+        private void put(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining())
+                out.write(buf);
+        }
+
+        private final WritableByteChannel out;
+        private SerialInput in;
+        private int epoch = -1;
+        // The edits so far in the current epoch, in stream order
+        private final List<Edit> applied = new ArrayList<Edit>();
+    }
+
+    private static final int CHUNK = 1 << 24;
+    private static final String PRIMITIVE_CODES = "BCDFIJSZ";
+    private static final Class<?>[] WRAPPERS = {
+        Byte.class, Character.class, Double.class, Float.class,
+        Integer.class, Long.class, Short.class, Boolean.class,
+    };
+
+    private final SerialIndex index;
+    // The edits, by starting position
+    private final TreeMap<Long, Edit> edits = new TreeMap<Long, Edit>();
+}
@@ -0,0 +1,417 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.mcmanus.eamonn.serialysis.SerialEventReader.Event;
+
+/**
+ * <p>A compiled path expression that selects values from the objects in
+ * a serial stream.  The path is evaluated as the stream is read, so only
+ * the values it selects are built as {@link SEntity} objects, and the
+ * parts of the stream that cannot contain a match are checked but not
+ * decoded.  A path is compiled once with {@link #compile compile} and can
+ * then be evaluated against any number of streams, from any number of
+ * threads.</p>
+ *
+ * <p>A path is a sequence of steps separated by dots.  Each step applies
+ * to the values selected by the previous one, starting with the object
+ * read from the stream.</p>
+ *
+ * <dl>
+ * <dt>{@code name}</dt>
+ * <dd>The value of the serial field called {@code name}, if the value is
+ * an object that has one.  The name of an enumeration constant is
+ * the field {@code <name>}.</dd>
+ * <dt>{@code *}</dt>
+ * <dd>The values of all the serial fields of an object.</dd>
+ * <dt>{@code <annotations>}</dt>
+ * <dd>The values written by the {@code writeObject} or
+ * {@code writeExternal} methods of an object, as returned by
+ * {@link SObject#getAnnotations}.  {@code <annotations>[2]} is the third
+ * of them.</dd>
+ * <dt>{@code [3]}, {@code [*]}</dt>
+ * <dd>Following a step, or at the start of the path, the element at the
+ * given index, or all the elements, of an array.</dd>
+ * <dt>{@code SObject[className]}, {@code SArray[className]}</dt>
+ * <dd>The current value, if it is an object or array of the given class.
+ * For arrays, this is the JVM name such as {@code [I}.  A class name of
+ * {@code *} accepts any class.</dd>
+ * </dl>
+ *
+ * <p>For example, {@code SObject[javax.management.ObjectName].canonicalName}
+ * selects the {@code canonicalName} field of an {@code ObjectName}, and
+ * {@code <annotations>[*].name} selects the {@code name} field of each
+ * element of an {@code ArrayList}, whose elements are written by its
+ * {@code writeObject} method.</p>
+ *
+ * <p>A reference to an object or array that the path has already
+ * reached at the same step, such as an element that appears twice in a
+ * list, selects the same values again.  Otherwise, a reference to an
+ * object or array cannot be followed, because that object was not
+ * decoded, and evaluation fails with {@code StreamCorruptedException}.
+ * This happens when a selected value is a reference to an object that
+ * the path did not select, or when a step reaches a reference to an
+ * object that it did not reach directly.  Strings are always decoded,
+ * so references to them are resolved.</p>
+ */
+public class SerialPath {
+    private SerialPath(String path, Step[] steps) {
+        this.path = path;
+        this.steps = steps;
+    }
+
+    /**
+     * Compile the given path expression.
+     *
+     * @param path the path expression.  An empty string selects the
+     * object read from the stream.
+     * @return the compiled path.
+     * @exception IllegalArgumentException if the expression is not valid.
+     */
+    public static SerialPath compile(String path) {
+        List<Step> steps = new ArrayList<Step>();
+        int i = 0;
+        int n = path.length();
+        while (i < n) {
+            int start = i;
+            while (i < n && "[].".indexOf(path.charAt(i)) < 0)
+                i++;
+            String name = path.substring(start, i);
+            boolean annotations = false;
+            if ((name.equals("SObject") || name.equals("SArray"))
+                    && i < n && path.charAt(i) == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0)
+                    throw syntax(path, i, "Missing ]");
+                String className = path.substring(i + 1, close);
+                if (className.length() == 0)
+                    throw syntax(path, i, "Missing class name");
+                if (className.equals("*"))
+                    className = null;
+                boolean array = name.equals("SArray");
+                steps.add(new Step(array ? Step.ARRAY : Step.OBJECT,
+                        className, -1));
+                i = close + 1;
+            } else if (name.equals("<annotations>"))
+                annotations = true;
+            else if (name.length() > 0)
+                steps.add(new Step(Step.FIELD, name.equals("*") ? null : name, -1));
+            else if (start > 0 || i == n || path.charAt(i) != '[')
+                throw syntax(path, i, "Missing step");
+            while (i < n && path.charAt(i) == '[') {
+                int close = path.indexOf(']', i);
+                if (close < 0)
+                    throw syntax(path, i, "Missing ]");
+                int index = index(path, i + 1, close);
+                steps.add(new Step(annotations ? Step.ANNOTATION : Step.ELEMENT,
+                        null, index));
+                annotations = false;
+                i = close + 1;
+            }
+            if (annotations)
+                steps.add(new Step(Step.ANNOTATION, null, -1));
+            if (i < n) {
+                if (path.charAt(i) != '.')
+                    throw syntax(path, i, "Expected .");
+                i++;
+                if (i == n)
+                    throw syntax(path, i, "Missing step");
+            }
+        }
+        return new SerialPath(path, steps.toArray(new Step[steps.size()]));
+    }
+
+    /**
+     * Read the next object from the given scanner and return the values
+     * in it that this path selects, in the order they appear in the
+     * stream.  Objects that are read this way cannot be the target of
+     * references from objects later returned by
+     * {@link SerialScan#readObject()}.
+     *
+     * @param scan the scanner to read from.
+     * @return the selected values, which may be empty.
+     * @exception EOFException if the stream has no more objects.
+     * @exception IOException if the stream cannot be read or is not
+     * a valid serial stream.
+     */
+    public List<SEntity> evaluate(SerialScan scan) throws IOException {
+        SerialEventReader reader = scan.eventReader();
+        List<SEntity> results = new ArrayList<SEntity>();
+        Map<Long, List<SEntity>> reached = new HashMap<Long, List<SEntity>>();
+        reader.setDecodeStrings(true);
+        try {
+            Event event;
+            do {
+                if (!reader.hasNext())
+                    throw new EOFException();
+                event = enter(reader, 0);
+            } while (event == Event.RESET);
+            current(reader, 0, results, reached);
+        } finally {
+            reader.setDecodeStrings(false);
+        }
+        return results;
+    }
+
+    /**
+     * Read the first object from the given serial stream and return the
+     * values in it that this path selects.
+     *
+     * @param in the serial stream.
+     * @return the selected values, which may be empty.
+     * @exception IOException if the stream cannot be read or is not
+     * a valid serial stream.
+     */
+    public List<SEntity> evaluate(InputStream in) throws IOException {
+        return evaluate(new SerialScan(in));
+    }
+
+    /**
+     * Return the expression that this path was compiled from.
+     */
+    public String toString() {
+        return path;
+    }
+
+    /*
+     * Read the first event of the next value, which will be matched
+     * against the step at index i.  A step that looks inside the value
+     * can only match an object or array, so anything else is skipped.
+     */
+    private Event enter(SerialEventReader reader, int i) throws IOException {
+        if (i == steps.length || steps[i].kind == Step.OBJECT
+                || steps[i].kind == Step.ARRAY)
+            return reader.next();
+        reader.setSkipping(true);
+        try {
+            return reader.next();
+        } finally {
+            reader.setSkipping(false);
+        }
+    }
+
+    /*
+     * Match the steps from index i on against the value that starts with
+     * the current event, and add whatever matches to the results.  The
+     * reader is left at the last event of the value.  What each object
+     * or array contributes from step i on is kept in reached, under its
+     * handle and i, so that a reference to it can contribute the same.
+     */
+    private void current(SerialEventReader reader, int i, List<SEntity> results,
+            Map<Long, List<SEntity>> reached) throws IOException {
+        Event event = reader.getEvent();
+        if (i == steps.length) {
+            results.add(reader.readCurrent());
+            return;
+        }
+        Long key = ((long) reader.getHandle() << 32) | i;
+        switch (event) {
+            case REFERENCE:
+                List<SEntity> found = reached.get(key);
+                if (found != null) {
+                    results.addAll(found);
+                    return;
+                }
+                SEntity target = reader.readCurrent();
+                if (target instanceof SObject || target instanceof SArray) {
+                    throw new StreamCorruptedException(
+                            "Reference to object not reached by step " + i +
+                            " of path: " + path);
+                }
+                return;
+            case START_OBJECT:
+            case START_ARRAY:
+                int before = results.size();
+                match(reader, i, results, reached);
+                found = results.subList(before, results.size());
+                reached.put(key, found.isEmpty() ?
+                        Collections.<SEntity>emptyList() :
+                        new ArrayList<SEntity>(found));
+                return;
+            default:
+                match(reader, i, results, reached);
+        }
+    }
+
+    private void match(SerialEventReader reader, int i, List<SEntity> results,
+            Map<Long, List<SEntity>> reached) throws IOException {
+        Event event = reader.getEvent();
+        Step step = steps[i];
+        switch (step.kind) {
+            case Step.OBJECT:
+            case Step.ARRAY:
+                Event start = (step.kind == Step.OBJECT) ?
+                        Event.START_OBJECT : Event.START_ARRAY;
+                if (event == start && (step.name == null
+                        || step.name.equals(reader.getClassName())))
+                    current(reader, i + 1, results, reached);
+                else
+                    skip(reader);
+                return;
+            case Step.FIELD:
+            case Step.ANNOTATION:
+                if (event != Event.START_OBJECT) {
+                    skip(reader);
+                    return;
+                }
+                int annotation = 0;
+                while (reader.nextValue()) {
+                    String fieldName = reader.getFieldName();
+                    boolean match;
+                    if (step.kind == Step.FIELD) {
+                        match = (fieldName != null && (step.name == null
+                                || step.name.equals(fieldName)));
+                    } else if (fieldName == null) {
+                        match = (step.index < 0 || step.index == annotation);
+                        annotation++;
+                    } else
+                        match = false;
+                    if (match)
+                        value(reader, i + 1, results, reached);
+                    else
+                        reader.skipValue();
+                }
+                return;
+            case Step.ELEMENT:
+                if (event != Event.START_ARRAY) {
+                    skip(reader);
+                    return;
+                }
+                if (reader.getClassName().length() == 2) {
+                    primitiveElements(reader, i, results);
+                    return;
+                }
+                int index = 0;
+                while (reader.nextValue()) {
+                    if (step.index < 0 || step.index == index)
+                        value(reader, i + 1, results, reached);
+                    else
+                        reader.skipValue();
+                    index++;
+                }
+                return;
+            default:
+                throw new AssertionError(step.kind);
+        }
+    }
+
+    /*
+     * The elements of a primitive array can only be selected by the last
+     * step.  Skipping one element skips the rest of the array, so the
+     * elements before a selected one are read.
+     */
+    private void primitiveElements(SerialEventReader reader, int i,
+            List<SEntity> results) throws IOException {
+        int wanted = steps[i].index;
+        int index = 0;
+        while (reader.nextValue()) {
+            if (i + 1 < steps.length || (wanted >= 0 && index > wanted)) {
+                reader.skipValue();
+                return;
+            }
+            reader.next();
+            if (wanted < 0 || wanted == index)
+                results.add(reader.readCurrent());
+            index++;
+        }
+    }
+
+    private void value(SerialEventReader reader, int i, List<SEntity> results,
+            Map<Long, List<SEntity>> reached) throws IOException {
+        enter(reader, i);
+        current(reader, i, results, reached);
+    }
+
+    private static void skip(SerialEventReader reader) throws IOException {
+        Event event = reader.getEvent();
+        if (event == Event.START_OBJECT || event == Event.START_ARRAY)
+            reader.skip();
+    }
+
+    private static int index(String path, int start, int end) {
+        String s = path.substring(start, end);
+        if (s.equals("*"))
+            return -1;
+        try {
+            int index = Integer.parseInt(s);
+            if (index >= 0)
+                return index;
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw syntax(path, start, "Bad index: " + s);
+    }
+
+    private static IllegalArgumentException syntax(String path, int pos,
+            String message) {
+        return new IllegalArgumentException(message + " at position " + pos +
+                " of path: " + path);
+    }
+
+    private static class Step {
+        static final int FIELD = 0, ANNOTATION = 1, ELEMENT = 2,
+                OBJECT = 3, ARRAY = 4;
+
+        Step(int kind, String name, int index) {
+            this.kind = kind;
+            this.name = name;
+            this.index = index;
+        }
+
+        final int kind;
+        // The field or class name, or null for any
+        final String name;
+        // The array or annotation index, or -1 for any
+        final int index;
+    }
+
+    private final String path;
+    private final Step[] steps;
+}
@@ -0,0 +1,221 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * <p>Write a readable representation of an {@link SEntity} and everything
+ * it refers to.  The output is the same as {@link SEntity#toString()}, but
+ * it is written directly to an {@link Appendable} such as a
+ * {@link java.io.Writer} as it is produced, rather than being built up as
+ * a string for each nested object.</p>
+ *
+ * <p>To summarize very large object graphs, a renderer can be told to
+ * stop at a maximum depth, to show only the first few fields or elements
+ * of each object or array, and to show only the start of long strings.
+ * Whatever is left out is replaced by {@code "..."}.  An object that
+ * refers back to an object that contains it is also shown as
+ * {@code "..."} at the point where it refers back.</p>
+ */
+public class SerialRenderer {
+    /**
+     * Create a renderer that shows everything.
+     */
+    public SerialRenderer() {
+    }
+
+    /**
+     * Set the maximum depth of nested objects to show.  The contents of
+     * objects and arrays deeper than this are shown as {@code "..."}.
+     * The object given to {@link #render render} is at depth 0, so with a
+     * maximum depth of 0 only its kind and type are shown.
+     *
+     * @exception IllegalArgumentException if {@code maxDepth} is negative.
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = check(maxDepth);
+    }
+
+    /**
+     * Set the maximum number of fields, annotations, or array elements to
+     * show for each object or array.  The remainder are summarized in one
+     * line giving their number.
+     *
+     * @exception IllegalArgumentException if {@code maxElements} is
+     * negative.
+     */
+    public void setMaxElements(int maxElements) {
+        this.maxElements = check(maxElements);
+    }
+
+    /**
+     * Set the maximum number of characters to show from each string.
+     * Longer strings are shown with their first {@code maxStringLength}
+     * characters and their total length.
+     *
+     * @exception IllegalArgumentException if {@code maxStringLength} is
+     * negative.
+     */
+    public void setMaxStringLength(int maxStringLength) {
+        this.maxStringLength = check(maxStringLength);
+    }
+
+    /**
+     * Write the representation of the given entity to the given
+     * {@code Appendable}.
+     *
+     * @param entity the entity to render, which can be null.
+     * @param out where to write the representation.
+     * @exception IOException if {@code out} throws it.
+     */
+    public void render(SEntity entity, Appendable out) throws IOException {
+        new Output(out).entity(entity);
+    }
+
+    /**
+     * Return the representation of the given entity as a string.
+     *
+     * @param entity the entity to render, which can be null.
+     */
+    public String render(SEntity entity) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            render(entity, sb);
+        } catch (IOException e) {
+            // StringBuilder.append doesn't throw
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    private static int check(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("Negative limit: " + limit);
+        return limit;
+    }
+
+    /*
+     * The state of one call to render.  The SEntity subclasses use this to
+     * write their contents, in their renderContents methods.
+     */
+    class Output {
+        Output(Appendable out) {
+            this.out = out;
+        }
+
+        void entity(SEntity entity) throws IOException {
+            if (entity == null) {
+                append("null");
+                return;
+            }
+            append(entity.kind()).append("(").append(entity.getType()).append("){");
+            if (active.containsKey(entity) || depth >= maxDepth)
+                append("...");
+            else {
+                active.put(entity, Boolean.TRUE);
+                depth++;
+                entity.renderContents(this);
+                depth--;
+                active.remove(entity);
+            }
+            if (last == '\n')
+                indent();
+            append("}");
+        }
+
+        Output append(CharSequence s) throws IOException {
+            int len = s.length();
+            if (len > 0) {
+                out.append(s);
+                last = s.charAt(len - 1);
+            }
+            return this;
+        }
+
+        void newLine() throws IOException {
+            append("\n");
+        }
+
+        void indent() throws IOException {
+            for (int i = depth; i > 0; i--)
+                append("  ");
+        }
+
+        /*
+         * Return true if the item at the given index in a list of the
+         * given size should be shown.  The first time it is false, write
+         * a line saying how many items are not shown.
+         */
+        boolean element(int index, int size) throws IOException {
+            if (index < maxElements)
+                return true;
+            if (index == maxElements) {
+                indent();
+                append("... (").append(String.valueOf(size - index))
+                        .append(" more)");
+                newLine();
+            }
+            return false;
+        }
+
+        void string(String s) throws IOException {
+            append("\"");
+            if (s.length() <= maxStringLength)
+                append(s).append("\"");
+            else {
+                append(s.subSequence(0, maxStringLength)).append("\"... (")
+                        .append(String.valueOf(s.length())).append(" chars)");
+            }
+        }
+
+        private final Appendable out;
+        private final Map<SEntity, Boolean> active =
+                new IdentityHashMap<SEntity, Boolean>();
+        private int depth;
+        private char last;
+    }
+
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxElements = Integer.MAX_VALUE;
+    private int maxStringLength = Integer.MAX_VALUE;
+}
@@ -39,41 +39,48 @@
 
 package net.mcmanus.eamonn.serialysis;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;  // for javadoc
 import java.io.ObjectOutputStream;
 import static java.io.ObjectStreamConstants.*;
-import java.io.SequenceInputStream;
+import java.io.RandomAccessFile;
 import java.io.StreamCorruptedException;
 import java.io.WriteAbortedException;
 import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 
-import static net.mcmanus.eamonn.serialysis.Trace.enter;
-import static net.mcmanus.eamonn.serialysis.Trace.exit;
-import static net.mcmanus.eamonn.serialysis.Trace.show;
 
 /**
  * Scan a serial stream to produce a representation of each object
- * in the stream.
+ * in the stream.  To process a stream without building a representation
+ * of every object in it, use a {@link SerialEventReader}.
  */
-public class SerialScan {
+public class SerialScan implements Closeable, Iterable<SEntity> {
 
     /**
      * Scan the given {@code InputStream} as a serial stream.
      * Unlike an {@link ObjectInputStream}, each call to
      * {@link #readObject()} produces an {@code SEntity}, which can
      * be examined to determine the object contents as serialized
-     * in the serial stream.
+     * in the serial stream.  The {@code SerialScan} never reads past the
+     * end of the item it is currently decoding, so data after the serial
+     * stream is left in the {@code InputStream}.  This is the same as
+     * {@link #SerialScan(InputStream, int) SerialScan(in, 0)}; a
+     * read-ahead is faster if there is nothing after the serial stream,
+     * especially when the {@code InputStream} is not buffered.
      *
      * @param in the serial stream to be analyzed.
      * @exception IOException if there is a problem reading the
@@ -81,11 +88,145 @@ public class SerialScan {
      * the correct sequence of bytes.
      */
     public SerialScan(InputStream in) throws IOException {
+        this(new StreamSerialInput(in));
+    }
+
+    /**
+     * Scan the given {@code InputStream} as a serial stream, with the
+     * given amount of read-ahead.  The {@code SerialScan} reads the stream
+     * into a buffer of its own, so there is no need to wrap it in a
+     * {@code BufferedInputStream}.  Each time it reads from the stream it
+     * asks for up to {@code readAhead} bytes more than it needs at that
+     * point, so it can read up to that many bytes past the end of the
+     * serial stream.  A {@code readAhead} of 0 means that it never reads
+     * past the end of the item it is currently decoding, which is
+     * appropriate if the {@code InputStream} has other data after the
+     * serial stream, and is what the {@link #SerialScan(InputStream)}
+     * constructor uses.  A {@code readAhead} of a few kilobytes, such as
+     * 8192, avoids most calls to the {@code InputStream}.
+     *
+     * @param in the serial stream to be analyzed.
+     * @param readAhead the maximum number of bytes to read beyond what is
+     * needed.
+     * @exception IllegalArgumentException if {@code readAhead} is negative.
+     * @exception IOException if there is a problem reading the
+     * {@code InputStream}, for example if it does not begin with
+     * the correct sequence of bytes.
+     */
+    public SerialScan(InputStream in, int readAhead) throws IOException {
+        this(new StreamSerialInput(in, readAhead));
+    }
+
+    /**
+     * Scan the contents of the given {@code ByteBuffer} as a serial stream,
+     * starting at its current position.  The buffer's position is not
+     * changed.  Binary data and arrays of primitives in the stream are
+     * represented by slices of the buffer rather than by copies, so the
+     * buffer must not be modified while they are in use.
+     *
+     * @param buf the buffer containing the serial stream to be analyzed.
+     * @exception IOException if the buffer does not begin with the
+     * correct sequence of bytes.
+     */
+    public SerialScan(ByteBuffer buf) throws IOException {
+        this(new BufferSerialInput(buf));
+    }
+
+    /**
+     * Scan the contents of the given {@code FileChannel} as a serial
+     * stream, starting at its current position.  The file is mapped into
+     * memory and read from there, as with {@link #SerialScan(ByteBuffer)}.
+     * Closing this {@code SerialScan} does not close the channel.
+     *
+     * @param channel the channel of the file to be analyzed.
+     * @exception IOException if the file cannot be mapped or does not
+     * begin with the correct sequence of bytes.
+     */
+    public SerialScan(FileChannel channel) throws IOException {
+        this(new ChannelSerialInput(channel, false));
+    }
+
+    /**
+     * Scan the contents of the given file as a serial stream.  The file is
+     * mapped into memory and read from there, as with
+     * {@link #SerialScan(ByteBuffer)}.  The file remains open until this
+     * {@code SerialScan} is {@linkplain #close closed}.
+     *
+     * @param file the file to be analyzed.
+     * @exception IOException if the file cannot be opened or mapped, or
+     * does not begin with the correct sequence of bytes.
+     */
+    public SerialScan(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            this.in = new ChannelSerialInput(channel, true);
+            readStreamHeader();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    SerialScan(SerialInput in) throws IOException {
+        this(in, true);
+    }
+
+    /*
+     * A scanner that can optionally start in the middle of a stream,
+     * for example to decode an object whose position is known.
+     */
+    SerialScan(SerialInput in, boolean readHeader) throws IOException {
         this.in = in;
-        this.din = new DataInputStream(in);
-        if (din.readShort() != STREAM_MAGIC
-                || din.readShort() != STREAM_VERSION)
+        if (readHeader)
+            readStreamHeader();
+    }
+
+    SerialEventReader eventReader() {
+        if (eventReader == null)
+            eventReader = new SerialEventReader(this);
+        return eventReader;
+    }
+
+    /*
+     * A scanner for the given input that starts with a copy of this
+     * one's handle table, for reading the same stream from elsewhere.
+     */
+    SerialScan copy(SerialInput in) throws IOException {
+        SerialScan scan = emptyCopy(in);
+        scan.handles.addAll(handles);
+        return scan;
+    }
+
+    /*
+     * A scanner for the given input with this one's class descriptor
+     * cache and limits but an empty handle table, for reading a part of
+     * the same stream that follows a reset.
+     */
+    SerialScan emptyCopy(SerialInput in) throws IOException {
+        SerialScan scan = new SerialScan(in, false);
+        scan.classDescCache = classDescCache;
+        if (budget != null)
+            scan.budget = budget.copy();
+        return scan;
+    }
+
+    void readStreamHeader() throws IOException {
+        if (in.readShort() != STREAM_MAGIC
+                || in.readShort() != STREAM_VERSION)
+            throw new StreamCorruptedException("Bad stream header");
+    }
+
+    /*
+     * Read the rest of a stream header whose first byte has been read in
+     * place of a top-level type code.  This is what a file looks like when
+     * a new ObjectOutputStream appends to it.  The new stream starts with
+     * an empty handle table, just as after a reset.
+     */
+    void appendedStreamHeader() throws IOException {
+        if (in.readByte() != (byte) STREAM_MAGIC
+                || in.readShort() != STREAM_VERSION)
             throw new StreamCorruptedException("Bad stream header");
+        reset();
     }
 
     /**
@@ -103,21 +244,280 @@ public class SerialScan {
             ObjectOutputStream oos = new ObjectOutputStream(bout);
             oos.writeObject(x);
             oos.close();
-            ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
-            SerialScan ss = new SerialScan(bin);
+            SerialScan ss = new SerialScan(ByteBuffer.wrap(bout.toByteArray()));
             return ss.readObject();
         } catch (IOException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
+    /**
+     * Scan each of the given byte arrays as a separate serial stream
+     * and return the first object in each.  The arrays are scanned in
+     * parallel, using as many threads as there are processors.
+     *
+     * @param payloads the serial streams to be analyzed.
+     * @return a list of the same size as {@code payloads} where each
+     * element represents the first object in the corresponding array.
+     * @exception IOException if any of the arrays cannot be scanned.  The
+     * message says which one.
+     */
+    public static List<SEntity> scanAll(Collection<byte[]> payloads)
+            throws IOException {
+        return scanAll(payloads, null);
+    }
+
+    /**
+     * Scan each of the given byte arrays as a separate serial stream, as
+     * {@link #scanAll(Collection)} does, within the given limits.  Each
+     * array is read as if by a {@code SerialScan} on which
+     * {@link #setLimits setLimits(limits)} had been called.
+     *
+     * @param payloads the serial streams to be analyzed.
+     * @param limits the limits for each stream, or null for no limits.
+     * @return a list of the same size as {@code payloads} where each
+     * element represents the first object in the corresponding array.
+     * @exception IOException if any of the arrays cannot be scanned or
+     * exceeds the limits.  The message says which one.
+     */
+    public static List<SEntity> scanAll(Collection<byte[]> payloads,
+                                        SerialLimits limits)
+            throws IOException {
+        final SEntity[] results = new SEntity[payloads.size()];
+        List<BatchScan.Payload> list =
+                new ArrayList<BatchScan.Payload>(payloads.size());
+        for (byte[] bytes : payloads)
+            list.add(new BatchScan.BufferPayload(ByteBuffer.wrap(bytes)));
+        SerialScanHandler handler = new SerialScanHandler() {
+            public void scanned(int index, SEntity entity) {
+                results[index] = entity;
+            }
+
+            public void failed(int index, IOException e) throws IOException {
+                IOException x =
+                        new IOException("Payload " + index + ": " + e.getMessage());
+                x.initCause(e);
+                throw x;
+            }
+        };
+        new BatchScan(true, handler, limits).run(list.iterator());
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Scan each of the buffers from the given iterator as a separate
+     * serial stream, in parallel, and report the first object in each to
+     * the given handler.  Buffers are taken from the iterator only as
+     * threads become free to scan them, so the iterator can supply far
+     * more buffers than would fit in memory at once.  Each buffer is read
+     * from its position to its limit, and its position is not changed.
+     *
+     * @param payloads the serial streams to be analyzed.
+     * @param ordered if true, results are reported to the handler in the
+     * same order as the buffers.  If false, each result is reported as
+     * soon as it is available.
+     * @param handler the handler that receives the results, in the
+     * calling thread.
+     * @exception IOException if the handler throws it.  Streams that
+     * cannot be scanned are reported to
+     * {@link SerialScanHandler#failed handler.failed}.
+     */
+    public static void scanAll(Iterator<ByteBuffer> payloads,
+                               boolean ordered, SerialScanHandler handler)
+            throws IOException {
+        scanAll(payloads, ordered, handler, null);
+    }
+
+    /**
+     * Scan each of the buffers from the given iterator as a separate
+     * serial stream, as {@link #scanAll(Iterator, boolean,
+     * SerialScanHandler)} does, within the given limits.  Each buffer is
+     * read as if by a {@code SerialScan} on which
+     * {@link #setLimits setLimits(limits)} had been called, and a buffer
+     * that exceeds them is reported to {@link SerialScanHandler#failed
+     * handler.failed} with a {@link SerialLimitException}.
+     *
+     * @param payloads the serial streams to be analyzed.
+     * @param ordered if true, results are reported to the handler in the
+     * same order as the buffers.  If false, each result is reported as
+     * soon as it is available.
+     * @param handler the handler that receives the results, in the
+     * calling thread.
+     * @param limits the limits for each stream, or null for no limits.
+     * @exception IOException if the handler throws it.
+     */
+    public static void scanAll(final Iterator<ByteBuffer> payloads,
+                               boolean ordered, SerialScanHandler handler,
+                               SerialLimits limits)
+            throws IOException {
+        Iterator<BatchScan.Payload> it = new Iterator<BatchScan.Payload>() {
+            public boolean hasNext() {
+                return payloads.hasNext();
+            }
+
+            public BatchScan.Payload next() {
+                return new BatchScan.BufferPayload(payloads.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        new BatchScan(ordered, handler, limits).run(it);
+    }
+
+    /**
+     * Scan each of the files in the given directory as a separate serial
+     * stream, in parallel, and report the first object in each to the
+     * given handler.  The files are the regular files in the directory
+     * sorted by name, as by {@link File#compareTo}, and the index given
+     * to the handler is the position of a file in that order.  The
+     * message of an exception given to
+     * {@link SerialScanHandler#failed handler.failed} includes the name
+     * of the file.
+     *
+     * @param directory the directory containing the serial streams.
+     * @param ordered if true, results are reported to the handler in the
+     * order of the files.  If false, each result is reported as soon as it
+     * is available.
+     * @param handler the handler that receives the results, in the
+     * calling thread.
+     * @exception IOException if {@code directory} cannot be listed, or if
+     * the handler throws it.
+     */
+    public static void scanAll(File directory, boolean ordered,
+                               SerialScanHandler handler) throws IOException {
+        scanAll(directory, ordered, handler, null);
+    }
+
+    /**
+     * Scan each of the files in the given directory as a separate serial
+     * stream, as {@link #scanAll(File, boolean, SerialScanHandler)} does,
+     * within the given limits.  Each file is read as if by a
+     * {@code SerialScan} on which {@link #setLimits setLimits(limits)}
+     * had been called, and a file that exceeds them is reported to
+     * {@link SerialScanHandler#failed handler.failed}.
+     *
+     * @param directory the directory containing the serial streams.
+     * @param ordered if true, results are reported to the handler in the
+     * order of the files.  If false, each result is reported as soon as it
+     * is available.
+     * @param handler the handler that receives the results, in the
+     * calling thread.
+     * @param limits the limits for each stream, or null for no limits.
+     * @exception IOException if {@code directory} cannot be listed, or if
+     * the handler throws it.
+     */
+    public static void scanAll(File directory, boolean ordered,
+                               SerialScanHandler handler, SerialLimits limits)
+            throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null)
+            throw new IOException("Cannot list directory " + directory);
+        Arrays.sort(files);
+        List<BatchScan.Payload> list = new ArrayList<BatchScan.Payload>();
+        for (File file : files) {
+            if (file.isFile())
+                list.add(new BatchScan.FilePayload(file));
+        }
+        new BatchScan(ordered, handler, limits).run(list.iterator());
+    }
+
+    /**
+     * Return the representation of every object remaining in this
+     * stream, decoding on several threads where possible.  The stream is
+     * divided at each {@code TC_RESET} written by
+     * {@link ObjectOutputStream#reset()}, since objects after a reset
+     * cannot refer to objects before it, and the parts between resets are
+     * decoded in parallel.  A stream written by a long-lived
+     * {@code ObjectOutputStream} that resets periodically can be scanned
+     * this way much faster than by calling {@link #readObject()}
+     * repeatedly.  As with {@link #iterator()}, the stream can also be
+     * several serial streams one after the other, each with its own
+     * header, and it is divided at each header too, so a log file written
+     * by many {@code ObjectOutputStream}s in turn is decoded on as many
+     * threads.  A stream with no resets or headers is decoded by the
+     * calling thread.  After this method returns, the stream is at its
+     * end.
+     *
+     * @return the objects in the stream, in order.
+     * @exception UnsupportedOperationException if this {@code SerialScan}
+     * was constructed from an {@code InputStream}.  Parallel scanning
+     * needs a {@code ByteBuffer}, {@code FileChannel} or {@code File}.
+     * @exception IOException if the stream cannot be scanned.
+     */
+    public List<SEntity> readAllParallel() throws IOException {
+        if (in instanceof StreamSerialInput)
+            throw new UnsupportedOperationException("Input is not a buffer or file");
+        int threads = Runtime.getRuntime().availableProcessors();
+        return SegmentScan.scan(this, threads);
+    }
+
     /**
      * Return the representation of the next object read from the serial stream.
      *
      * @return the representation of the object read from the serial stream.
      */
     public SEntity readObject() throws IOException {
-        enter("readObject");
+        if (counter == null && trace == null && budget == null)
+            return readEntity();
+        if (counter != null)
+            counter.start(in.position());
+        if (budget != null)
+            budget.start();
+        try {
+            return readEntity();
+        } catch (IOException e) {
+            if (trace != null && e != traced) {
+                // Nested calls see the same exception; report it once.
+                traced = e;
+                trace.failed(e, in.position());
+            }
+            throw e;
+        } finally {
+            if (counter != null)
+                counter.end(in.position(), handles.size());
+            if (budget != null)
+                budget.end();
+        }
+    }
+
+    /**
+     * <p>Return an iterator over the objects remaining in this stream.
+     * Each call to {@link Iterator#next next} returns what the next call to
+     * {@link #readObject()} would, and {@link Iterator#hasNext hasNext}
+     * returns false when the stream ends cleanly after a complete object,
+     * so there is no need to catch {@code EOFException}.  This makes it
+     * possible to write:</p>
+     *
+     * <pre>
+     * for (SEntity x : new SerialScan(file)) {
+     *     ...
+     * }
+     * </pre>
+     *
+     * <p>Unlike {@code readObject}, the iterator also accepts a stream
+     * that is several serial streams one after the other, each with its
+     * own header, as when objects are appended to a file by a new
+     * {@code ObjectOutputStream} each time.  Each new header is treated
+     * like a reset.</p>
+     *
+     * <p>The iterator reads the next object in {@code hasNext}, so once it
+     * has been used the stream should be read only through it.  If the
+     * stream cannot be read, {@code hasNext} or {@code next} throws an
+     * {@code IllegalStateException} whose cause is the
+     * {@code IOException}, and the iteration ends.  The iterator does not
+     * support {@code remove}.</p>
+     *
+     * @return an iterator over the remaining objects.
+     */
+    public Iterator<SEntity> iterator() {
+        return new ObjectIterator();
+    }
+
+    private SEntity readEntity() throws IOException {
+        if (trace != null)
+            trace.enter("readObject", in.position());
         Object x = readObjectOrEnd();
         if (x == END)
             throw new StreamCorruptedException("Unexpected end-block-data");
@@ -126,19 +526,248 @@ public class SerialScan {
             // These are internal serialization objects which shouldn't
             // escape to this level.
         }
-        exit(x);
+        if (trace != null)
+            trace.exit("readObject", in.position());
         return (SEntity) x;
     }
 
-    private SString readString() throws IOException {
-        enter("readString");
-        SEntity so = readObject();
+    /**
+     * Use the given cache for the class descriptors in this stream.
+     * Descriptors that are already in the cache are reused rather than
+     * built again, and new ones are added to it.  The same cache can be
+     * used by any number of {@code SerialScan} instances at once.  This
+     * method should be called before reading from the stream.
+     *
+     * @param cache the cache to use, or null to use none.
+     */
+    public void setClassDescCache(ClassDescCache cache) {
+        this.classDescCache = cache;
+    }
+
+    /**
+     * Count the work done by this {@code SerialScan} in the given
+     * metrics, which can be shared with other instances.  Only objects
+     * read by {@link #readObject()} are counted.
+     *
+     * @param metrics the metrics to add to, or null to stop counting.
+     */
+    public void setMetrics(SerialScanMetrics metrics) {
+        this.counter = (metrics == null) ? null : new SerialScanMetrics.Counter(metrics);
+    }
+
+    /**
+     * Limit the resources that this {@code SerialScan} may use to read
+     * the stream.  The values are copied, so later changes to
+     * {@code limits} have no effect on this scanner.  This method should
+     * be called before reading from the stream.
+     *
+     * @param limits the limits, or null for no limits.
+     */
+    public void setLimits(SerialLimits limits) {
+        this.budget = (limits == null) ? null : new SerialLimits.Budget(limits);
+    }
+
+    /**
+     * Send trace events for the decoding done by this {@code SerialScan}
+     * to the given listener.  Tracing can be turned on and off at any
+     * time.  When there is no listener, the only cost is a test at each
+     * place where an event could be sent.
+     *
+     * @param listener the listener, for example a {@link SerialTraceBuffer},
+     * or null to stop tracing.
+     */
+    public void setTraceListener(TraceListener listener) {
+        this.trace = listener;
+    }
+
+    /**
+     * Close the input that this {@code SerialScan} is reading from.
+     * This closes the {@code InputStream} or file given to the
+     * constructor, but not a {@code FileChannel}.
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Check that the next object in the serial stream is well-formed and
+     * advance past it, without building a representation of it.  All of
+     * the object is read, including class descriptors, fields, array
+     * elements, block data and references, and it is checked in the same
+     * way as by {@link #readObject()}, but strings and binary data are not
+     * decoded.  Skipped objects cannot be the target of references from
+     * objects later returned by {@link #readObject()}.
+     *
+     * @return the class name of the object, which is the array class
+     * name such as {@code "[I"} for an array, {@code "java.lang.String"}
+     * for a string, and {@code "java.lang.Class"} for a class.  The
+     * return value is null if the object is null, a reference to an
+     * earlier object, or block data.
+     * @exception EOFException if there are no more objects in the stream.
+     * @exception IOException if the object is not well-formed, or if
+     * the stream cannot be read.
+     */
+    public String skipObject() throws IOException {
+        String className = skipObjectOrEnd();
+        if (className == END_NAME)
+            throw new EOFException();
+        return className;
+    }
+
+    /**
+     * Check that the given {@code InputStream} contains a well-formed
+     * serial stream, reading it to the end.  This is the same as calling
+     * {@link #skipObject()} until the stream is exhausted, so it does not
+     * build a representation of the objects in the stream.  The
+     * {@code InputStream} is not closed.
+     *
+     * @param in the serial stream to be checked.
+     * @return the number of objects and bytes in the stream, and the
+     * class name of its first object.
+     * @exception IOException if the stream is not well-formed, or
+     * cannot be read.
+     */
+    public static ValidationResult validate(InputStream in) throws IOException {
+        return validate(in, null);
+    }
+
+    /**
+     * Check that the given {@code InputStream} contains a well-formed
+     * serial stream within the given limits, reading it to the end.
+     * Arrays, strings and binary data within objects are skipped without
+     * allocating anything for them, but class descriptors are decoded,
+     * and so are the values in their annotations.  A stream from an
+     * untrusted source should be checked with limits, so that those
+     * values cannot be arbitrarily big.
+     *
+     * @param in the serial stream to be checked.
+     * @param limits the limits that the stream must respect, or null for
+     * no limits.  The totals apply separately to each top-level object.
+     * @return the number of objects and bytes in the stream, and the
+     * class name of its first object.
+     * @exception SerialLimitException if the stream exceeds one of the
+     * limits.
+     * @exception IOException if the stream is not well-formed, or
+     * cannot be read.
+     */
+    public static ValidationResult validate(InputStream in, SerialLimits limits)
+            throws IOException {
+        // The stream is read to the end, so nothing is lost by reading ahead
+        SerialScan scan =
+                new SerialScan(in, StreamSerialInput.WHOLE_STREAM_READ_AHEAD);
+        scan.setLimits(limits);
+        int count = 0;
+        String className = null;
+        String name;
+        while ((name = scan.skipObjectOrEnd()) != END_NAME) {
+            if (count == 0)
+                className = name;
+            count++;
+        }
+        return new ValidationResult(count, scan.in.position(), className);
+    }
+
+    /*
+     * As skipObject, but return END_NAME at the end of the stream, which
+     * may come after a final TC_RESET.
+     */
+    private String skipObjectOrEnd() throws IOException {
+        SerialEventReader reader = eventReader();
+        reader.setCheckStrings(true);
+        SerialEventReader.Event event;
+        try {
+            do {
+                if (!reader.hasNext())
+                    return END_NAME;
+                event = reader.skipValue();
+            } while (event == SerialEventReader.Event.RESET);
+        } finally {
+            reader.setCheckStrings(false);
+        }
+        switch (event) {
+            case START_OBJECT:
+            case START_ARRAY:
+                return reader.getClassName();
+            case STRING:
+                return "java.lang.String";
+            case CLASS:
+                return "java.lang.Class";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parse the next object from the serial stream, reporting its contents
+     * to the given visitor instead of building a representation of it.
+     * Parts of the object that the visitor {@linkplain
+     * SerialVisitor.Action#SKIP skips} are checked but not decoded.
+     * Objects that are reported to a visitor cannot be the target of
+     * references from objects later returned by {@link #readObject()}.
+     *
+     * @param visitor the visitor to report the object's contents to.
+     * @exception EOFException if the stream has no more objects.
+     * @exception IOException if the stream cannot be read or is not
+     * a valid serial stream.
+     */
+    public void accept(SerialVisitor visitor) throws IOException {
+        SerialEventReader reader = eventReader();
+        SerialEventReader.Event event;
+        do {
+            if (!reader.hasNext())
+                throw new EOFException();
+            event = reader.next();
+        } while (event == SerialEventReader.Event.RESET);
+        reader.accept(visitor);
+    }
+
+    /**
+     * Read the rest of the serial stream and summarize the objects in it
+     * by class.  The stream is read in one pass without building a
+     * representation of its objects, so this can be used on streams too
+     * big for {@link #readObject()}.  Objects that are counted in the
+     * histogram cannot be the target of references from objects later
+     * returned by {@code readObject}.
+     *
+     * @param top the number of largest strings and largest arrays to
+     * list in the histogram.
+     * @return the histogram.
+     * @exception IllegalArgumentException if {@code top} is negative.
+     * @exception IOException if the stream cannot be read or is not
+     * a valid serial stream.
+     */
+    public ClassHistogram histogram(int top) throws IOException {
+        return new ClassHistogram(eventReader(), top);
+    }
+
+    SString readString() throws IOException {
+        if (trace != null)
+            trace.enter("readString", in.position());
+        // The strings we read here are type signatures and enum
+        // constant names, so they are looked up in the symbol table.
+        // A descriptor read outside readObject, as by SerialEventReader,
+        // is not counted as a read of its own.
+        SerialScanMetrics.Counter c = counter;
+        if (c != null && !c.isCounting())
+            counter = null;
+        SEntity so;
+        symbolic = true;
+        try {
+            so = readObject();
+        } finally {
+            symbolic = false;
+            counter = c;
+        }
+        if (so != null && !(so instanceof SString))
+            throw new StreamCorruptedException("Expected string: " + so.kind());
+        if (trace != null)
+            trace.exit("readString", in.position());
         return (SString) so;
     }
 
-    private SEntity readObjectOrEnd() throws IOException {
+    SEntity readObjectOrEnd() throws IOException {
         while (true) {
-            int code = din.readByte();
+            int code = in.readByte();
             switch (code) {
                 case TC_OBJECT:
                     return newObject();
@@ -175,23 +804,39 @@ public class SerialScan {
         }
     }
 
-    private SEntity newObject() throws IOException {
-        enter("newObject");
+    SEntity newObject() throws IOException {
+        if (trace != null)
+            trace.enter("newObject", in.position());
+        if (budget != null)
+            budget.enter();
+        long start = in.position() - 1;
         ObjectClassDesc desc = classDesc();
+        if (desc == null)
+            throw new StreamCorruptedException("Null class descriptor");
         SObject t = new SObject(desc.getType());
-        newHandle(t);
+        int handle = newHandle(t, start);
+        if (counter != null) {
+            counter.objects++;
+            counter.enter();
+        }
         for (ObjectClassDesc cd : desc.getHierarchy())
             classData(t, cd);
-        exit(t);
+        if (counter != null)
+            counter.exit();
+        if (budget != null)
+            budget.exit();
+        endHandle(handle);
+        if (trace != null)
+            trace.exit("newObject", in.position());
         return t;
     }
 
-    private void classData(SObject t, ObjectClassDesc cd) throws IOException {
+    void classData(SObject t, ObjectClassDesc cd) throws IOException {
         int flags = cd.getFlags();
         if ((flags & SC_SERIALIZABLE) != 0) {
             // wrclass or nowrclass, both start with values:
             for (FieldDesc fieldDesc : cd.getFields()) {
-                SEntity x = fieldDesc.read();
+                SEntity x = fieldDesc.read(this);
                 t.setField(fieldDesc.getName(), x);
             }
             if ((flags & SC_WRITE_METHOD) != 0) {
@@ -211,21 +856,28 @@ public class SerialScan {
             t.addAnnotation(x);
     }
 
-    private ClassDesc newClass() throws IOException {
+    ClassDesc newClass() throws IOException {
+        long start = in.position() - 1;
         ClassDesc desc = classDesc();
-        newHandle(desc);
+        endHandle(newHandle(desc, start));
         return desc;
     }
 
-    private ObjectClassDesc classDesc() throws IOException {
-        int code = din.readByte();
+    ObjectClassDesc classDesc() throws IOException {
+        int code = in.readByte();
         return classDesc(code);
     }
 
-    private ObjectClassDesc classDesc(int code) throws IOException {
-        enter("classDesc", code);
+    ObjectClassDesc classDesc(int code) throws IOException {
+        if (trace != null)
+            trace.enter("classDesc", in.position());
+        if (budget != null)
+            budget.enter();
         ObjectClassDesc classDesc = classDesc0(code);
-        exit(classDesc);
+        if (budget != null)
+            budget.exit();
+        if (trace != null)
+            trace.exit("classDesc", in.position());
         return classDesc;
     }
 
@@ -237,56 +889,103 @@ public class SerialScan {
                 return newProxyClassDesc();
             case TC_NULL:
                 return null;
-            case TC_REFERENCE:
-                return (ObjectClassDesc) prevObject();
+            case TC_REFERENCE: {
+                SEntity x = prevObject();
+                if (!(x instanceof ObjectClassDesc))
+                    throw new StreamCorruptedException("Not a class descriptor");
+                return (ObjectClassDesc) x;
+            }
             default:
                 throw new StreamCorruptedException("Bad class descriptor");
         }
     }
 
     private ObjectClassDesc newPlainClassDesc() throws IOException {
-        enter("newPlainClassDesc");
-        String className = din.readUTF();
-        show("className", className);
-        long serialVersionUID = din.readLong();
-        show("serialVersionUID", serialVersionUID);
+        if (trace != null)
+            trace.enter("newPlainClassDesc", in.position());
+        long start = in.position() - 1;
+        String className = in.readSymbol();
+        if (trace != null)
+            trace.show("className", className, in.position());
+        long serialVersionUID = in.readLong();
+        if (trace != null)
+            trace.show("serialVersionUID", serialVersionUID,
+                    in.position());
         // classDescInfo:
-        int flags = din.readByte();
-        show("flags", flags);
+        int flags = in.readByte();
+        if (trace != null)
+            trace.show("flags", flags, in.position());
         ObjectClassDesc desc;
         if (className.startsWith("["))
             desc = new ArrayClassDesc(className, flags);
         else
             desc = new ObjectClassDesc(className, flags);
-        newHandle(desc);
+        desc.setSerialVersionUID(serialVersionUID);
+        int handle = newHandle(desc, start);
         // fields:
-        int nfields = din.readShort();
-        show("nfields", nfields);
+        int nfields = in.readShort();
+        if (trace != null)
+            trace.show("nfields", nfields, in.position());
+        if (nfields < 0)
+            throw new StreamCorruptedException("Bad field count: " + nfields);
+        FieldDesc[] expected = null;
+        if (classDescCache != null) {
+            ObjectClassDesc cached =
+                    classDescCache.get(className, serialVersionUID);
+            if (cached != null && cached.getFields().length == nfields)
+                expected = cached.getFields();
+        }
         FieldDesc[] fields = new FieldDesc[nfields];
-        for (int i = 0; i < nfields; i++)
-            fields[i] = fieldDesc();
-        desc.setFields(fields);
+        boolean same = (expected != null);
+        for (int i = 0; i < nfields; i++) {
+            fields[i] = fieldDesc(same ? expected[i] : null);
+            same = same && (fields[i] == expected[i]);
+        }
+        desc.setFields(same ? expected : fields);
         classAnnotation(desc);
         // superClassDesc:
         ObjectClassDesc superDesc = classDesc();
-        show("superDesc", superDesc);
+        if (trace != null)
+            trace.show("superDesc", superDesc, in.position());
+        // A reference back to this descriptor, or to one that refers
+        // to it, would make the hierarchy endless.
+        for (ObjectClassDesc d = superDesc; d != null; d = d.getSuperClassDesc()) {
+            if (d == desc)
+                throw new StreamCorruptedException("Circular class hierarchy");
+        }
         desc.setSuperClassDesc(superDesc);
-        exit(desc);
+        if (classDescCache != null) {
+            ObjectClassDesc cached = classDescCache.canonical(desc);
+            if (cached != desc) {
+                replaceHandle(handle, cached);
+                desc = cached;
+            }
+        }
+        endHandle(handle);
+        if (trace != null)
+            trace.exit("newPlainClassDesc", in.position());
         return desc;
     }
 
     private ObjectClassDesc newProxyClassDesc() throws IOException {
+        long start = in.position() - 1;
         ObjectClassDesc desc = new ObjectClassDesc("<Proxy>", SC_SERIALIZABLE);
         // SC_SERIALIZABLE but not SC_WRITE_METHOD
-        newHandle(desc);
-        int count = din.readInt();
-        String[] interfaces = new String[count];
+        desc.setFields(new FieldDesc[0]);
+        int handle = newHandle(desc, start);
+        int count = in.readInt();
+        if (count < 0)
+            throw new StreamCorruptedException("Bad interface count: " + count);
+        if (budget != null)
+            budget.array(count);
+        // We don't do anything with the interface names for now, so they
+        // aren't kept, and a bad count can't make us allocate anything.
         for (int i = 0; i < count; i++)
-            interfaces[i] = din.readUTF();
-        // we don't do anything with this array for now
+            in.readSymbol();
         classAnnotation(desc);
         ObjectClassDesc superDesc = classDesc();
         desc.setSuperClassDesc(superDesc);
+        endHandle(handle);
         return desc;
     }
 
@@ -297,9 +996,15 @@ public class SerialScan {
             ;
     }
 
-    private FieldDesc fieldDesc() throws IOException {
-        enter("fieldDesc");
-        char c = (char) din.readByte();
+    /*
+     * Read a field descriptor.  If it is the same as the expected one,
+     * which comes from a cached class descriptor, return that rather than
+     * a new FieldDesc.
+     */
+    private FieldDesc fieldDesc(FieldDesc expected) throws IOException {
+        if (trace != null)
+            trace.enter("fieldDesc", in.position());
+        char c = (char) in.readByte();
         final boolean primitive;
         switch (c) {
             case 'B':
@@ -318,113 +1023,246 @@ public class SerialScan {
             default:
                 throw new StreamCorruptedException("Bad field type " + (int) c);
         }
-        String name = din.readUTF();
+        String name = in.readSymbol();
         FieldDesc desc;
-        if (primitive)
-            desc = new PrimitiveFieldDesc(name, c);
-        else {
-            String className = readString().getValue();
-            desc = new ReferenceFieldDesc(name, className);
+        if (primitive) {
+            if (expected != null && expected.matches(c, name, null))
+                desc = expected;
+            else
+                desc = new PrimitiveFieldDesc(name, c);
+        } else {
+            SString type = readString();
+            if (type == null)
+                throw new StreamCorruptedException("Null field type: " + name);
+            String className = type.getValue();
+            if (expected != null && expected.matches(c, name, className))
+                desc = expected;
+            else
+                desc = new ReferenceFieldDesc(name, className);
         }
-        exit(desc);
+        if (trace != null)
+            trace.exit("fieldDesc", in.position());
         return desc;
     }
 
-    private SArray newArray() throws IOException {
-        enter("newArray");
-        ArrayClassDesc classDesc = (ArrayClassDesc) classDesc();
-        show("classDesc", classDesc);
-        int size = din.readInt();
-        show("size", size);
-        SArray array = new SArray(classDesc.getType(), size);
-        show("array class", array.getClass().getName());
-        newHandle(array);
+    SArray newArray() throws IOException {
+        if (trace != null)
+            trace.enter("newArray", in.position());
+        if (budget != null)
+            budget.enter();
+        long start = in.position() - 1;
+        ObjectClassDesc desc = classDesc();
+        if (!(desc instanceof ArrayClassDesc))
+            throw new StreamCorruptedException("Bad array class descriptor");
+        ArrayClassDesc classDesc = (ArrayClassDesc) desc;
+        if (trace != null)
+            trace.show("classDesc", classDesc, in.position());
+        int size = in.readInt();
+        if (trace != null)
+            trace.show("size", size, in.position());
+        if (size < 0)
+            throw new StreamCorruptedException("Bad array size: " + size);
+        if (budget != null)
+            budget.array(size);
         ClassDesc componentClassDesc = classDesc.getComponentClassDesc();
+        if (componentClassDesc instanceof PrimitiveClassDesc) {
+            SArray array = newPrimitiveArray(classDesc.getType(),
+                    (PrimitiveClassDesc) componentClassDesc, size, start);
+            if (budget != null)
+                budget.exit();
+            if (trace != null)
+                trace.exit("newArray", in.position());
+            return array;
+        }
+        SArray array = new SArray(classDesc.getType(), size);
+        if (trace != null)
+            trace.show("array class", array.getClass().getName(),
+                    in.position());
+        int handle = newHandle(array, start);
+        if (counter != null) {
+            counter.arrays++;
+            counter.enter();
+        }
         for (int i = 0; i < size; i++)
-            array.set(i, componentClassDesc.read());
-        exit(array);
+            array.set(i, componentClassDesc.read(this));
+        if (counter != null)
+            counter.exit();
+        if (budget != null)
+            budget.exit();
+        endHandle(handle);
+        if (trace != null)
+            trace.exit("newArray", in.position());
         return array;
     }
 
-    private SString newString() throws IOException {
-        SString s = new SString(din.readUTF());
-        newHandle(s);
+    /*
+     * The elements of a primitive array are written back to back with no
+     * intervening type codes, so we can read them all at once rather than
+     * making an SPrim for each one.
+     */
+    SArray newPrimitiveArray(String type, PrimitiveClassDesc componentDesc,
+            int size, long start) throws IOException {
+        long nbytes = (long) size * componentDesc.getSize();
+        if (nbytes > Integer.MAX_VALUE)
+            throw new StreamCorruptedException("Array too large: " + size);
+        if (budget != null)
+            budget.bytes(nbytes);
+        SArray array = new SPrimitiveArray(type, componentDesc,
+                in.readBuffer((int) nbytes));
+        if (counter != null) {
+            counter.arrays++;
+            counter.enter();
+            counter.exit();
+        }
+        endHandle(newHandle(array, start));
+        return array;
+    }
+
+    SString newString() throws IOException {
+        long start = in.position() - 1;
+        SString s;
+        if (symbolic)
+            s = new SString(in.readSymbol());
+        else {
+            s = new SString(in.readUTF());
+            if (counter != null)
+                counter.strings++;
+        }
+        symbolic = false;
+        if (budget != null)
+            budget.string(in.position() - start - 3);
+        endHandle(newHandle(s, start));
         return s;
     }
 
-    private SString newLongString() throws IOException {
-        /*
-         * The Java libraries don't offer a way to read a UTF8-encoded
-         * string without reading an initial two-byte length.  Serialized
-         * long strings have an eight-byte length.  So we fabricate a
-         * sequence of substreams where each but the last has a length
-         * of 65535 and the last has whatever bytes are left over.
-         */
-        long len = din.readLong();
-        StringBuilder sb = new StringBuilder();
-        while (len > 0) {
-            int slice = (int) Math.min(len, 65535);
-            byte[] blen = {(byte) (slice >> 8), (byte) slice};
-            InputStream lenis = new ByteArrayInputStream(blen);
-            InputStream seqis = new SequenceInputStream(lenis, din);
-            DataInputStream ddin = new DataInputStream(seqis);
-            String s = ddin.readUTF();
-            assert s.length() == slice;
-            sb.append(s);
-            len -= slice;
-        }
-        return new SString(sb.toString());
-    }
-
-    private SObject newEnum() throws IOException {
+    SString newLongString() throws IOException {
+        long start = in.position() - 1;
+        // Serialized long strings have an eight-byte length in bytes.
+        long len = in.readLong();
+        if (len < 0)
+            throw new StreamCorruptedException("Bad string length: " + len);
+        if (budget != null)
+            budget.string(len);
+        SString s = new SString(in.readUTF(len));
+        if (counter != null)
+            counter.strings++;
+        endHandle(newHandle(s, start));
+        return s;
+    }
+
+    SObject newEnum() throws IOException {
+        long start = in.position() - 1;
         ClassDesc classDesc = classDesc();
+        if (classDesc == null)
+            throw new StreamCorruptedException("Null class descriptor");
         SObject enumConst = new SObject(classDesc.getType());
-        newHandle(enumConst);
+        int handle = newHandle(enumConst, start);
         SString constName = readString();
         enumConst.setField("<name>", constName);
+        endHandle(handle);
         return enumConst;
     }
 
-    private void exception() throws IOException {
+    void exception() throws IOException {
         reset();
-        IOException exc = new IOException(readObject().toString());
+        IOException exc = new IOException(String.valueOf(readObject()));
         reset();
         throw new WriteAbortedException("Writing aborted", exc);
     }
 
     private SBlockData blockDataShort() throws IOException {
-        int len = din.readUnsignedByte();
+        int len = in.readUnsignedByte();
         return blockData(len);
     }
 
     private SBlockData blockDataLong() throws IOException {
-        int len = din.readInt();
+        int len = in.readInt();
         return blockData(len);
     }
 
     private SBlockData blockData(int len) throws IOException {
-        byte[] data = new byte[len];
-        din.readFully(data);
-        return new SBlockData(data);
+        if (len < 0)
+            throw new StreamCorruptedException("Bad block data length: " + len);
+        if (counter != null)
+            counter.blockDataBytes += len;
+        if (budget != null)
+            budget.bytes(len);
+        return new SBlockData(in.readBuffer(len));
     }
 
-    private void newHandle(SEntity o) {
+    /**
+     * Assign the next handle to the given entity and return the handle.
+     * The entity's representation in the stream starts at the given
+     * position, which is that of its type code.
+     */
+    int newHandle(SEntity o, long start) throws IOException {
+        if (budget != null)
+            budget.handle(handles.size());
         handles.add(o);
+        return baseWireHandle + handles.size() - 1;
+    }
+
+    /*
+     * Replace the entity with the given handle by an equivalent one.
+     */
+    void replaceHandle(int handle, SEntity o) {
+        int i = handle - baseWireHandle;
+        if (i >= 0 && i < handles.size())
+            handles.set(i, o);
+    }
+
+    /*
+     * Forget the handles from the given one on, which were assigned while
+     * reading something that turned out to be incomplete.
+     */
+    void truncateHandles(int nextHandle) {
+        int n = nextHandle - baseWireHandle;
+        while (handles.size() > n)
+            handles.remove(handles.size() - 1);
+    }
+
+    /**
+     * Called when the representation of the entity with the given handle
+     * has been completely read.  Subclasses that record where each handle
+     * appears in the stream override this and {@link #newHandle}.
+     */
+    void endHandle(int handle) {
+    }
+
+    /**
+     * The handle that the next call to {@link #newHandle} will assign.
+     */
+    int nextHandle() {
+        return baseWireHandle + handles.size();
     }
 
-    private SEntity prevObject() throws IOException {
-        int h = din.readInt();
+    SEntity prevObject() throws IOException {
+        SEntity x = handle(in.readInt());
+        if (x == UNREAD)
+            throw new StreamCorruptedException("Reference to unread object");
+        return x;
+    }
+
+    /**
+     * Return the entity with the given handle, checking that the handle
+     * has been assigned.
+     */
+    SEntity handle(int h) throws IOException {
         int i = h - baseWireHandle;
-        if (i < 0 || i > handles.size())
+        if (i < 0 || i >= handles.size())
             throw new StreamCorruptedException("Bad handle: " + h);
         return handles.get(i);
     }
 
-    private void reset() {
+    void reset() {
+        if (counter != null) {
+            counter.resets++;
+            counter.handles(handles.size());
+        }
         handles.clear();
     }
 
-    abstract class ClassDesc extends SEntity {
+    abstract static class ClassDesc extends SEntity {
         ClassDesc(String name) {
             super(name);
             this.name = name;
@@ -438,25 +1276,28 @@ public class SerialScan {
         String kind() {
             throw new UnsupportedOperationException();
         }
-        String contents() {
+        void renderContents(SerialRenderer.Output out) {
             throw new UnsupportedOperationException();
         }
 
-        abstract SEntity read() throws IOException;
+        /* Class descriptors don't depend on the scanner that read them,
+         * so the scanner to read the value from is passed explicitly.
+         */
+        abstract SEntity read(SerialScan scan) throws IOException;
         abstract Class<?> arrayComponentClass();
         public abstract String toString();
 
         private final String name;
     }
 
-    class ObjectClassDesc extends ClassDesc {
+    static class ObjectClassDesc extends ClassDesc {
         ObjectClassDesc(String name, int flags) {
             super(name);
             this.flags = flags;
         }
 
-        SEntity read() throws IOException {
-            return readObject();
+        SEntity read(SerialScan scan) throws IOException {
+            return scan.readObject();
         }
 
         Class<?> arrayComponentClass() {
@@ -478,44 +1319,63 @@ public class SerialScan {
             return flags;
         }
 
+        void setSerialVersionUID(long serialVersionUID) {
+            this.serialVersionUID = serialVersionUID;
+        }
+
+        long getSerialVersionUID() {
+            return serialVersionUID;
+        }
+
         void setSuperClassDesc(ObjectClassDesc superClassDesc) {
             this.superClassDesc = superClassDesc;
         }
 
+        ObjectClassDesc getSuperClassDesc() {
+            return superClassDesc;
+        }
+
         public String toString() {
             // Don't include getFields() because could provoke recursion
             return getType();
         }
 
         List<ObjectClassDesc> getHierarchy() {
-            if (hierarchy.isEmpty()) {
+            // A ClassDescCache can share this between threads, so the
+            // list is only published once it is complete.
+            List<ObjectClassDesc> h = hierarchy;
+            if (h == null) {
+                List<ObjectClassDesc> list = new ArrayList<ObjectClassDesc>();
                 if (superClassDesc != null)
-                    hierarchy.addAll(superClassDesc.getHierarchy());
-                hierarchy.add(this);
+                    list.addAll(superClassDesc.getHierarchy());
+                list.add(this);
+                hierarchy = h = Collections.unmodifiableList(list);
             }
-            return hierarchy;
+            return h;
         }
 
         private final int flags;
+        private long serialVersionUID;
         private FieldDesc[] fields;
         private ObjectClassDesc superClassDesc;
-        private final List<ObjectClassDesc> hierarchy =
-                new ArrayList<ObjectClassDesc>();
+        private List<ObjectClassDesc> hierarchy;
     }
 
-    class ArrayClassDesc extends ObjectClassDesc {
+    static class ArrayClassDesc extends ObjectClassDesc {
         ArrayClassDesc(String name, int flags) throws IOException {
             super(name, flags);
             String componentName = name.substring(1);
             if (componentName.startsWith("["))
                 componentClassDesc = new ArrayClassDesc(componentName, flags);
             else if (componentName.startsWith("L")) {
+                if (componentName.length() < 3 || !componentName.endsWith(";"))
+                    throw new StreamCorruptedException("Bad array type " + name);
                 componentName =
                         componentName.substring(1, componentName.length() - 1);
                 // "Ljava.lang.Integer;" -> "java.lang.Integer"
                 componentClassDesc = new ObjectClassDesc(componentName, flags);
             } else {
-                if (componentName.length() > 1)
+                if (componentName.length() != 1)
                     throw new StreamCorruptedException("Bad array type " + name);
                 char typeCode = componentName.charAt(0);
                 componentClassDesc =
@@ -538,73 +1398,151 @@ public class SerialScan {
         private final Class<?> arrayClass;
     }
 
-    class PrimitiveClassDescFactory {
-        private final Map<Character, PrimitiveClassDesc> descMap =
-                new HashMap<Character, PrimitiveClassDesc>();
+    /*
+     * The primitive class descriptors are stateless, so a single immutable
+     * set of them is shared by every SerialScan.  Each one reads its value
+     * with a direct call to the appropriate SerialInput method rather
+     * than going through reflection, since this is on the path for every
+     * primitive field and every element of a primitive array.
+     */
+    static final class PrimitiveClassDescFactory {
+        private final PrimitiveClassDesc[] descs = new PrimitiveClassDesc[128];
 
-        {
-            String primitives =
-                    "BByte CChar DDouble FFloat IInt JLong SShort ZBoolean";
-            for (String prim : primitives.split(" ")) {
-                char typeCode = prim.charAt(0);
-                String readWhat = prim.substring(1);
-                Method readMethod;
-                try {
-                    readMethod =
-                            DataInputStream.class.getMethod("read" + readWhat);
-                } catch (Exception e) {
-                    throw new RuntimeException("No read method for " + readWhat,
-                            e);
+        PrimitiveClassDescFactory() {
+            add(new PrimitiveClassDesc('B', byte.class, 1) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("byte", scan.in.readByte());
                 }
-                Class<?> componentClass;
-                try {
-                    Class<?> arrayClass = Class.forName("[" + typeCode);
-                    componentClass = arrayClass.getComponentType();
-                } catch (Exception e) {
-                    throw new RuntimeException("No array class for " + typeCode,
-                            e);
+                Object box(long bits) {
+                    return (byte) bits;
                 }
-                PrimitiveClassDesc desc =
-                        new PrimitiveClassDesc(typeCode, readMethod, componentClass);
-                descMap.put(typeCode, desc);
-            }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("byte", data.get(i));
+                }
+            });
+            add(new PrimitiveClassDesc('C', char.class, 2) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("char", scan.in.readChar());
+                }
+                Object box(long bits) {
+                    return (char) bits;
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("char", data.getChar(i * 2));
+                }
+            });
+            add(new PrimitiveClassDesc('D', double.class, 8) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("double", scan.in.readDouble());
+                }
+                Object box(long bits) {
+                    return Double.longBitsToDouble(bits);
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("double", data.getDouble(i * 8));
+                }
+            });
+            add(new PrimitiveClassDesc('F', float.class, 4) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("float", scan.in.readFloat());
+                }
+                Object box(long bits) {
+                    return Float.intBitsToFloat((int) bits);
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("float", data.getFloat(i * 4));
+                }
+            });
+            add(new PrimitiveClassDesc('I', int.class, 4) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("int", scan.in.readInt());
+                }
+                Object box(long bits) {
+                    return (int) bits;
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("int", data.getInt(i * 4));
+                }
+            });
+            add(new PrimitiveClassDesc('J', long.class, 8) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("long", scan.in.readLong());
+                }
+                Object box(long bits) {
+                    return bits;
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("long", data.getLong(i * 8));
+                }
+            });
+            add(new PrimitiveClassDesc('S', short.class, 2) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("short", scan.in.readShort());
+                }
+                Object box(long bits) {
+                    return (short) bits;
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("short", data.getShort(i * 2));
+                }
+            });
+            add(new PrimitiveClassDesc('Z', boolean.class, 1) {
+                SEntity read(SerialScan scan) throws IOException {
+                    return new SPrim("boolean", scan.in.readBoolean());
+                }
+                Object box(long bits) {
+                    return bits != 0;
+                }
+                SEntity get(ByteBuffer data, int i) {
+                    return new SPrim("boolean", data.get(i) != 0);
+                }
+            });
         }
 
-                PrimitiveClassDesc forTypeCode(char c) throws IOException {
-                    PrimitiveClassDesc desc = descMap.get(c);
-                    if (desc == null)
-                        throw new StreamCorruptedException("Bad type code " + (int) c);
-                    return desc;
-                }
+        private void add(PrimitiveClassDesc desc) {
+            descs[desc.getTypeCode()] = desc;
+        }
+
+        PrimitiveClassDesc forTypeCode(char c) throws IOException {
+            PrimitiveClassDesc desc = (c < descs.length) ? descs[c] : null;
+            if (desc == null)
+                throw new StreamCorruptedException("Bad type code " + (int) c);
+            return desc;
+        }
     }
-    private final PrimitiveClassDescFactory
+    private static final PrimitiveClassDescFactory
             primitiveClassDescFactory = new PrimitiveClassDescFactory();
 
-    class PrimitiveClassDesc extends ClassDesc {
-        PrimitiveClassDesc(char typeCode, Method readMethod,
-                Class<?> componentClass) {
+    abstract static class PrimitiveClassDesc extends ClassDesc {
+        PrimitiveClassDesc(char typeCode, Class<?> componentClass, int size) {
             super(String.valueOf(typeCode));
-            this.readMethod = readMethod;
+            this.typeCode = typeCode;
             this.componentClass = componentClass;
+            this.size = size;
         }
 
-        SEntity read() throws IOException {
-            try {
-                Object wrapped = readMethod.invoke(din);
-                return new SPrim(wrapped);
-            } catch (IllegalAccessException e) {
-                throw new RuntimeException("Read method invoke failed", e);
-            } catch (InvocationTargetException e) {
-                Throwable t = e.getTargetException();
-                if (t instanceof IOException)
-                    throw (IOException) t;
-                else if (t instanceof RuntimeException)
-                    throw (RuntimeException) t;
-                else if (t instanceof Error)
-                    throw (Error) t;
-                else
-                    throw new RuntimeException(t.toString(), t);
-            }
+        /**
+         * Decode element {@code i} of a serialized array of this primitive
+         * type, where {@code data} holds the elements in big-endian order.
+         */
+        abstract SEntity get(ByteBuffer data, int i);
+
+        /**
+         * Wrap a value of this primitive type, given its serialized bits
+         * sign-extended to a long.
+         */
+        abstract Object box(long bits);
+
+        char getTypeCode() {
+            return typeCode;
+        }
+
+        /**
+         * The number of bytes occupied by a value of this type in a
+         * serial stream.
+         */
+        int getSize() {
+            return size;
         }
 
         Class<?> arrayComponentClass() {
@@ -615,18 +1553,25 @@ public class SerialScan {
             return componentClass.getName();
         }
 
-        private final Method readMethod;
+        private final char typeCode;
         private final Class<?> componentClass;
+        private final int size;
     }
 
-    abstract class FieldDesc {
+    abstract static class FieldDesc {
         FieldDesc(String name) {
             this.name = name;
         }
 
-        abstract SEntity read() throws IOException;
+        abstract SEntity read(SerialScan scan) throws IOException;
         public abstract String toString();
 
+        /*
+         * True if this descriptor has the given type code, name, and for
+         * a reference field, type signature.
+         */
+        abstract boolean matches(char typeCode, String name, String className);
+
         public String getName() {
             return this.name;
         }
@@ -634,14 +1579,19 @@ public class SerialScan {
         private final String name;
     }
 
-    class ReferenceFieldDesc extends FieldDesc {
+    static class ReferenceFieldDesc extends FieldDesc {
         ReferenceFieldDesc(String name, String className) {
             super(name);
             this.className = className;
         }
 
-        SEntity read() throws IOException {
-            return readObject();
+        SEntity read(SerialScan scan) throws IOException {
+            return scan.readObject();
+        }
+
+        boolean matches(char typeCode, String name, String className) {
+            return name.equals(getName()) && className != null &&
+                    className.equals(this.className);
         }
 
         public String toString() {
@@ -651,14 +1601,22 @@ public class SerialScan {
         private final String className;
     }
 
-    class PrimitiveFieldDesc extends FieldDesc {
+    static class PrimitiveFieldDesc extends FieldDesc {
         PrimitiveFieldDesc(String name, char type) throws IOException {
             super(name);
             classDesc = primitiveClassDescFactory.forTypeCode(type);
         }
 
-        SEntity read() throws IOException {
-            return classDesc.read();
+        SEntity read(SerialScan scan) throws IOException {
+            return classDesc.read(scan);
+        }
+
+        PrimitiveClassDesc getClassDesc() {
+            return classDesc;
+        }
+
+        boolean matches(char typeCode, String name, String className) {
+            return typeCode == classDesc.getTypeCode() && name.equals(getName());
         }
 
         public String toString() {
@@ -668,8 +1626,93 @@ public class SerialScan {
         private final PrimitiveClassDesc classDesc;
     }
 
+    /*
+     * Reads top-level values through the event reader, which can see that
+     * the stream has ended without an exception, and which handles resets
+     * and appended stream headers between values.  Each value, with any
+     * resets before it, counts as one readObject for metrics, limits and
+     * tracing.  The event reader checks the limits for what it reads
+     * itself before handing over to readCurrent, such as the length of a
+     * top-level array.
+     */
+    private class ObjectIterator implements Iterator<SEntity> {
+        public boolean hasNext() {
+            if (!ready && !done) {
+                try {
+                    advance();
+                } catch (IOException e) {
+                    done = true;
+                    throw new IllegalStateException(
+                            "Could not read object: " + e.getMessage(), e);
+                }
+            }
+            return ready;
+        }
+
+        public SEntity next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            SEntity x = next;
+            next = null;
+            ready = false;
+            return x;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() throws IOException {
+            SerialEventReader reader = eventReader();
+            if (!reader.hasNext()) {
+                done = true;
+                return;
+            }
+            if (counter != null)
+                counter.start(reader.position());
+            if (budget != null)
+                budget.start();
+            try {
+                while (reader.next() == SerialEventReader.Event.RESET) {
+                    if (!reader.hasNext()) {
+                        done = true;
+                        return;
+                    }
+                }
+                next = reader.readCurrent();
+                ready = true;
+            } catch (IOException e) {
+                if (trace != null && e != traced) {
+                    traced = e;
+                    trace.failed(e, in.position());
+                }
+                throw e;
+            } finally {
+                if (counter != null)
+                    counter.end(in.position(), handles.size());
+                if (budget != null)
+                    budget.end();
+            }
+        }
+
+        private SEntity next;
+        private boolean ready;
+        private boolean done;
+    }
+
     private static final SEntity END = new SString("END");
-    private final InputStream in;
-    private final DataInputStream din;
+    private static final String END_NAME = new String("END");
+    /* Occupies the handle table slot of a value that was not built. */
+    static final SEntity UNREAD = new SString("UNREAD");
+    final SerialInput in;
     private final List<SEntity> handles = new ArrayList<SEntity>();
+    private SerialEventReader eventReader;
+    private ClassDescCache classDescCache;
+    private SerialScanMetrics.Counter counter;
+    SerialLimits.Budget budget;
+    private TraceListener trace;
+    /* The last exception reported to the trace listener. */
+    private IOException traced;
+    /* True while reading a string that should come from the symbol table. */
+    private boolean symbolic;
 }
@@ -0,0 +1,76 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+
+/**
+ * Receives the results of scanning a batch of independent serial
+ * streams with one of the {@code SerialScan.scanAll} methods.  The
+ * methods of a handler are always called from the thread that called
+ * {@code scanAll}, one at a time, so a handler does not need to be
+ * thread-safe even though the streams are scanned in parallel.
+ *
+ * @see SerialScan#scanAll(java.util.Iterator, boolean, SerialScanHandler)
+ */
+public interface SerialScanHandler {
+    /**
+     * Called with the first object of the stream at the given position
+     * in the batch.
+     *
+     * @param index the position of the stream in the batch, starting at 0.
+     * @param entity the representation of the first object in the stream.
+     * @exception IOException if the handler fails.  No more streams are
+     * scanned and {@code scanAll} throws the exception.
+     */
+    public void scanned(int index, SEntity entity) throws IOException;
+
+    /**
+     * Called if the stream at the given position in the batch could not
+     * be scanned.
+     *
+     * @param index the position of the stream in the batch, starting at 0.
+     * @param e the exception that prevented the stream from being scanned.
+     * @exception IOException if the handler fails, for example by
+     * rethrowing {@code e}.  No more streams are scanned and
+     * {@code scanAll} throws the exception.
+     */
+    public void failed(int index, IOException e) throws IOException;
+}
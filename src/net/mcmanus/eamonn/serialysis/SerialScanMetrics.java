@@ -0,0 +1,238 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counts of the work done by a set of {@link SerialScan} instances,
+ * which can be registered in an {@link javax.management.MBeanServer} as
+ * a Standard MBean.  Counting is turned on for a scanner by giving it a
+ * {@code SerialScanMetrics} with {@link SerialScan#setMetrics
+ * setMetrics}, and the same {@code SerialScanMetrics} can be given to
+ * any number of scanners in any number of threads:</p>
+ *
+ * <pre>
+ * SerialScanMetrics metrics = new SerialScanMetrics();
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(
+ *         metrics, new ObjectName("net.mcmanus.eamonn.serialysis:type=SerialScanMetrics"));
+ * ...
+ * SerialScan scan = new SerialScan(in);
+ * scan.setMetrics(metrics);
+ * </pre>
+ *
+ * <p>Each scanner counts in plain fields of its own while it reads an
+ * object, and adds its counts to the shared totals once the object is
+ * complete, so the cost of counting does not depend on how many threads
+ * are scanning.</p>
+ */
+public class SerialScanMetrics implements SerialScanMetricsMBean {
+    /**
+     * Create a {@code SerialScanMetrics} with all counts zero.
+     */
+    public SerialScanMetrics() {
+    }
+
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    public long getBytesRead() {
+        return bytes.get();
+    }
+
+    public long getObjectCount() {
+        return objects.get();
+    }
+
+    public long getArrayCount() {
+        return arrays.get();
+    }
+
+    public long getStringCount() {
+        return strings.get();
+    }
+
+    public long getBlockDataBytes() {
+        return blockDataBytes.get();
+    }
+
+    public long getResetCount() {
+        return resets.get();
+    }
+
+    public long getHandleHighWaterMark() {
+        return handleHighWater.get();
+    }
+
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long[] getLatencyHistogram() {
+        long[] counts = new long[latency.length()];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = latency.get(i);
+        return counts;
+    }
+
+    public long[] getLatencyBucketLimitsMicros() {
+        return LATENCY_LIMITS_MICROS.clone();
+    }
+
+    public void reset() {
+        for (AtomicLong a : new AtomicLong[] {
+            reads, bytes, objects, arrays, strings, blockDataBytes, resets,
+            handleHighWater, maxDepth,
+        })
+            a.set(0);
+        for (int i = 0; i < latency.length(); i++)
+            latency.set(i, 0);
+    }
+
+    /*
+     * The counts of one scanner for the object it is reading.
+     */
+    static class Counter {
+        Counter(SerialScanMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        /*
+         * Field values are read with readObject too, so only the
+         * outermost call is counted.
+         */
+        void start(long position) {
+            if (nesting++ > 0)
+                return;
+            startPosition = position;
+            startNanos = System.nanoTime();
+            depth = 0;
+        }
+
+        /* True between the outermost start and end. */
+        boolean isCounting() {
+            return nesting > 0;
+        }
+
+        void enter() {
+            if (++depth > maxDepth)
+                maxDepth = depth;
+        }
+
+        void exit() {
+            depth--;
+        }
+
+        void handles(int n) {
+            if (n > handleHighWater)
+                handleHighWater = n;
+        }
+
+        void end(long position, int handles) {
+            if (--nesting > 0)
+                return;
+            long nanos = System.nanoTime() - startNanos;
+            handles(handles);
+            metrics.add(this, position - startPosition, nanos);
+            objects = arrays = strings = blockDataBytes = resets = 0;
+        }
+
+        long objects;
+        long arrays;
+        long strings;
+        long blockDataBytes;
+        long resets;
+        private int nesting;
+        private int depth;
+        private int maxDepth;
+        private int handleHighWater;
+        private long startPosition;
+        private long startNanos;
+        private final SerialScanMetrics metrics;
+    }
+
+    private void add(Counter c, long byteCount, long nanos) {
+        reads.incrementAndGet();
+        bytes.addAndGet(byteCount);
+        addIfNonZero(objects, c.objects);
+        addIfNonZero(arrays, c.arrays);
+        addIfNonZero(strings, c.strings);
+        addIfNonZero(blockDataBytes, c.blockDataBytes);
+        addIfNonZero(resets, c.resets);
+        max(handleHighWater, c.handleHighWater);
+        max(maxDepth, c.maxDepth);
+        long micros = nanos / 1000;
+        int i = 0;
+        while (i < LATENCY_LIMITS_MICROS.length && micros >= LATENCY_LIMITS_MICROS[i])
+            i++;
+        latency.incrementAndGet(i);
+    }
+
+    private static void addIfNonZero(AtomicLong a, long n) {
+        if (n != 0)
+            a.addAndGet(n);
+    }
+
+    private static void max(AtomicLong a, long n) {
+        long current;
+        while (n > (current = a.get())) {
+            if (a.compareAndSet(current, n))
+                break;
+        }
+    }
+
+    private static final long[] LATENCY_LIMITS_MICROS = {
+        10, 100, 1000, 10000, 100000, 1000000,
+    };
+
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong objects = new AtomicLong();
+    private final AtomicLong arrays = new AtomicLong();
+    private final AtomicLong strings = new AtomicLong();
+    private final AtomicLong blockDataBytes = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong handleHighWater = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong();
+    private final AtomicLongArray latency =
+            new AtomicLongArray(LATENCY_LIMITS_MICROS.length + 1);
+}
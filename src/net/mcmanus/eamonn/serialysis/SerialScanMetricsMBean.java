@@ -0,0 +1,119 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+/**
+ * The management interface of {@link SerialScanMetrics}.  The counts
+ * cover every {@link SerialScan#readObject()} call made on every
+ * {@link SerialScan} that has been given the {@code SerialScanMetrics}
+ * since it was created or last {@linkplain #reset reset}.
+ */
+public interface SerialScanMetricsMBean {
+    /**
+     * The number of top-level objects read, or that could not be read
+     * because the stream was invalid.
+     */
+    public long getReadCount();
+
+    /**
+     * The number of bytes of serial stream read.
+     */
+    public long getBytesRead();
+
+    /**
+     * The number of objects read, at any depth, not counting arrays and
+     * strings.
+     */
+    public long getObjectCount();
+
+    /**
+     * The number of arrays read, at any depth.
+     */
+    public long getArrayCount();
+
+    /**
+     * The number of strings read, at any depth, not counting the type
+     * signatures in class descriptors.
+     */
+    public long getStringCount();
+
+    /**
+     * The total number of bytes of block data read.
+     */
+    public long getBlockDataBytes();
+
+    /**
+     * The number of {@code TC_RESET}s read.
+     */
+    public long getResetCount();
+
+    /**
+     * The largest number of handles that any one scanner had at one
+     * time.
+     */
+    public long getHandleHighWaterMark();
+
+    /**
+     * The deepest nesting of objects and arrays seen.  A top-level object
+     * with no fields that are objects or arrays has depth 1.
+     */
+    public long getMaxDepth();
+
+    /**
+     * The number of top-level reads whose duration fell into each bucket
+     * of the latency histogram.  Element {@code i} counts reads that took
+     * less than {@code getLatencyBucketLimitsMicros()[i]} microseconds, and
+     * not less than the previous limit.  The last element counts reads
+     * that took longer than every limit.
+     */
+    public long[] getLatencyHistogram();
+
+    /**
+     * The upper limits, in microseconds, of the buckets of
+     * {@link #getLatencyHistogram()}.  There is one fewer limit than
+     * there are buckets.
+     */
+    public long[] getLatencyBucketLimitsMicros();
+
+    /**
+     * Set every count to zero.
+     */
+    public void reset();
+}
@@ -0,0 +1,229 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A {@link TraceListener} that keeps the most recent trace events of a
+ * {@code SerialScan} in a ring buffer of fixed size.  Recording an
+ * event only stores into arrays that are allocated once, when the
+ * buffer is created, so a scan can be traced all the time at little
+ * cost.  When something goes wrong, {@link #dump dump} shows what the
+ * scanner was doing just before, and if an {@linkplain #setErrorOutput
+ * error output} is set the buffer is dumped there automatically when
+ * {@link SerialScan#readObject()} fails.
+ *
+ * <p>A {@code SerialTraceBuffer} should be used by one {@code SerialScan}
+ * at a time.  It is not thread-safe.</p>
+ */
+public class SerialTraceBuffer implements TraceListener {
+    /**
+     * Construct a buffer that keeps the given number of events.
+     *
+     * @param capacity the number of events to keep.  Older events are
+     * overwritten by newer ones.
+     * @exception IllegalArgumentException if {@code capacity} is not
+     * positive.
+     */
+    public SerialTraceBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        kinds = new byte[capacity];
+        whats = new String[capacity];
+        values = new Object[capacity];
+        numbers = new long[capacity];
+        offsets = new long[capacity];
+    }
+
+    /**
+     * Set where the buffer is dumped when the scan fails.
+     *
+     * @param out the output for the dump, for example {@code System.err},
+     * or null not to dump automatically.
+     */
+    public void setErrorOutput(Appendable out) {
+        this.errorOutput = out;
+    }
+
+    public void enter(String what, long offset) {
+        record(ENTER, what, null, 0, offset);
+    }
+
+    public void exit(String what, long offset) {
+        record(EXIT, what, null, 0, offset);
+    }
+
+    public void show(String what, Object value, long offset) {
+        record(SHOW, what, value, 0, offset);
+    }
+
+    public void show(String what, long value, long offset) {
+        record(NUMBER, what, null, value, offset);
+    }
+
+    public void failed(IOException e, long offset) {
+        record(FAILED, "failed", e, 0, offset);
+        if (errorOutput != null) {
+            try {
+                dump(errorOutput);
+            } catch (IOException ignored) {
+                // The dump is only a diagnostic.  The scan's own
+                // exception is the one that matters.
+            }
+        }
+    }
+
+    /**
+     * Return the number of events in the buffer, which is at most its
+     * capacity.
+     */
+    public int size() {
+        return (int) Math.min(recorded, kinds.length);
+    }
+
+    /**
+     * Return the number of events that have been recorded since the
+     * buffer was created or cleared, including those that have since
+     * been overwritten.
+     */
+    public long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * Discard the events in the buffer.
+     */
+    public void clear() {
+        for (int i = 0; i < kinds.length; i++) {
+            whats[i] = null;
+            values[i] = null;
+        }
+        next = 0;
+        recorded = 0;
+    }
+
+    /**
+     * Write the events in the buffer, oldest first, one per line.  Each
+     * line starts with the offset of the event in the stream, and lines
+     * are indented to show which items were being decoded within which.
+     *
+     * @param out where to write the events.
+     * @exception IOException if {@code out} throws it.
+     */
+    public void dump(Appendable out) throws IOException {
+        int size = size();
+        if (recorded > size) {
+            out.append("... (").append(String.valueOf(recorded - size))
+                    .append(" earlier events)\n");
+        }
+        int first = (next - size + kinds.length) % kinds.length;
+        int depth = 0;
+        for (int n = 0; n < size; n++) {
+            int i = (first + n) % kinds.length;
+            if (kinds[i] == EXIT && depth > 0)
+                depth--;
+            if (offsets[i] < 0)
+                out.append("@? ");
+            else
+                out.append('@').append(String.valueOf(offsets[i])).append(' ');
+            for (int d = 0; d < depth; d++)
+                out.append("| ");
+            switch (kinds[i]) {
+            case ENTER:
+                out.append(whats[i]);
+                depth++;
+                break;
+            case EXIT:
+                out.append(whats[i]).append(" done");
+                break;
+            case SHOW:
+                out.append(whats[i]).append(": ").append(clip(values[i]));
+                break;
+            case NUMBER:
+                out.append(whats[i]).append(": ")
+                        .append(String.valueOf(numbers[i]));
+                break;
+            case FAILED:
+                out.append("FAILED: ").append(clip(values[i]));
+                break;
+            default:
+                throw new AssertionError(kinds[i]);
+            }
+            out.append('\n');
+        }
+    }
+
+    private void record(byte kind, String what, Object value, long number,
+                        long offset) {
+        kinds[next] = kind;
+        whats[next] = what;
+        values[next] = value;
+        numbers[next] = number;
+        offsets[next] = offset;
+        if (++next == kinds.length)
+            next = 0;
+        recorded++;
+    }
+
+    private static String clip(Object value) {
+        String s;
+        if (value instanceof Object[])
+            s = Arrays.deepToString((Object[]) value);
+        else
+            s = String.valueOf(value);
+        if (s.length() > MAX_VALUE_LENGTH)
+            s = s.substring(0, MAX_VALUE_LENGTH) + "...";
+        return s;
+    }
+
+    private static final byte ENTER = 0, EXIT = 1, SHOW = 2, NUMBER = 3, FAILED = 4;
+    private static final int MAX_VALUE_LENGTH = 100;
+
+    private final byte[] kinds;
+    private final String[] whats;
+    private final Object[] values;
+    private final long[] numbers;
+    private final long[] offsets;
+    private int next;
+    private long recorded;
+    private Appendable errorOutput;
+}
@@ -0,0 +1,159 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Callbacks made by {@link SerialScan#accept SerialScan.accept} as it
+ * parses a value from a serial stream.  This allows a value to be
+ * examined without building an {@link SEntity} for it.  The methods of
+ * this class do nothing and return {@link Action#CONTINUE CONTINUE};
+ * subclasses override the ones they are interested in.</p>
+ *
+ * <p>The callbacks for an object are {@link #visitObject visitObject},
+ * then {@link #visitField visitField} followed by the callbacks for the
+ * field's value, for each serial field, then the callbacks for any values
+ * written by a class's {@code writeObject} method, and finally
+ * {@link #visitEnd visitEnd}.  The callbacks for an array are
+ * {@link #visitArray visitArray}, the callbacks for each element, and
+ * {@link #visitEnd visitEnd}.  This is the same structure as the events
+ * of a {@link SerialEventReader}.</p>
+ *
+ * <p>If {@code visitObject}, {@code visitArray} or {@code visitField}
+ * returns {@link Action#SKIP SKIP}, then the object, array or field
+ * value is still parsed, so that the stream is checked for validity, but
+ * no further callbacks are made for it, strings and binary data within
+ * it are not decoded, and {@code visitEnd} is not called for it.</p>
+ */
+public abstract class SerialVisitor {
+
+    /**
+     * What a {@link SerialVisitor} wants to happen to the contents of the
+     * object, array or field that it has just been told about.
+     */
+    public static enum Action {
+        /** Report the contents. */
+        CONTINUE,
+        /** Parse but don't report the contents. */
+        SKIP
+    }
+
+    /**
+     * Called at the start of an object.
+     *
+     * @param className the name of the object's class.
+     * @param handle the handle assigned to the object, which later
+     * {@link #visitReference references} to it will use.
+     */
+    public Action visitObject(String className, int handle) {
+        return Action.CONTINUE;
+    }
+
+    /**
+     * Called at the start of an array.
+     *
+     * @param className the JVM name of the array's class, for example
+     * {@code "[I"}.
+     * @param length the number of elements.
+     * @param handle the handle assigned to the array.
+     */
+    public Action visitArray(String className, int length, int handle) {
+        return Action.CONTINUE;
+    }
+
+    /**
+     * Called before the value of a serial field of an object.
+     */
+    public Action visitField(String name) {
+        return Action.CONTINUE;
+    }
+
+    /**
+     * Called for a primitive value, wrapped in the corresponding wrapper
+     * type, for example Integer if the primitive is an int.
+     */
+    public void visitPrimitive(Object value) {
+    }
+
+    /**
+     * Called for a string.
+     *
+     * @param handle the handle assigned to the string.
+     */
+    public void visitString(String value, int handle) {
+    }
+
+    /**
+     * Called for a chunk of binary data.
+     *
+     * @param data a read-only view of the data.  If the serial stream is
+     * being scanned from a {@code ByteBuffer} or a file, this is a view of
+     * the same memory rather than a copy.
+     */
+    public void visitBlockData(ByteBuffer data) {
+    }
+
+    /**
+     * Called for a reference to an object, array, string or class
+     * reported earlier.
+     */
+    public void visitReference(int handle) {
+    }
+
+    /**
+     * Called for a null reference.
+     */
+    public void visitNull() {
+    }
+
+    /**
+     * Called for a {@code Class} object.
+     */
+    public void visitClass(String className, int handle) {
+    }
+
+    /**
+     * Called at the end of an object or array whose contents were
+     * reported.
+     */
+    public void visitEnd() {
+    }
+}
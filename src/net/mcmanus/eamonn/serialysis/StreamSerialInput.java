@@ -0,0 +1,268 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * A SerialInput that reads from an InputStream.  Rather than going
+ * through a DataInputStream, which makes at least one call on the
+ * underlying stream for every item read, this reads into a window that
+ * it refills as needed, and decodes values directly from there.  When it
+ * refills the window it asks for up to readAhead bytes more than it
+ * needs, so with readAhead 0 it never reads past the end of the current
+ * item, like DataInputStream.
+ */
+class StreamSerialInput extends SerialInput {
+    /*
+     * The read-ahead for streams that will be read to the end, where
+     * nothing after the serial stream can be lost.
+     */
+    static final int WHOLE_STREAM_READ_AHEAD = 8192;
+
+    StreamSerialInput(InputStream in) {
+        this(in, 0);
+    }
+
+    StreamSerialInput(InputStream in, int readAhead) {
+        if (readAhead < 0)
+            throw new IllegalArgumentException("Negative read-ahead: " + readAhead);
+        this.in = in;
+        this.readAhead = readAhead;
+        this.buf = new byte[Math.max(readAhead, MIN_BUFFER)];
+    }
+
+    /*
+     * Make sure that there are at least n bytes in the window, where n is
+     * no bigger than the window.
+     */
+    private void need(int n) throws IOException {
+        if (limit - pos < n && !fill(n))
+            throw new EOFException();
+    }
+
+    private boolean fill(int n) throws IOException {
+        if (buf.length - pos < n) {
+            int remaining = limit - pos;
+            System.arraycopy(buf, pos, buf, 0, remaining);
+            consumed += pos;
+            pos = 0;
+            limit = remaining;
+        }
+        while (limit - pos < n) {
+            int want = n - (limit - pos);
+            int ask = (int) Math.min(buf.length - limit, (long) want + readAhead);
+            int r = in.read(buf, limit, ask);
+            if (r < 0)
+                return false;
+            limit += r;
+        }
+        return true;
+    }
+
+    int read() throws IOException {
+        if (pos == limit && !fill(1))
+            return -1;
+        return buf[pos++] & 0xff;
+    }
+
+    byte readByte() throws IOException {
+        if (pos == limit)
+            need(1);
+        return buf[pos++];
+    }
+
+    short readShort() throws IOException {
+        need(2);
+        int p = pos;
+        pos = p + 2;
+        return (short) ((buf[p] << 8) | (buf[p + 1] & 0xff));
+    }
+
+    int readInt() throws IOException {
+        need(4);
+        int p = pos;
+        pos = p + 4;
+        return (buf[p] << 24) | ((buf[p + 1] & 0xff) << 16) |
+                ((buf[p + 2] & 0xff) << 8) | (buf[p + 3] & 0xff);
+    }
+
+    long readLong() throws IOException {
+        need(8);
+        int p = pos;
+        pos = p + 8;
+        int hi = (buf[p] << 24) | ((buf[p + 1] & 0xff) << 16) |
+                ((buf[p + 2] & 0xff) << 8) | (buf[p + 3] & 0xff);
+        int lo = (buf[p + 4] << 24) | ((buf[p + 5] & 0xff) << 16) |
+                ((buf[p + 6] & 0xff) << 8) | (buf[p + 7] & 0xff);
+        return ((long) hi << 32) | (lo & 0xffffffffL);
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+        if (len == 0)
+            return;
+        if (len < buf.length) {
+            need(len);
+            System.arraycopy(buf, pos, b, off, len);
+            pos += len;
+            return;
+        }
+        // Big reads go straight into the caller's array.
+        consumed += limit;
+        pos = limit = 0;
+        while (len > 0) {
+            int r = in.read(b, off, len);
+            if (r < 0)
+                throw new EOFException();
+            consumed += r;
+            off += r;
+            len -= r;
+        }
+    }
+
+    /*
+     * The length comes from the stream and can be anything, so a big
+     * array is grown as its bytes arrive, and a truncated stream fails
+     * before we have allocated much more than it contains.
+     */
+    ByteBuffer readBuffer(int len) throws IOException {
+        byte[] data = new byte[Math.min(len, BIG_READ)];
+        int n = 0;
+        while (true) {
+            readFully(data, n, data.length - n);
+            n = data.length;
+            if (n == len)
+                return ByteBuffer.wrap(data);
+            byte[] bigger = new byte[(int) Math.min(len, 2L * n)];
+            System.arraycopy(data, 0, bigger, 0, n);
+            data = bigger;
+        }
+    }
+
+    void skipFully(long len) throws IOException {
+        int n = (int) Math.min(len, limit - pos);
+        pos += n;
+        len -= n;
+        if (len == 0)
+            return;
+        consumed += limit;
+        pos = limit = 0;
+        while (len > 0) {
+            long skipped = in.skip(len);
+            if (skipped <= 0) {
+                if (in.read() < 0)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            consumed += skipped;
+            len -= skipped;
+        }
+    }
+
+    String readUTF(long len) throws IOException {
+        UTFDecoder d = new UTFDecoder(len);
+        while (d.remaining() > 0) {
+            // Never ask for more than the string, so a readAhead of 0
+            // is respected.
+            need((int) Math.min(d.remaining(), buf.length));
+            int n = (int) Math.min(d.remaining(), limit - pos);
+            int used = d.decode(buf, pos, n);
+            if (used == 0 && n == d.remaining())
+                break;  // truncated character at end of string
+            pos += used;
+        }
+        return d.finish();
+    }
+
+    void skipUTF(long len) throws IOException {
+        long done = 0;
+        while (done < len) {
+            need((int) Math.min(len - done, buf.length));
+            int n = (int) Math.min(len - done, limit - pos);
+            int used = UTFDecoder.check(buf, pos, n, done);
+            if (used == 0 && n == len - done)
+                throw UTFDecoder.badUTF(done);  // truncated character
+            pos += used;
+            done += used;
+        }
+    }
+
+    String readSymbol(int len) throws IOException {
+        if (len > buf.length)
+            return readUTF(len);
+        need(len);
+        String s = symbols.get(buf, pos, len);
+        pos += len;
+        return s;
+    }
+
+    long position() {
+        return consumed + pos;
+    }
+
+    SerialInput duplicate(long position) {
+        throw new UnsupportedOperationException("Input is not a buffer or file");
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Big enough to decode most strings in place
+    private static final int MIN_BUFFER = 8192;
+    // The size of array that readBuffer allocates before seeing any bytes
+    private static final int BIG_READ = 1 << 20;
+
+    private final InputStream in;
+    private final int readAhead;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    // Number of bytes of the stream before buf[0]
+    private long consumed;
+}
@@ -0,0 +1,245 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.mcmanus.eamonn.serialysis.SerialScan.ClassDesc;
+
+/*
+ * Computes a 64-bit hash of the value of every object and array in a
+ * graph of entities, as each one is completed, so that SerialDiff can
+ * tell that two subtrees are equal without looking inside them.
+ * Objects and arrays are started and ended in the order the scanner
+ * builds them: start(e) when e is created, and end(e) when all of its
+ * contents have been read.  The hash of e is computed in end(e) from
+ * the hashes of its contents, which are already known, so the cost is
+ * proportional to the number of fields and elements.  For a graph that
+ * was not built while this hasher was watching, hash(e) visits it in
+ * the same order.
+ *
+ * A reference to an object that is still being built, that is, a
+ * cycle, is hashed as its distance up the stack of objects being built.
+ * That only means the same thing wherever the subtree appears if the
+ * object referred to is within the subtree, so a subtree whose cycles
+ * lead outside it has no usable hash.  Neither does a subtree that
+ * refers to one of those built elsewhere.  SerialDiff compares such
+ * subtrees the slow way.
+ */
+class SubtreeHasher {
+    void start(SEntity e) {
+        Info info = new Info(sequence++, stack.size());
+        infos.put(e, info);
+        stack.add(info);
+    }
+
+    void end(SEntity e) {
+        Info info = infos.get(e);
+        long h = mix(SEED, string(e.getType()));
+        int reach = Integer.MAX_VALUE;
+        if (e instanceof SPrimitiveArray) {
+            h = mix(h, bytes(((SPrimitiveArray) e).asByteBuffer()));
+        } else if (e instanceof SArray) {
+            SEntity[] elements = ((SArray) e).getValue();
+            h = mix(h, elements.length);
+            for (SEntity x : elements) {
+                h = mix(h, child(info, x));
+                reach = Math.min(reach, childReach);
+            }
+        } else if (e instanceof SObject) {
+            SObject o = (SObject) e;
+            for (String name : o.getFieldNames()) {
+                h = mix(h, string(name));
+                h = mix(h, child(info, o.getField(name)));
+                reach = Math.min(reach, childReach);
+            }
+            List<SEntity> annotations = o.getAnnotations();
+            h = mix(h, annotations.size());
+            for (SEntity x : annotations) {
+                h = mix(h, child(info, x));
+                reach = Math.min(reach, childReach);
+            }
+        }
+        info.hash = h;
+        info.reach = reach;
+        info.done = true;
+        stack.remove(stack.size() - 1);
+    }
+
+    /*
+     * Hash the graph rooted at the given entity, visiting the objects and
+     * arrays that have not yet been hashed in the order the scanner would
+     * build them.
+     */
+    void hash(SEntity e) {
+        if (!(e instanceof SObject || e instanceof SArray) || infos.containsKey(e))
+            return;
+        start(e);
+        if (e instanceof SObject) {
+            SObject o = (SObject) e;
+            for (String name : o.getFieldNames())
+                hash(o.getField(name));
+            for (SEntity x : o.getAnnotations())
+                hash(x);
+        } else if (!(e instanceof SPrimitiveArray)) {
+            for (SEntity x : ((SArray) e).getValue())
+                hash(x);
+        }
+        end(e);
+    }
+
+    /*
+     * The hash of the given entity, if it has one that describes its value
+     * wherever it appears, otherwise null.
+     */
+    Long hashOf(SEntity e) {
+        Info info = infos.get(e);
+        if (info == null || !info.done || info.reach < info.depth)
+            return null;
+        return info.hash;
+    }
+
+    /*
+     * The hash of a field, element or annotation of the object or array
+     * described by parent.  Also sets childReach to the depth of the
+     * shallowest object being built that the value refers to.
+     */
+    private long child(Info parent, SEntity x) {
+        childReach = Integer.MAX_VALUE;
+        if (x == null)
+            return NULL;
+        if (x instanceof SString)
+            return string(((SString) x).getValue());
+        if (x instanceof SPrim) {
+            Object value = ((SPrim) x).getValue();
+            return mix(string(x.getType()), bits(value));
+        }
+        if (x instanceof SBlockData)
+            return mix(BLOCK_DATA, bytes(((SBlockData) x).asByteBuffer()));
+        if (x instanceof ClassDesc)
+            return mix(CLASS, string(x.getType()));
+        Info info = infos.get(x);
+        if (info == null) {
+            // Not seen by this hasher, so nothing can be known about it
+            childReach = -1;
+            return 0;
+        }
+        if (!info.done) {
+            childReach = info.depth;
+            return mix(CYCLE, parent.depth - info.depth);
+        }
+        if (info.sequence > parent.sequence) {
+            // Built within the parent, so its reach is on the same stack
+            childReach = info.reach;
+        } else if (info.reach < info.depth)
+            childReach = -1;
+        return info.hash;
+    }
+
+    private static long mix(long h, long x) {
+        h ^= x;
+        h *= 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
+    /*
+     * All the bits of a wrapped primitive value.  The hashCode of a Long or
+     * Double folds it into 32 bits, so values differing only in their high
+     * and low halves would hash the same.
+     */
+    private static long bits(Object value) {
+        if (value instanceof Double)
+            return Double.doubleToRawLongBits((Double) value);
+        if (value instanceof Float)
+            return Float.floatToRawIntBits((Float) value);
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value instanceof Character)
+            return (Character) value;
+        return ((Boolean) value) ? 1 : 0;
+    }
+
+    private static long string(String s) {
+        long h = s.length();
+        for (int i = 0; i < s.length(); i++)
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        return mix(STRING, h);
+    }
+
+    private static long bytes(ByteBuffer buf) {
+        long h = buf.remaining();
+        for (int i = buf.position(); i < buf.limit(); i++)
+            h = (h ^ buf.get(i)) * 0x100000001b3L;
+        return h;
+    }
+
+    private static class Info {
+        Info(int sequence, int depth) {
+            this.sequence = sequence;
+            this.depth = depth;
+        }
+
+        // The order in which the entity was started
+        final int sequence;
+        // The number of entities being built when it was started
+        final int depth;
+        long hash;
+        // The depth of the shallowest entity being built that this refers
+        // to, or -1 if it refers to one that has no usable hash
+        int reach;
+        boolean done;
+    }
+
+    private static final long SEED = 0x5ac4e37d1b3a2c91L;
+    private static final long NULL = 0x1d8e4e27c47d124fL;
+    private static final long STRING = 0x2545f4914f6cdd1dL;
+    private static final long BLOCK_DATA = 0x6a09e667f3bcc909L;
+    private static final long CLASS = 0x3c6ef372fe94f82bL;
+    private static final long CYCLE = 0x510e527fade682d1L;
+
+    private final Map<SEntity, Info> infos = new IdentityHashMap<SEntity, Info>();
+    private final List<Info> stack = new ArrayList<Info>();
+    private int sequence;
+    private int childReach;
+}
@@ -0,0 +1,134 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+
+/*
+ * Canonical Strings for the class names, field names and type
+ * signatures in a serial stream, looked up by their encoded bytes.  A
+ * name we have seen before is recognized without being decoded again, and
+ * every occurrence of it is the same String instance, so the maps keyed
+ * by field name in SObject compare keys by identity before anything
+ * else.  After a TC_RESET, or in a stream where each object carries its
+ * own descriptor, the same names come up over and over.
+ *
+ * The table stops growing once it has MAX_SYMBOLS entries, so a stream
+ * with an unbounded number of distinct names costs no more than the
+ * decoding would have.  Names longer than MAX_SYMBOL_LENGTH bytes are
+ * decoded but not kept: a name can be up to 64K bytes, and BatchScan
+ * reuses a table for every payload on a thread, so a hostile payload
+ * could otherwise pin a lot of memory for as long as the pool lives.
+ */
+class SymbolTable {
+    static final int MAX_SYMBOLS = 8192;
+    static final int MAX_SYMBOL_LENGTH = 256;
+
+    String get(byte[] b, int off, int len) throws IOException {
+        if (len > MAX_SYMBOL_LENGTH)
+            return UTFDecoder.decodeAll(b, off, len);
+        int hash = 1;
+        for (int i = off; i < off + len; i++)
+            hash = 31 * hash + b[i];
+        int mask = keys.length - 1;
+        int i = mix(hash) & mask;
+        byte[] key;
+        while ((key = keys[i]) != null) {
+            if (hashes[i] == hash && sameBytes(key, b, off, len))
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        String s = UTFDecoder.decodeAll(b, off, len);
+        if (size < MAX_SYMBOLS) {
+            key = new byte[len];
+            System.arraycopy(b, off, key, 0, len);
+            keys[i] = key;
+            values[i] = s;
+            hashes[i] = hash;
+            if (++size * 2 > keys.length)
+                grow();
+        }
+        return s;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static boolean sameBytes(byte[] key, byte[] b, int off, int len) {
+        if (key.length != len)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (key[i] != b[off + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        return h * 0x45d9f3b;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[keys.length];
+        hashes = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null)
+                continue;
+            int i = mix(oldHashes[j]) & mask;
+            while (keys[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+    private byte[][] keys = new byte[64][];
+    private String[] values = new String[64];
+    private int[] hashes = new int[64];
+    private int size;
+}
@@ -42,47 +42,57 @@ package net.mcmanus.eamonn.serialysis;
 import java.io.IOException;
 import java.io.InputStream;
 
-import static net.mcmanus.eamonn.serialysis.Trace.enter;
-import static net.mcmanus.eamonn.serialysis.Trace.exit;
-import static net.mcmanus.eamonn.serialysis.Trace.show;
-
 class TraceInputStream extends InputStream {
     TraceInputStream(InputStream in) {
+        this(in, null);
+    }
+
+    TraceInputStream(InputStream in, TraceListener trace) {
         this.in = in;
+        this.trace = trace;
     }
 
     public int read(byte[] b, int off, int len) throws IOException {
         int n = in.read(b, off, len);
-        if (n < 0)
+        if (trace != null)
             show("is.read", n);
-        else
-            show("is.read", b, off, n);
         return n;
     }
 
     public int read(byte[] b) throws IOException {
         int n = in.read(b);
-        if (n < 0)
+        if (trace != null)
             show("is.read", n);
-        else
-            show("is.read", b, 0, n);
         return n;
     }
 
     public long skip(long n) throws IOException {
         long ret = in.skip(n);
-        show("is.skip(" + n + ") -> " + ret);
+        if (trace != null)
+            show("is.skip", ret);
         return ret;
     }
 
     public int read() throws IOException {
         int n = in.read();
-        if (n < 0)
-            show("is.read", n);
-        else
-            show("is.read", new byte[] {(byte) n});
+        if (trace != null) {
+            if (n < 0)
+                show("is.read", n);
+            else {
+                offset++;
+                trace.show("is.read byte", n, offset);
+            }
+        }
         return n;
     }
 
+    private void show(String what, long n) {
+        if (n > 0)
+            offset += n;
+        trace.show(what, n, offset);
+    }
+
     private final InputStream in;
+    private final TraceListener trace;
+    private long offset;
 }
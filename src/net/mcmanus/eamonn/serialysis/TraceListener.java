@@ -0,0 +1,108 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.IOException;
+
+/**
+ * Receives trace events from a {@code SerialScan} as it decodes the
+ * serial stream.  A listener is installed with {@link
+ * SerialScan#setTraceListener SerialScan.setTraceListener}, and a
+ * scanner without one does no tracing work at all.  The methods are
+ * called on the thread that is reading the stream, in the middle of
+ * decoding, so they should be quick and should not throw exceptions.
+ * {@link SerialTraceBuffer} is an implementation that keeps the most
+ * recent events so they can be shown if the scan fails.  The
+ * {@code Trace*Stream} wrappers used to debug serialization itself
+ * report to a {@code TraceListener} too, with an offset of -1 since
+ * they do not know where they are in the stream.
+ */
+public interface TraceListener {
+    /**
+     * Called when the scanner starts to decode an item of the stream.
+     *
+     * @param what the kind of item, for example {@code "newObject"}.
+     * This is always a string constant, so it can be kept without copying.
+     * @param offset the offset in the stream of the next byte to be read.
+     */
+    public void enter(String what, long offset);
+
+    /**
+     * Called when the scanner has finished decoding the item that
+     * was started by the matching call to {@link #enter enter}.  There is
+     * no call to {@code exit} for an item whose decoding failed.
+     *
+     * @param what the kind of item, the same as for {@code enter}.
+     * @param offset the offset in the stream of the next byte to be read.
+     */
+    public void exit(String what, long offset);
+
+    /**
+     * Called with a value that has been decoded within the current
+     * item, for example the name in a class descriptor.
+     *
+     * @param what what the value is.
+     * @param value the value, or null.
+     * @param offset the offset in the stream of the next byte to be read.
+     */
+    public void show(String what, Object value, long offset);
+
+    /**
+     * Called with a numeric value that has been decoded within the
+     * current item, for example the length of an array.  This is the
+     * same as {@link #show(String, Object, long)} except that the value
+     * does not have to be boxed.
+     *
+     * @param what what the value is.
+     * @param value the value.
+     * @param offset the offset in the stream of the next byte to be read.
+     */
+    public void show(String what, long value, long offset);
+
+    /**
+     * Called once when {@link SerialScan#readObject()} is about to throw
+     * an exception.  Items that were entered but not exited are those
+     * that were being decoded when the error was found.
+     *
+     * @param e the exception that will be thrown.
+     * @param offset the offset in the stream where the error was found.
+     */
+    public void failed(IOException e, long offset);
+}
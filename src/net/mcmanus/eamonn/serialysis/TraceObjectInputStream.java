@@ -42,263 +42,386 @@ package net.mcmanus.eamonn.serialysis;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.util.Arrays;
-import static net.mcmanus.eamonn.serialysis.Trace.enter;
-import static net.mcmanus.eamonn.serialysis.Trace.exit;
-import static net.mcmanus.eamonn.serialysis.Trace.show;
 
 class TraceObjectInputStream extends ObjectInputStream {
     public TraceObjectInputStream(InputStream is) throws IOException {
+        this(is, null);
+    }
+
+    public TraceObjectInputStream(InputStream is, TraceListener trace) throws IOException {
         super(is);
+        this.trace = trace;
     }
 
     protected Object resolveObject(Object obj) throws IOException {
-        enter("ois.resolveObject", obj);
+        if (trace != null) {
+            trace.enter("ois.resolveObject", NO_OFFSET);
+            trace.show("obj", obj, NO_OFFSET);
+        }
         Object retValue;
         
         retValue = super.resolveObject(obj);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.resolveObject", NO_OFFSET);
+        }
         return retValue;
     }
 
     protected Class<?> resolveClass(java.io.ObjectStreamClass desc) throws IOException, ClassNotFoundException {
-        enter("ois.resolveClass", desc);
+        if (trace != null) {
+            trace.enter("ois.resolveClass", NO_OFFSET);
+            trace.show("desc", desc, NO_OFFSET);
+        }
         Class retValue;
         
         retValue = super.resolveClass(desc);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.resolveClass", NO_OFFSET);
+        }
         return retValue;
     }
 
     protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
-        enter("ois.resolveProxyClass", Arrays.toString(interfaces));
+        if (trace != null) {
+            trace.enter("ois.resolveProxyClass", NO_OFFSET);
+            trace.show("interfaces", interfaces, NO_OFFSET);
+        }
         Class retValue;
         
         retValue = super.resolveProxyClass(interfaces);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.resolveProxyClass", NO_OFFSET);
+        }
         return retValue;
     }
 
     public void readFully(byte[] buf, int off, int len) throws IOException {
-        enter("ois.readFully", "byte[" + buf.length + "]", off, len);
+        if (trace != null) {
+            trace.enter("ois.readFully", NO_OFFSET);
+            trace.show("off", off, NO_OFFSET);
+            trace.show("len", len, NO_OFFSET);
+        }
         super.readFully(buf, off, len);
-        showBuf(buf, off, len);
-        exit();
+        if (trace != null)
+            trace.exit("ois.readFully", NO_OFFSET);
     }
 
     public int read(byte[] buf, int off, int len) throws IOException {
-        enter("ois.read", "byte[" + buf.length + "]", off, len);
+        if (trace != null) {
+            trace.enter("ois.read", NO_OFFSET);
+            trace.show("off", off, NO_OFFSET);
+            trace.show("len", len, NO_OFFSET);
+        }
         int retValue;
         
         retValue = super.read(buf, off, len);
-        showBuf(buf, off, retValue);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.read", NO_OFFSET);
+        }
         return retValue;
     }
 
     public void readFully(byte[] buf) throws IOException {
-        enter("ois.readFully", "byte[" + buf.length + "]");
+        if (trace != null) {
+            trace.enter("ois.readFully", NO_OFFSET);
+            trace.show("buf.length", buf.length, NO_OFFSET);
+        }
         super.readFully(buf);
-        showBuf(buf, 0, buf.length);
-        exit();
+        if (trace != null)
+            trace.exit("ois.readFully", NO_OFFSET);
     }
 
     public int read(byte[] b) throws IOException {
-        enter("ois.read");
+        if (trace != null) {
+            trace.enter("ois.read", NO_OFFSET);
+            trace.show("b.length", b.length, NO_OFFSET);
+        }
         int retValue;
         
         retValue = super.read(b);
-        showBuf(b, 0, retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.read", NO_OFFSET);
+        }
         return retValue;
     }
 
     public int skipBytes(int len) throws IOException {
-        enter("ois.skipBytes", len);
+        if (trace != null) {
+            trace.enter("ois.skipBytes", NO_OFFSET);
+            trace.show("len", len, NO_OFFSET);
+        }
         int retValue;
         
         retValue = super.skipBytes(len);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.skipBytes", NO_OFFSET);
+        }
         return retValue;
     }
 
     public long skip(long n) throws IOException {
-        enter("ois.skip", n);
+        if (trace != null) {
+            trace.enter("ois.skip", NO_OFFSET);
+            trace.show("n", n, NO_OFFSET);
+        }
         long retValue;
         
         retValue = super.skip(n);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.skip", NO_OFFSET);
+        }
         return retValue;
     }
 
     public void registerValidation(java.io.ObjectInputValidation obj, int prio) throws java.io.NotActiveException, java.io.InvalidObjectException {
-        enter("ois.registerValidation", obj, prio);
+        if (trace != null) {
+            trace.enter("ois.registerValidation", NO_OFFSET);
+            trace.show("obj", obj, NO_OFFSET);
+            trace.show("prio", prio, NO_OFFSET);
+        }
         super.registerValidation(obj, prio);
-        exit();
+        if (trace != null)
+            trace.exit("ois.registerValidation", NO_OFFSET);
     }
 
     public int readInt() throws IOException {
-        enter("ois.readInt");
+        if (trace != null)
+            trace.enter("ois.readInt", NO_OFFSET);
         int retValue;
         
         retValue = super.readInt();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readInt", NO_OFFSET);
+        }
         return retValue;
     }
 
     public float readFloat() throws IOException {
-        enter("ois.readFloat");
+        if (trace != null)
+            trace.enter("ois.readFloat", NO_OFFSET);
         float retValue;
         
         retValue = super.readFloat();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readFloat", NO_OFFSET);
+        }
         return retValue;
     }
 
     public java.io.ObjectInputStream.GetField readFields() throws IOException, ClassNotFoundException {
-        enter("ois.readFields");
+        if (trace != null)
+            trace.enter("ois.readFields", NO_OFFSET);
         java.io.ObjectInputStream.GetField retValue;
         
         retValue = super.readFields();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readFields", NO_OFFSET);
+        }
         return retValue;
     }
 
     public double readDouble() throws IOException {
-        enter("ois.readDouble");
+        if (trace != null)
+            trace.enter("ois.readDouble", NO_OFFSET);
         double retValue;
         
         retValue = super.readDouble();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readDouble", NO_OFFSET);
+        }
         return retValue;
     }
 
     protected java.io.ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
-        enter("ois.readClassDescriptor");
+        if (trace != null)
+            trace.enter("ois.readClassDescriptor", NO_OFFSET);
         java.io.ObjectStreamClass retValue;
         
         retValue = super.readClassDescriptor();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readClassDescriptor", NO_OFFSET);
+        }
         return retValue;
     }
 
     public char readChar() throws IOException {
-        enter("ois.readChar");
+        if (trace != null)
+            trace.enter("ois.readChar", NO_OFFSET);
         char retValue;
         
         retValue = super.readChar();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readChar", NO_OFFSET);
+        }
         return retValue;
     }
 
     public byte readByte() throws IOException {
-        enter("ois.readByte");
+        if (trace != null)
+            trace.enter("ois.readByte", NO_OFFSET);
         byte retValue;
         
         retValue = super.readByte();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readByte", NO_OFFSET);
+        }
         return retValue;
     }
 
     public boolean readBoolean() throws IOException {
-        enter("ois.readBoolean");
+        if (trace != null)
+            trace.enter("ois.readBoolean", NO_OFFSET);
         boolean retValue;
         
         retValue = super.readBoolean();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readBoolean", NO_OFFSET);
+        }
         return retValue;
     }
 
     public int read() throws IOException {
-        enter("ois.read");
+        if (trace != null)
+            trace.enter("ois.read", NO_OFFSET);
         int retValue;
         
         retValue = super.read();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.read", NO_OFFSET);
+        }
         return retValue;
     }
 
     @Deprecated
     public String readLine() throws IOException {
-        enter("ois.readLine");
+        if (trace != null)
+            trace.enter("ois.readLine", NO_OFFSET);
         String retValue;
         
         retValue = super.readLine();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readLine", NO_OFFSET);
+        }
         return retValue;
     }
 
     public long readLong() throws IOException {
-        enter("ois.readLong");
+        if (trace != null)
+            trace.enter("ois.readLong", NO_OFFSET);
         long retValue;
         
         retValue = super.readLong();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readLong", NO_OFFSET);
+        }
         return retValue;
     }
 
     protected Object readObjectOverride() throws IOException, ClassNotFoundException {
-        enter("ois.readObjectOverride");
+        if (trace != null)
+            trace.enter("ois.readObjectOverride", NO_OFFSET);
         Object retValue;
         
         retValue = super.readObjectOverride();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readObjectOverride", NO_OFFSET);
+        }
         return retValue;
     }
 
     public short readShort() throws IOException {
-        enter("ois.readShort");
+        if (trace != null)
+            trace.enter("ois.readShort", NO_OFFSET);
         short retValue;
         
         retValue = super.readShort();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readShort", NO_OFFSET);
+        }
         return retValue;
     }
 
     protected void readStreamHeader() throws IOException, java.io.StreamCorruptedException {
-        enter("ois.readStreamHeader");
+        if (trace != null)
+            trace.enter("ois.readStreamHeader", NO_OFFSET);
         super.readStreamHeader();
-        exit();
+        if (trace != null)
+            trace.exit("ois.readStreamHeader", NO_OFFSET);
     }
 
     public String readUTF() throws IOException {
-        enter("ois.readUTF");
+        if (trace != null)
+            trace.enter("ois.readUTF", NO_OFFSET);
         String retValue;
         
         retValue = super.readUTF();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readUTF", NO_OFFSET);
+        }
         return retValue;
     }
 
     public Object readUnshared() throws IOException, ClassNotFoundException {
-        enter("ois.readUnshared");
+        if (trace != null)
+            trace.enter("ois.readUnshared", NO_OFFSET);
         Object retValue;
         
         retValue = super.readUnshared();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readUnshared", NO_OFFSET);
+        }
         return retValue;
     }
 
     public int readUnsignedByte() throws IOException {
-        enter("ois.readUnsignedByte");
+        if (trace != null)
+            trace.enter("ois.readUnsignedByte", NO_OFFSET);
         int retValue;
         
         retValue = super.readUnsignedByte();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readUnsignedByte", NO_OFFSET);
+        }
         return retValue;
     }
 
     public int readUnsignedShort() throws IOException {
-        enter("ois.readUnsignedShort");
+        if (trace != null)
+            trace.enter("ois.readUnsignedShort", NO_OFFSET);
         int retValue;
         
         retValue = super.readUnsignedShort();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("ois.readUnsignedShort", NO_OFFSET);
+        }
         return retValue;
     }
-    
-    private static void showBuf(byte[] b, int off, int len) {
-        byte[] copy = new byte[len];
-        System.arraycopy(b, off, copy, 0, len);
-        show(Arrays.toString(copy));
-    }
+
+    private static final long NO_OFFSET = -1;
+
+    private final TraceListener trace;
 }
@@ -42,218 +42,339 @@ package net.mcmanus.eamonn.serialysis;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
-
-import static net.mcmanus.eamonn.serialysis.Trace.enter;
-import static net.mcmanus.eamonn.serialysis.Trace.exit;
 
 class TraceObjectOutputStream extends ObjectOutputStream {
     public TraceObjectOutputStream(OutputStream os) throws IOException {
+        this(os, null);
+    }
+
+    public TraceObjectOutputStream(OutputStream os, TraceListener trace) throws IOException {
         super(os);
+        this.trace = trace;
     }
 
     protected Object replaceObject(Object obj) throws IOException {
-        enter("oos.replaceObject", obj);
+        if (trace != null) {
+            trace.enter("oos.replaceObject", NO_OFFSET);
+            trace.show("obj", obj, NO_OFFSET);
+        }
         Object retValue;
 
         retValue = super.replaceObject(obj);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("oos.replaceObject", NO_OFFSET);
+        }
         return retValue;
     }
 
     public boolean equals(Object obj) {
-        enter("oos.equals", obj);
+        if (trace != null) {
+            trace.enter("oos.equals", NO_OFFSET);
+            trace.show("obj", obj, NO_OFFSET);
+        }
         boolean retValue;
 
         retValue = super.equals(obj);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("oos.equals", NO_OFFSET);
+        }
         return retValue;
     }
 
     protected void writeClassDescriptor(java.io.ObjectStreamClass desc) throws IOException {
-        enter("oos.writeClassDescriptor", desc);
+        if (trace != null) {
+            trace.enter("oos.writeClassDescriptor", NO_OFFSET);
+            trace.show("desc", desc, NO_OFFSET);
+        }
         super.writeClassDescriptor(desc);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeClassDescriptor", NO_OFFSET);
     }
 
     protected boolean enableReplaceObject(boolean enable) throws SecurityException {
-        enter("oos.enableReplaceObject", enable);
+        if (trace != null) {
+            trace.enter("oos.enableReplaceObject", NO_OFFSET);
+            trace.show("enable", enable, NO_OFFSET);
+        }
         boolean retValue;
 
         retValue = super.enableReplaceObject(enable);
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("oos.enableReplaceObject", NO_OFFSET);
+        }
         return retValue;
     }
 
     public void writeBoolean(boolean val) throws IOException {
-        enter("oos.writeBoolean", val);
+        if (trace != null) {
+            trace.enter("oos.writeBoolean", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeBoolean(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeBoolean", NO_OFFSET);
     }
 
     public void writeDouble(double val) throws IOException {
-        enter("oos.writeDouble", val);
+        if (trace != null) {
+            trace.enter("oos.writeDouble", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeDouble(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeDouble", NO_OFFSET);
     }
 
     public void writeFloat(float val) throws IOException {
-        enter("oos.writeFloat", val);
+        if (trace != null) {
+            trace.enter("oos.writeFloat", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeFloat(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeFloat", NO_OFFSET);
     }
 
     public void writeUTF(String str) throws IOException {
-        enter("oos.writeUTF", str);
+        if (trace != null) {
+            trace.enter("oos.writeUTF", NO_OFFSET);
+            trace.show("str", str, NO_OFFSET);
+        }
         super.writeUTF(str);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeUTF", NO_OFFSET);
     }
 
     public void writeBytes(String str) throws IOException {
-        enter("oos.writeBytes", str);
+        if (trace != null) {
+            trace.enter("oos.writeBytes", NO_OFFSET);
+            trace.show("str", str, NO_OFFSET);
+        }
         super.writeBytes(str);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeBytes", NO_OFFSET);
     }
 
     public void writeChars(String str) throws IOException {
-        enter("oos.writeChars", str);
+        if (trace != null) {
+            trace.enter("oos.writeChars", NO_OFFSET);
+            trace.show("str", str, NO_OFFSET);
+        }
         super.writeChars(str);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeChars", NO_OFFSET);
     }
 
     public void write(byte[] buf, int off, int len) throws IOException {
-        enter("oos.write", Arrays.toString(buf), off, len);
+        if (trace != null) {
+            trace.enter("oos.write", NO_OFFSET);
+            trace.show("off", off, NO_OFFSET);
+            trace.show("len", len, NO_OFFSET);
+        }
         super.write(buf, off, len);
-        exit();
+        if (trace != null)
+            trace.exit("oos.write", NO_OFFSET);
     }
 
     public void write(byte[] buf) throws IOException {
-        enter("oos.write", Arrays.toString(buf));
+        if (trace != null) {
+            trace.enter("oos.write", NO_OFFSET);
+            trace.show("buf.length", buf.length, NO_OFFSET);
+        }
         super.write(buf);
-        exit();
+        if (trace != null)
+            trace.exit("oos.write", NO_OFFSET);
     }
 
     public void writeShort(int val) throws IOException {
-        enter("oos.writeShort", val);
+        if (trace != null) {
+            trace.enter("oos.writeShort", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeShort(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeShort", NO_OFFSET);
     }
 
     public void writeInt(int val) throws IOException {
-        enter("oos.writeInt", val);
+        if (trace != null) {
+            trace.enter("oos.writeInt", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeInt(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeInt", NO_OFFSET);
     }
 
     public void useProtocolVersion(int version) throws IOException {
-        enter("oos.useProtocolVersion", version);
+        if (trace != null) {
+            trace.enter("oos.useProtocolVersion", NO_OFFSET);
+            trace.show("version", version, NO_OFFSET);
+        }
         super.useProtocolVersion(version);
-        exit();
+        if (trace != null)
+            trace.exit("oos.useProtocolVersion", NO_OFFSET);
     }
 
     public void write(int val) throws IOException {
-        enter("oos.write", val);
+        if (trace != null) {
+            trace.enter("oos.write", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.write(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.write", NO_OFFSET);
     }
 
     public void writeByte(int val) throws IOException {
-        enter("oos.writeByte", val);
+        if (trace != null) {
+            trace.enter("oos.writeByte", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeByte(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeByte", NO_OFFSET);
     }
 
     public void writeChar(int val) throws IOException {
-        enter("oos.writeChar", val);
+        if (trace != null) {
+            trace.enter("oos.writeChar", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeChar(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeChar", NO_OFFSET);
     }
 
     public void writeLong(long val) throws IOException {
-        enter("oos.writeLong", val);
+        if (trace != null) {
+            trace.enter("oos.writeLong", NO_OFFSET);
+            trace.show("val", val, NO_OFFSET);
+        }
         super.writeLong(val);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeLong", NO_OFFSET);
     }
 
     protected void writeStreamHeader() throws IOException {
-        enter("oos.writeStreamHeader");
+        if (trace != null)
+            trace.enter("oos.writeStreamHeader", NO_OFFSET);
         super.writeStreamHeader();
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeStreamHeader", NO_OFFSET);
     }
 
     public void writeFields() throws IOException {
-        enter("oos.writeFields");
+        if (trace != null)
+            trace.enter("oos.writeFields", NO_OFFSET);
         super.writeFields();
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeFields", NO_OFFSET);
     }
 
     public java.io.ObjectOutputStream.PutField putFields() throws IOException {
-        enter("oos.putFields");
+        if (trace != null)
+            trace.enter("oos.putFields", NO_OFFSET);
         java.io.ObjectOutputStream.PutField retValue;
 
         retValue = super.putFields();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("oos.putFields", NO_OFFSET);
+        }
         return retValue;
     }
 
     public int hashCode() {
-        enter("oos.hashCode");
+        if (trace != null)
+            trace.enter("oos.hashCode", NO_OFFSET);
         int retValue;
 
         retValue = super.hashCode();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("oos.hashCode", NO_OFFSET);
+        }
         return retValue;
     }
 
     public void flush() throws IOException {
-        enter("oos.flush");
+        if (trace != null)
+            trace.enter("oos.flush", NO_OFFSET);
         super.flush();
-        exit();
+        if (trace != null)
+            trace.exit("oos.flush", NO_OFFSET);
     }
 
     protected void drain() throws IOException {
-        enter("oos.drain");
+        if (trace != null)
+            trace.enter("oos.drain", NO_OFFSET);
         super.drain();
-        exit();
+        if (trace != null)
+            trace.exit("oos.drain", NO_OFFSET);
     }
 
     public void defaultWriteObject() throws IOException {
-        enter("oos.defaultWriteObject");
+        if (trace != null)
+            trace.enter("oos.defaultWriteObject", NO_OFFSET);
         super.defaultWriteObject();
-        exit();
+        if (trace != null)
+            trace.exit("oos.defaultWriteObject", NO_OFFSET);
     }
 
     public void close() throws IOException {
-        enter("oos.close");
+        if (trace != null)
+            trace.enter("oos.close", NO_OFFSET);
         super.close();
-        exit();
+        if (trace != null)
+            trace.exit("oos.close", NO_OFFSET);
     }
 
     public void reset() throws IOException {
-        enter("oos.reset");
+        if (trace != null)
+            trace.enter("oos.reset", NO_OFFSET);
         super.reset();
-        exit();
+        if (trace != null)
+            trace.exit("oos.reset", NO_OFFSET);
     }
 
     public String toString() {
-        enter("oos.toString");
+        if (trace != null)
+            trace.enter("oos.toString", NO_OFFSET);
         String retValue;
 
         retValue = super.toString();
-        exit(retValue);
+        if (trace != null) {
+            trace.show("returns", retValue, NO_OFFSET);
+            trace.exit("oos.toString", NO_OFFSET);
+        }
         return retValue;
     }
 
     public void writeUnshared(Object obj) throws IOException {
-        enter("oos.writeUnshared", obj);
+        if (trace != null) {
+            trace.enter("oos.writeUnshared", NO_OFFSET);
+            trace.show("obj", obj, NO_OFFSET);
+        }
         super.writeUnshared(obj);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeUnshared", NO_OFFSET);
     }
 
     protected final void writeObjectOverride(Object obj) throws IOException {
-        enter("oos.writeObjectOverride", obj);
+        if (trace != null) {
+            trace.enter("oos.writeObjectOverride", NO_OFFSET);
+            trace.show("obj", obj, NO_OFFSET);
+        }
         super.writeObjectOverride(obj);
-        exit();
+        if (trace != null)
+            trace.exit("oos.writeObjectOverride", NO_OFFSET);
     }
 
+    private static final long NO_OFFSET = -1;
+
+    private final TraceListener trace;
 }
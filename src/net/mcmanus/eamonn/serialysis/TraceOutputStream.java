@@ -41,45 +41,59 @@ package net.mcmanus.eamonn.serialysis;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
-import static net.mcmanus.eamonn.serialysis.Trace.enter;
-import static net.mcmanus.eamonn.serialysis.Trace.exit;
 
 class TraceOutputStream extends OutputStream {
 
     public TraceOutputStream(OutputStream os) {
+        this(os, null);
+    }
+
+    public TraceOutputStream(OutputStream os, TraceListener trace) {
         this.os = os;
+        this.trace = trace;
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
-        enter("os.write", Arrays.toString(b), off, len);
         os.write(b, off, len);
-        exit();
+        if (trace != null) {
+            offset += len;
+            trace.show("os.write", len, offset);
+        }
     }
 
     public void write(byte[] b) throws IOException {
-        enter("os.write", Arrays.toString(b));
         os.write(b);
-        exit();
+        if (trace != null) {
+            offset += b.length;
+            trace.show("os.write", b.length, offset);
+        }
     }
 
     public void write(int b) throws IOException {
-        enter("os.write", b);
         os.write(b);
-        exit();
+        if (trace != null) {
+            offset++;
+            trace.show("os.write byte", b & 255, offset);
+        }
     }
 
     public void flush() throws IOException {
-        enter("os.flush");
+        if (trace != null)
+            trace.enter("os.flush", offset);
         os.flush();
-        exit();
+        if (trace != null)
+            trace.exit("os.flush", offset);
     }
 
     public void close() throws IOException {
-        enter("os.close");
+        if (trace != null)
+            trace.enter("os.close", offset);
         os.close();
-        exit();
+        if (trace != null)
+            trace.exit("os.close", offset);
     }
 
     private final OutputStream os;
+    private final TraceListener trace;
+    private long offset;
 }
@@ -0,0 +1,191 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version.
+ */
+
+package net.mcmanus.eamonn.serialysis;
+
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+
+/*
+ * Decoder for the modified UTF-8 of DataInput.readUTF and of
+ * TC_LONGSTRING, which can be fed the encoded bytes in pieces.  The
+ * decoded string can't have more chars than the encoding has bytes, so
+ * the output array never needs to be bigger than the bytes fed so far.
+ * It grows with them rather than being allocated from the length in the
+ * stream, so a corrupt length can't make us allocate more than the
+ * stream actually contains.
+ * Runs of ASCII, which is most of what we see in class names, field names
+ * and XML payloads, are copied by a tight loop that doesn't look at
+ * anything else.
+ */
+class UTFDecoder {
+    UTFDecoder(long byteLength) throws StreamCorruptedException {
+        if (byteLength < 0 || byteLength > Integer.MAX_VALUE)
+            throw new StreamCorruptedException("Bad string length: " + byteLength);
+        this.byteLength = (int) byteLength;
+        this.chars = new char[Math.min(this.byteLength, INITIAL_CHARS)];
+    }
+
+    /*
+     * Decode as many complete characters as possible from the given bytes
+     * and return the number of bytes used.  That is less than len only if
+     * the bytes end in the middle of a character, in which case the
+     * caller should present the leftover bytes again with more after
+     * them.
+     */
+    int decode(byte[] b, int off, int len) throws UTFDataFormatException {
+        if (this.chars.length - this.n < len)
+            grow(this.n + len);
+        final char[] chars = this.chars;
+        int n = this.n;
+        int i = off;
+        final int end = off + len;
+        while (i < end) {
+            // ASCII fast path
+            while (i < end && b[i] >= 0)
+                chars[n++] = (char) b[i++];
+            if (i == end)
+                break;
+            int c = b[i] & 0xff;
+            if ((c & 0xe0) == 0xc0) {
+                // 110xxxxx 10xxxxxx, which covers all of Latin-1
+                if (i + 2 > end)
+                    break;
+                int c2 = b[i + 1];
+                if ((c2 & 0xc0) != 0x80)
+                    throw badUTF(i - off);
+                chars[n++] = (char) (((c & 0x1f) << 6) | (c2 & 0x3f));
+                i += 2;
+            } else if ((c & 0xf0) == 0xe0) {
+                // 1110xxxx 10xxxxxx 10xxxxxx
+                if (i + 3 > end)
+                    break;
+                int c2 = b[i + 1];
+                int c3 = b[i + 2];
+                if ((c2 & 0xc0) != 0x80 || (c3 & 0xc0) != 0x80)
+                    throw badUTF(i - off);
+                chars[n++] = (char) (((c & 0x0f) << 12) |
+                        ((c2 & 0x3f) << 6) | (c3 & 0x3f));
+                i += 3;
+            } else
+                throw badUTF(i - off);
+        }
+        this.n = n;
+        int used = i - off;
+        consumed += used;
+        return used;
+    }
+
+    private void grow(int needed) {
+        int size = (int) Math.min(byteLength, 2L * chars.length);
+        char[] newChars = new char[Math.max(size, needed)];
+        System.arraycopy(chars, 0, newChars, 0, n);
+        chars = newChars;
+    }
+
+    /*
+     * The number of bytes that have yet to be decoded.
+     */
+    long remaining() {
+        return byteLength - consumed;
+    }
+
+    String finish() throws UTFDataFormatException {
+        if (consumed != byteLength)
+            throw badUTF(0);
+        return new String(chars, 0, n);
+    }
+
+    static String decodeAll(byte[] b, int off, int len)
+            throws UTFDataFormatException, StreamCorruptedException {
+        UTFDecoder d = new UTFDecoder(len);
+        d.decode(b, off, len);
+        return d.finish();
+    }
+
+    /*
+     * Check that the given bytes are modified UTF-8 without decoding
+     * them, and return the number of bytes used, as for decode.  The
+     * bytes are at the given offset within the encoded string, which is
+     * only used in the exception message.
+     */
+    static int check(byte[] b, int off, int len, long stringOffset)
+            throws UTFDataFormatException {
+        int i = off;
+        final int end = off + len;
+        while (i < end) {
+            while (i < end && b[i] >= 0)
+                i++;
+            if (i == end)
+                break;
+            int c = b[i] & 0xff;
+            int size;
+            if ((c & 0xe0) == 0xc0)
+                size = 2;
+            else if ((c & 0xf0) == 0xe0)
+                size = 3;
+            else
+                throw badUTF(stringOffset + i - off);
+            if (i + size > end)
+                break;
+            for (int j = 1; j < size; j++) {
+                if ((b[i + j] & 0xc0) != 0x80)
+                    throw badUTF(stringOffset + i - off);
+            }
+            i += size;
+        }
+        return i - off;
+    }
+
+    private UTFDataFormatException badUTF(int offset) {
+        return badUTF((long) consumed + offset);
+    }
+
+    static UTFDataFormatException badUTF(long offset) {
+        return new UTFDataFormatException(
+                "malformed input around byte " + offset);
+    }
+
+    private static final int INITIAL_CHARS = 8192;
+
+    private final int byteLength;
+    private char[] chars;
+    private int n;
+    private int consumed;
+}
@@ -0,0 +1,147 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version. 
+ */
+
+package net.mcmanus.eamonn.serialysis.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.*;
+import net.mcmanus.eamonn.serialysis.SerialEventReader;
+import net.mcmanus.eamonn.serialysis.SerialEventReader.Event;
+import static net.mcmanus.eamonn.serialysis.SerialEventReader.Event.*;
+
+public class SerialEventReaderTest extends TestCase {
+
+    public SerialEventReaderTest(String testName) {
+        super(testName);
+    }
+
+    public void testObject() throws Exception {
+        Pair pair = new Pair(5, "noddy");
+        pair.next = pair;
+        SerialEventReader r = reader(pair);
+        assertEquals(START_OBJECT, r.next());
+        assertEquals(Pair.class.getName(), r.getClassName());
+        int handle = r.getHandle();
+        assertEquals(0, r.getDepth());
+        assertEquals(FIELD, r.next());
+        assertEquals("i", r.getFieldName());
+        assertEquals(1, r.getDepth());
+        assertEquals(PRIMITIVE, r.next());
+        assertEquals(5, r.getPrimitive());
+        assertEquals("int", r.getPrimitiveType());
+        assertEquals(FIELD, r.next());
+        assertEquals("next", r.getFieldName());
+        assertEquals(REFERENCE, r.next());
+        assertEquals(handle, r.getHandle());
+        assertEquals(FIELD, r.next());
+        assertEquals("s", r.getFieldName());
+        assertEquals(STRING, r.next());
+        assertEquals("noddy", r.getString());
+        assertEquals(END_OBJECT, r.next());
+        assertEquals(0, r.getDepth());
+        assertFalse(r.hasNext());
+    }
+
+    public void testArraysAndEnums() throws Exception {
+        Object[] objects = {new int[] {1, 2}, Thread.State.NEW, null};
+        List<Event> events = new ArrayList<Event>();
+        SerialEventReader r = reader((Object) objects);
+        while (r.hasNext())
+            events.add(r.next());
+        Event[] expected = {
+            START_ARRAY,
+            START_ARRAY, PRIMITIVE, PRIMITIVE, END_ARRAY,
+            START_OBJECT, FIELD, STRING, END_OBJECT,
+            NULL,
+            END_ARRAY,
+        };
+        assertEquals(java.util.Arrays.asList(expected), events);
+    }
+
+    public void testSkip() throws Exception {
+        Pair inner = new Pair(1, "inner");
+        inner.next = new int[100];
+        Pair outer = new Pair(2, "outer");
+        outer.next = inner;
+        SerialEventReader r = reader(outer, "after");
+        assertEquals(START_OBJECT, r.next());
+        assertEquals(FIELD, r.next());
+        assertEquals(PRIMITIVE, r.next());
+        assertEquals(FIELD, r.next());
+        assertEquals(START_OBJECT, r.next());
+        r.skip();
+        assertEquals(END_OBJECT, r.getEvent());
+        assertEquals(1, r.getDepth());
+        assertEquals(FIELD, r.next());
+        assertEquals(STRING, r.next());
+        assertEquals("outer", r.getString());
+        assertEquals(END_OBJECT, r.next());
+        assertEquals(STRING, r.next());
+        assertEquals("after", r.getString());
+        assertFalse(r.hasNext());
+    }
+
+    private static class Pair implements Serializable {
+        private static final long serialVersionUID = 4436424916469302349L;
+
+        Pair(int i, String s) {
+            this.i = i;
+            this.s = s;
+        }
+
+        int i;
+        Object next;
+        String s;
+    }
+
+    private static SerialEventReader reader(Object... xs) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : xs)
+            oout.writeObject(x);
+        oout.close();
+        return new SerialEventReader(new ByteArrayInputStream(bout.toByteArray()));
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *                ,
+ * Copyright 2007 Eamonn McManus.
+ *
+ *  This file is part of the Serialysis library.
+ *
+ *  Serialysis is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Serialysis is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Serialysis; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston,
+ *  MA 02110-1301  USA.
+ *
+ *  Linking this library statically or dynamically with other modules is
+ *  making a combined work based on this library.  Thus, the terms and
+ *  conditions of the GNU General Public License cover the whole
+ *  combination.
+ *
+ *  As a special exception, the copyright holder of this library gives you
+ *  permission to link this library with independent modules to produce an
+ *  executable, regardless of the license terms of these independent
+ *  modules, and to copy and distribute the resulting executable under
+ *  terms of your choice, provided that you also meet, for each linked
+ *  independent module, the terms and conditions of the license of that
+ *  module.  An independent module is a module which is not derived from
+ *  or based on this library.  If you modify this library, you may extend
+ *  this exception to your version of the library, but you are not
+ *  obligated to do so.  If you do not wish to do so, delete this
+ *  exception statement from your version. 
+ */
+
+package net.mcmanus.eamonn.serialysis.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.annotation.ElementType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import junit.framework.*;
+import net.mcmanus.eamonn.serialysis.SArray;
+import net.mcmanus.eamonn.serialysis.SEntity;
+import net.mcmanus.eamonn.serialysis.SObject;
+import net.mcmanus.eamonn.serialysis.SerialIndex;
+import net.mcmanus.eamonn.serialysis.SerialPatch;
+import net.mcmanus.eamonn.serialysis.SerialScan;
+
+public class SerialIndexTest extends TestCase {
+
+    public SerialIndexTest(String testName) {
+        super(testName);
+    }
+
+    public void testSameAsSerialScan() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(ElementType.FIELD);
+        list.add(new int[] {1, 2, 3});
+        list.add(new String[] {"a", "b"});
+        list.add(list);
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("list", list);
+        map.put("long", 5L);
+        byte[] bytes = serialize(true, list, map, "noddy", null, map);
+        String expected = scanAll(bytes, 5);
+
+        SerialIndex index = new SerialIndex(ByteBuffer.wrap(bytes));
+        assertEquals(5, index.getObjectCount());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < index.getObjectCount(); i++)
+            sb.append(index.getObject(i)).append("\n");
+        assertEquals(expected, sb.toString());
+
+        // Only the class descriptors of one epoch are kept, so those of
+        // the others may have to be decoded again.
+        index.setCacheSize(0);
+        System.gc();
+        String[] objects = new String[index.getObjectCount()];
+        for (int i = objects.length - 1; i >= 0; i--)
+            objects[i] = index.getObject(i) + "\n";
+        sb.setLength(0);
+        for (String s : objects)
+            sb.append(s);
+        assertEquals(expected, sb.toString());
+    }
+
+    public void testReferences() throws Exception {
+        Node a = new Node();
+        Node b = new Node();
+        a.next = b;
+        b.next = a;
+        byte[] bytes = serialize(false, a, b);
+        SerialIndex index = new SerialIndex(ByteBuffer.wrap(bytes));
+        SObject sa = (SObject) index.getObject(0);
+        SObject sb = (SObject) index.getObject(1);
+        assertSame(sb, sa.getField("next"));
+        assertSame(sa, sb.getField("next"));
+        assertSame(sa, index.getObject(0));
+        SArray array = (SArray) sa.getField("array");
+        assertEquals(2, array.getLength());
+        assertSame(sa, array.getValue()[0]);
+    }
+
+    public void testSavedIndex() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add(ElementType.FIELD);
+        list.add(new int[] {1, 2, 3});
+        list.add(new String[] {"a", "b"});
+        list.add(list);
+        Node a = new Node();
+        a.next = new Node();
+        byte[] bytes = serialize(true, list, "noddy", a, null, a);
+        String expected = scanAll(bytes, 5);
+
+        SerialIndex built = new SerialIndex(ByteBuffer.wrap(bytes));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        built.write(bout);
+        byte[] saved = bout.toByteArray();
+
+        // Load the index and read the objects in reverse order, so that
+        // class descriptors are decoded after the objects that use them.
+        byte[] savedAndMore = new byte[saved.length + 1];
+        System.arraycopy(saved, 0, savedAndMore, 0, saved.length);
+        savedAndMore[saved.length] = 99;
+        ByteArrayInputStream indexIn = new ByteArrayInputStream(savedAndMore);
+        SerialIndex index = new SerialIndex(ByteBuffer.wrap(bytes), indexIn);
+        // The bytes after the index are left in the stream.
+        assertEquals(99, indexIn.read());
+        assertEquals(-1, indexIn.read());
+        assertEquals(built.getObjectCount(), index.getObjectCount());
+        assertEquals(built.getHandleCount(), index.getHandleCount());
+        String[] objects = new String[index.getObjectCount()];
+        for (int i = objects.length - 1; i >= 0; i--)
+            objects[i] = index.getObject(i) + "\n";
+        StringBuilder sb = new StringBuilder();
+        for (String s : objects)
+            sb.append(s);
+        assertEquals(expected, sb.toString());
+
+        for (int h = 0; h < index.getHandleCount(); h++) {
+            assertEquals(built.getOwningObjectIndex(h),
+                    index.getOwningObjectIndex(h));
+            assertEquals(String.valueOf(built.getHandle(h)),
+                    String.valueOf(index.getHandle(h)));
+        }
+        assertEquals(0, index.getOwningObjectIndex(0));
+        assertEquals(4, index.getOwningObjectIndex(index.getHandleCount() - 1));
+
+        // Entities are shared while referenced, even with no cache.
+        index.setCacheSize(0);
+        SObject node = (SObject) index.getObject(2);
+        assertSame(node, index.getObject(2));
+        SEntity next = node.getField("next");
+        assertSame(next, ((SObject) index.getObject(2)).getField("next"));
+
+        // A truncated stream or index is rejected.
+        try {
+            ByteBuffer shorter = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+            new SerialIndex(shorter.slice(), new ByteArrayInputStream(saved));
+            fail("Loaded index for a shorter stream");
+        } catch (IOException e) {
+            // OK
+        }
+        try {
+            new SerialIndex(ByteBuffer.wrap(bytes),
+                    new ByteArrayInputStream(saved, 0, saved.length - 1));
+            fail("Loaded truncated index");
+        } catch (IOException e) {
+            // OK
+        }
+        try {
+            new SerialIndex(ByteBuffer.wrap(bytes),
+                    new ByteArrayInputStream(bytes));
+            fail("Loaded stream as index");
+        } catch (IOException e) {
+            // OK
+        }
+
+        // Handles saved in reverse order are sorted without quadratic work.
+        int n = 200000;
+        bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        dout.write(saved, 0, 14);  // magic, version and stream length
+        dout.writeInt(0);  // objects
+        dout.writeInt(0);  // epochs
+        dout.writeInt(n);
+        for (int h = 0; h < n; h++) {
+            long start = bytes.length - (long) h * bytes.length / n;
+            dout.writeLong(start);
+            dout.writeLong(start);
+        }
+        dout.writeInt(0);  // references
+        index = new SerialIndex(ByteBuffer.wrap(bytes),
+                new ByteArrayInputStream(bout.toByteArray()));
+        assertEquals(n, index.getHandleCount());
+    }
+
+    public void testPatch() throws Exception {
+        Item shared = new Item(1, "shared", null);
+        Item[] items = {
+            new Item(2, "two", new int[] {1, 2, 3}),
+            new Item(3, "three", new Item(4, "four", shared)),
+            new Item(5, "five", shared),
+            new Item(7, "seven", null),
+        };
+        Item after = new Item(6, "after", shared);
+        // The second reference to five has to be renumbered
+        byte[] bytes = serialize(false, shared, items, after, items[2], "end");
+        SerialIndex index = new SerialIndex(ByteBuffer.wrap(bytes));
+
+        // No changes copies the stream exactly
+        assertTrue(Arrays.equals(bytes, patch(new SerialPatch(index))));
+
+        SArray array = (SArray) index.getObject(1);
+        SObject two = (SObject) array.getValue()[0];
+        SObject three = (SObject) array.getValue()[1];
+        SObject five = (SObject) array.getValue()[2];
+        SObject sshared = (SObject) index.getObject(0);
+        SerialPatch patch = new SerialPatch(index);
+        patch.setField(two, "n", 20);
+        patch.setField(two, "name", "deux");
+        patch.setElement((SArray) two.getField("other"), 1, 22);
+        // Removes two handles, for "four" and its Item
+        patch.setField(three, "other", null);
+        patch.setField(five, "name", null);
+        // Written as a reference, which comes after the removed handles
+        patch.setField(five, "other", sshared);
+        patch.setElement(array, 3, null);
+        patch.setElement(array, 3, two);
+        Object[] read = deserialize(patch(patch), 5);
+
+        shared = (Item) read[0];
+        items = (Item[]) read[1];
+        assertEquals(20, items[0].n);
+        assertEquals("deux", items[0].name);
+        assertTrue(Arrays.equals(new int[] {1, 22, 3}, (int[]) items[0].other));
+        assertEquals("three", items[1].name);
+        assertNull(items[1].other);
+        assertNull(items[2].name);
+        assertSame(shared, items[2].other);
+        assertSame(items[0], items[3]);
+        after = (Item) read[2];
+        assertEquals("after", after.name);
+        assertSame(shared, after.other);
+        assertSame(items[2], read[3]);
+        assertEquals("end", read[4]);
+
+        // A long string, and a string with characters that need escaping
+        StringBuilder sb = new StringBuilder("\u0000\u00e9\u20ac");
+        while (sb.length() < 70000)
+            sb.append("abcdefghij");
+        patch = new SerialPatch(index);
+        patch.setField(two, "name", sb.toString());
+        patch.setField(five, "name", "\u0000\u00e9\u20ac");
+        items = (Item[]) deserialize(patch(patch), 2)[1];
+        assertEquals(sb.toString(), items[0].name);
+        assertEquals("\u0000\u00e9\u20ac", items[2].name);
+
+        // The first value of other is referred to by the second item
+        Item s2 = new Item(8, "s2", null);
+        byte[] bytes2 = serialize(false,
+                (Object) new Item[] {new Item(9, "x", s2), new Item(10, "y", s2)});
+        SerialIndex index2 = new SerialIndex(ByteBuffer.wrap(bytes2));
+        SArray array2 = (SArray) index2.getObject(0);
+        patch = new SerialPatch(index2);
+        patch.setField((SObject) array2.getValue()[0], "other", "gone");
+        assertNotWritten(patch);
+        // ...but it can be once the reference is also removed
+        patch.setField((SObject) array2.getValue()[1], "other", null);
+        items = (Item[]) deserialize(patch(patch), 1)[0];
+        assertEquals("gone", items[0].other);
+        assertNull(items[1].other);
+        // ...but a new reference can't be made to the removed value
+        patch.setField((SObject) array2.getValue()[1], "other",
+                ((SObject) array2.getValue()[0]).getField("other"));
+        assertNotWritten(patch);
+
+        // The first Integer defines the class descriptor of the second
+        byte[] bytes3 = serialize(false, (Object) new Object[] {1, 2});
+        SerialIndex index3 = new SerialIndex(ByteBuffer.wrap(bytes3));
+        patch = new SerialPatch(index3);
+        patch.setElement((SArray) index3.getObject(0), 0, "x");
+        assertNotWritten(patch);
+        patch.setElement((SArray) index3.getObject(0), 1, null);
+        assertTrue(Arrays.equals(new Object[] {"x", null},
+                (Object[]) deserialize(patch(patch), 1)[0]));
+
+        patch = new SerialPatch(index);
+        try {
+            patch.setField(two, "n", "x");
+            fail("Set int field to string");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        try {
+            patch.setField(two, "other", 5);
+            fail("Set reference field to Integer");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        try {
+            patch.setField(two, "nonexistent", 5);
+            fail("Set nonexistent field");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        try {
+            patch.setField(sshared, "other", five);
+            fail("Set field to later entity");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        patch.setField(three, "other", null);
+        try {
+            patch.setField((SObject) three.getField("other"), "n", 5);
+            fail("Changed value within a changed value");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    public void testPatchAfterReset() throws Exception {
+        Item a = new Item(1, "a", null);
+        Item b = new Item(2, "b", a);
+        // The resets separate a from b and b from the second b
+        byte[] bytes = serialize(true, a, b, b);
+        SerialIndex index = new SerialIndex(ByteBuffer.wrap(bytes));
+        SObject sb = (SObject) index.getObject(1);
+        SerialPatch patch = new SerialPatch(index);
+        patch.setField(sb, "name", null);
+        patch.setField((SObject) sb.getField("other"), "name", "c");
+        try {
+            patch.setField(sb, "other", index.getObject(0));
+            fail("Referred to entity before reset");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        Object[] read = deserialize(patch(patch), 3);
+        Item b1 = (Item) read[1];
+        Item b2 = (Item) read[2];
+        assertNull(b1.name);
+        assertEquals("c", ((Item) b1.other).name);
+        assertEquals("b", b2.name);
+        assertEquals("a", ((Item) b2.other).name);
+    }
+
+    private static void assertNotWritten(SerialPatch patch) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try {
+            patch.write(bout);
+            fail("Removed a value that is referred to");
+        } catch (IllegalStateException e) {
+            assertEquals(0, bout.size());
+        }
+    }
+
+    private static byte[] patch(SerialPatch patch) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        patch.write(bout);
+        return bout.toByteArray();
+    }
+
+    private static Object[] deserialize(byte[] bytes, int n) throws Exception {
+        ObjectInputStream oin =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+        Object[] objects = new Object[n];
+        for (int i = 0; i < n; i++)
+            objects[i] = oin.readObject();
+        assertEquals(-1, oin.read());
+        return objects;
+    }
+
+    private static class Item implements Serializable {
+        private static final long serialVersionUID = 4420826734402513212L;
+
+        Item(int n, String name, Object other) {
+            this.n = n;
+            this.name = name;
+            this.other = other;
+        }
+
+        int n;
+        String name;
+        Object other;
+    }
+
+    private static class Node implements Serializable {
+        private static final long serialVersionUID = -8244305312434939556L;
+
+        Node next;
+        Object[] array = {this, "x"};
+    }
+
+    private static byte[] serialize(boolean reset, Object... xs)
+            throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : xs) {
+            oout.writeObject(x);
+            if (reset)
+                oout.reset();
+        }
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static String scanAll(byte[] bytes, int n) throws IOException {
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            sb.append(ss.readObject()).append("\n");
+        return sb.toString();
+    }
+}
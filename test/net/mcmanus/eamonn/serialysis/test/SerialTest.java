@@ -41,18 +41,51 @@ package net.mcmanus.eamonn.serialysis.test;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.io.StringWriter;
+import java.io.UTFDataFormatException;
 import java.lang.annotation.ElementType;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
 import junit.framework.*;
+import net.mcmanus.eamonn.serialysis.ClassDescCache;
+import net.mcmanus.eamonn.serialysis.ClassHistogram;
+import net.mcmanus.eamonn.serialysis.IncrementalScan;
 import net.mcmanus.eamonn.serialysis.SArray;
+import net.mcmanus.eamonn.serialysis.SBlockData;
 import net.mcmanus.eamonn.serialysis.SObject;
 import net.mcmanus.eamonn.serialysis.SEntity;
 import net.mcmanus.eamonn.serialysis.SPrim;
+import net.mcmanus.eamonn.serialysis.SPrimitiveArray;
 import net.mcmanus.eamonn.serialysis.SString;
+import net.mcmanus.eamonn.serialysis.SerialDiff;
+import net.mcmanus.eamonn.serialysis.SerialLimitException;
+import net.mcmanus.eamonn.serialysis.SerialLimits;
+import net.mcmanus.eamonn.serialysis.SerialPath;
+import net.mcmanus.eamonn.serialysis.SerialRenderer;
 import net.mcmanus.eamonn.serialysis.SerialScan;
+import net.mcmanus.eamonn.serialysis.SerialScanHandler;
+import net.mcmanus.eamonn.serialysis.SerialScanMetrics;
+import net.mcmanus.eamonn.serialysis.SerialTraceBuffer;
+import net.mcmanus.eamonn.serialysis.SerialVisitor;
+import net.mcmanus.eamonn.serialysis.ValidationResult;
 
 public class SerialTest extends TestCase {
 
@@ -84,6 +117,38 @@ public class SerialTest extends TestCase {
         assertEquals(s, ss.getValue());
     }
 
+    public void testLongStringMultiByte() throws Exception {
+        // Lengths chosen so that characters straddle the edges of the
+        // internal buffer and of the 64K chunks of the old decoder.
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 70000; i++)
+            sb.append((char) (i * 31 % 0x1000)).append("\u00ff\u4e00\u0000");
+        String s = sb.toString();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(s);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        assertEquals(0x7c, bytes[4]);  // TC_LONGSTRING
+
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes), 0);
+        assertEquals(s, ((SString) ss.readObject()).getValue());
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes).flip();
+        ss = new SerialScan(buf);
+        assertEquals(s, ((SString) ss.readObject()).getValue());
+
+        // Cut the last character in half
+        bytes[bytes.length - 2] = (byte) 0xe4;
+        ss = new SerialScan(new ByteArrayInputStream(bytes));
+        try {
+            ss.readObject();
+            fail("Decoded malformed string");
+        } catch (UTFDataFormatException e) {
+            // OK
+        }
+    }
+
     public void testIntegerArray() throws Exception {
         SArray so = (SArray) scan(new Integer[] {1, 2, 3});
         SEntity[] a = so.getValue();
@@ -105,6 +170,36 @@ public class SerialTest extends TestCase {
         }
     }
 
+    public void testPrimitiveArrays() throws Exception {
+        byte[] bytes = new byte[100000];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) i;
+        SPrimitiveArray sbytes = (SPrimitiveArray) scan(bytes);
+        assertEquals("byte", sbytes.getComponentType());
+        assertEquals(bytes.length, sbytes.getLength());
+        assertTrue(Arrays.equals(bytes, sbytes.getBytes()));
+        assertEquals(bytes.length, sbytes.asByteBuffer().remaining());
+
+        long[] longs = {Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE};
+        SPrimitiveArray slongs = (SPrimitiveArray) scan(longs);
+        assertTrue(Arrays.equals(longs, slongs.getLongs()));
+        assertEquals(-1L, ((SPrim) slongs.getValue()[1]).getValue());
+
+        double[] doubles = {Math.PI, Double.NaN, -0.0};
+        SPrimitiveArray sdoubles = (SPrimitiveArray) scan(doubles);
+        assertTrue(Arrays.equals(doubles, sdoubles.getDoubles()));
+
+        boolean[] booleans = {true, false, true};
+        SPrimitiveArray sbooleans = (SPrimitiveArray) scan(booleans);
+        assertTrue(Arrays.equals(booleans, sbooleans.getBooleans()));
+        try {
+            sbooleans.getInts();
+            fail("getInts() on a boolean[]");
+        } catch (IllegalStateException e) {
+            // OK
+        }
+    }
+
     public void testStringArray() throws Exception {
         String[] strings = {"seacht", "ocht", "naoi"};
         SArray so = (SArray) scan(strings);
@@ -153,6 +248,19 @@ public class SerialTest extends TestCase {
         System.out.println(so);
     }
 
+    public void testPrimitiveFields() throws Exception {
+        SObject so = (SObject) scan(new Primitives());
+        assertEquals((byte) 1, ((SPrim) so.getField("b")).getValue());
+        assertEquals('c', ((SPrim) so.getField("c")).getValue());
+        assertEquals(2.5, ((SPrim) so.getField("d")).getValue());
+        assertEquals(3.5f, ((SPrim) so.getField("f")).getValue());
+        assertEquals(4, ((SPrim) so.getField("i")).getValue());
+        assertEquals(5L, ((SPrim) so.getField("j")).getValue());
+        assertEquals((short) 6, ((SPrim) so.getField("s")).getValue());
+        assertEquals(true, ((SPrim) so.getField("z")).getValue());
+        assertEquals("long", so.getField("j").toString().substring(6, 10));
+    }
+
     public void testMultipleObjects() throws Exception {
         Object[] objects = {5, new int[] {5}, new Integer[] {5}, "noddy"};
         SEntity[] sos = scanMultiple(objects);
@@ -160,12 +268,1184 @@ public class SerialTest extends TestCase {
         assertEquals("noddy", noddy.getValue());
     }
 
+    public void testBufferAndFile() throws Exception {
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("bytes", new byte[100000]);
+        map.put("ints", new int[] {1, 2, 3});
+        StringBuilder sb = new StringBuilder("\u00e9x\u4e00");
+        while (sb.length() < 100000)
+            sb.append(sb);
+        map.put("string", sb.toString());
+        Object[] objects = {map, "noddy", map};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        String expected = Arrays.toString(scanMultiple(objects));
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length + 1);
+        buf.put((byte) 0).put(bytes).position(1);
+        SerialScan ss = new SerialScan(buf);
+        assertEquals(expected, Arrays.toString(readAll(ss, objects.length)));
+        assertEquals(1, buf.position());
+
+        File file = File.createTempFile("serialtest", ".ser");
+        try {
+            FileOutputStream fout = new FileOutputStream(file);
+            fout.write(bytes);
+            fout.close();
+            ss = new SerialScan(file);
+            SEntity[] sos = readAll(ss, objects.length);
+            assertEquals(expected, Arrays.toString(sos));
+            SObject smap = (SObject) sos[0];
+            SBlockData sdata = (SBlockData) smap.getAnnotations().get(0);
+            assertEquals(sdata.getValue().length,
+                    sdata.asByteBuffer().remaining());
+            try {
+                ss.readObject();
+                fail("Read past end of file");
+            } catch (EOFException e) {
+                // OK
+            }
+            ss.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testReadAhead() throws Exception {
+        StringBuilder sb = new StringBuilder("\u00e9x\u4e00");
+        while (sb.length() < 20000)
+            sb.append(sb);
+        Object[] objects = {
+            sb.toString(), new long[5000], new byte[20000], "noddy",
+        };
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        bout.write(99);
+        byte[] bytes = bout.toByteArray();
+        String expected = Arrays.toString(scanMultiple(objects));
+
+        ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
+        SerialScan ss = new SerialScan(bin, 0);
+        assertEquals(expected, Arrays.toString(readAll(ss, objects.length)));
+        assertEquals(99, bin.read());
+        // The same without an explicit read-ahead
+        bin = new ByteArrayInputStream(bytes);
+        ss = new SerialScan(bin);
+        assertEquals(expected, Arrays.toString(readAll(ss, objects.length)));
+        assertEquals(99, bin.read());
+
+        // A stream that returns at most 3 bytes from each read
+        bin = new ByteArrayInputStream(bytes) {
+            public int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        ss = new SerialScan(bin, 100);
+        assertEquals(expected, Arrays.toString(readAll(ss, objects.length)));
+    }
+
+    public void testSymbols() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (int i = 0; i < 2; i++) {
+            Holder h = new Holder();
+            h.held = ElementType.FIELD;
+            oout.writeObject(h);
+            oout.reset();
+        }
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        SerialScan[] scans = {
+            new SerialScan(new ByteArrayInputStream(bytes)),
+            new SerialScan(ByteBuffer.wrap(bytes)),
+            new SerialScan(direct),
+        };
+        for (SerialScan ss : scans) {
+            SObject h1 = (SObject) ss.readObject();
+            SObject h2 = (SObject) ss.readObject();
+            assertNotSame(h1, h2);
+            assertSame(h1.getType(), h2.getType());
+            assertSame(h1.getFieldNames().iterator().next(),
+                    h2.getFieldNames().iterator().next());
+            SObject e1 = (SObject) h1.getField("held");
+            SObject e2 = (SObject) h2.getField("held");
+            assertSame(e1.getType(), e2.getType());
+            assertEquals(e1.toString(), e2.toString());
+        }
+    }
+
+    public void testClassDescCache() throws Exception {
+        Holder h = new Holder();
+        h.held = new Object[] {ElementType.FIELD, 5, new Primitives()};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(h);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        String expected = scan(h).toString();
+
+        ClassDescCache cache = new ClassDescCache(100);
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        ss.setClassDescCache(cache);
+        assertEquals(expected, ss.readObject().toString());
+        int n = cache.size();
+        assertTrue(n > 3);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(n, cache.getMissCount());
+
+        ss = new SerialScan(ByteBuffer.wrap(bytes));
+        ss.setClassDescCache(cache);
+        assertEquals(expected, ss.readObject().toString());
+        assertEquals(n, cache.getHitCount());
+        assertEquals(n, cache.size());
+
+        ClassDescCache small = new ClassDescCache(1);
+        ss = new SerialScan(new ByteArrayInputStream(bytes));
+        ss.setClassDescCache(small);
+        assertEquals(expected, ss.readObject().toString());
+        assertEquals(1, small.size());
+        assertEquals(n - 1, small.getEvictionCount());
+    }
+
+    public void testScanAll() throws Exception {
+        List<byte[]> payloads = new ArrayList<byte[]>();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            Holder h = new Holder();
+            h.held = (i % 2 == 0) ? new int[] {i} : Collections.singletonList(i);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
+            oout.writeObject(h);
+            oout.close();
+            payloads.add(bout.toByteArray());
+            expected.add(scan(h).toString());
+        }
+        List<SEntity> results = SerialScan.scanAll(payloads);
+        assertEquals(expected.toString(), results.toString());
+
+        // Unordered, with one corrupt payload
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (byte[] bytes : payloads)
+            buffers.add(ByteBuffer.wrap(bytes));
+        buffers.set(7, ByteBuffer.wrap(payloads.get(7), 0, 20));
+        final String[] got = new String[buffers.size()];
+        SerialScan.scanAll(buffers.iterator(), false, new SerialScanHandler() {
+            public void scanned(int index, SEntity entity) {
+                assertNull(got[index]);
+                got[index] = entity.toString();
+            }
+
+            public void failed(int index, IOException e) {
+                assertEquals(7, index);
+                got[index] = "failed";
+            }
+        });
+        expected.set(7, "failed");
+        assertEquals(expected, Arrays.asList(got));
+
+        // Limits apply to each payload
+        SerialLimits limits = new SerialLimits();
+        limits.setMaxArrayLength(0);
+        final List<Integer> overLimit = new ArrayList<Integer>();
+        SerialScan.scanAll(buffers.iterator(), true, new SerialScanHandler() {
+            public void scanned(int index, SEntity entity) {
+                assertTrue(index % 2 == 1);
+            }
+
+            public void failed(int index, IOException e) {
+                if (index != 7) {
+                    assertTrue(e instanceof SerialLimitException);
+                    overLimit.add(index);
+                }
+            }
+        }, limits);
+        assertEquals(100, overLimit.size());
+        try {
+            SerialScan.scanAll(payloads, limits);
+            fail("scanAll ignored limits");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof SerialLimitException);
+        }
+        assertEquals(expected.size(), SerialScan.scanAll(payloads, null).size());
+
+        File dir = File.createTempFile("serialtest", ".dir");
+        dir.delete();
+        dir.mkdir();
+        try {
+            for (int i = 0; i < 12; i++) {
+                FileOutputStream fout = new FileOutputStream(
+                        new File(dir, "payload" + (char) ('a' + i)));
+                fout.write(i == 7 ? new byte[] {1, 2, 3} : payloads.get(i));
+                fout.close();
+            }
+            final List<String> fromFiles = new ArrayList<String>();
+            SerialScan.scanAll(dir, true, new SerialScanHandler() {
+                public void scanned(int index, SEntity entity) {
+                    assertEquals(fromFiles.size(), index);
+                    fromFiles.add(entity.toString());
+                }
+
+                public void failed(int index, IOException e) {
+                    assertEquals(fromFiles.size(), index);
+                    assertTrue(e.getMessage(), e.getMessage().contains("payloadh"));
+                    fromFiles.add("failed");
+                }
+            });
+            assertEquals(expected.subList(0, 12), fromFiles);
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    public void testReadAllParallel() throws Exception {
+        List<Object> objects = new ArrayList<Object>();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        Holder first = new Holder();
+        first.held = "first";
+        oout.writeObject(first);
+        objects.add(first);
+        for (int i = 0; i < 60; i++) {
+            Holder h = new Holder();
+            // Before the first reset this refers back to the first object
+            h.held = (i % 7 == 0) ? first : new Object[] {"x" + (i / 5), h};
+            oout.writeObject(h);
+            objects.add(h);
+            if (i % 5 == 4) {
+                oout.reset();
+                first = new Holder();
+            }
+        }
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        String expected = Arrays.toString(scanMultiple(objects.toArray()));
+
+        SerialScan ss = new SerialScan(ByteBuffer.wrap(bytes));
+        SEntity s0 = ss.readObject();
+        List<SEntity> rest = ss.readAllParallel();
+        assertEquals(objects.size() - 1, rest.size());
+        assertSame(s0, ((SObject) rest.get(0)).getField("held"));
+        List<SEntity> all = new ArrayList<SEntity>();
+        all.add(s0);
+        all.addAll(rest);
+        assertEquals(expected, all.toString());
+        try {
+            ss.readObject();
+            fail("Read past end of stream");
+        } catch (EOFException e) {
+            // OK
+        }
+
+        // Every segment uses the scanner's cache, so each class descriptor
+        // after a reset is found there by the pass that finds the segments
+        // and again by the segment.
+        ClassDescCache cache = new ClassDescCache(100);
+        ss = new SerialScan(ByteBuffer.wrap(bytes));
+        ss.setClassDescCache(cache);
+        readAll(ss, objects.size());
+        long hits = cache.getHitCount();
+        assertTrue(hits > 0);
+        cache = new ClassDescCache(100);
+        ss = new SerialScan(ByteBuffer.wrap(bytes));
+        ss.setClassDescCache(cache);
+        assertEquals(expected, ss.readAllParallel().toString());
+        assertTrue(cache.getHitCount() >= 2 * hits);
+
+        try {
+            new SerialScan(new ByteArrayInputStream(bytes)).readAllParallel();
+            fail("Parallel scan of InputStream");
+        } catch (UnsupportedOperationException e) {
+            // OK
+        }
+    }
+
+    public void testValidate() throws Exception {
+        Holder h = new Holder();
+        h.held = new Object[] {"noddy", new int[] {1, 2}, ElementType.FIELD, h};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(h);
+        oout.writeObject("other");
+        oout.writeObject(new long[3]);
+        oout.reset();
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+
+        ValidationResult result =
+                SerialScan.validate(new ByteArrayInputStream(bytes));
+        assertEquals(3, result.getObjectCount());
+        assertEquals(bytes.length, result.getByteCount());
+        assertEquals(Holder.class.getName(), result.getClassName());
+
+        SerialScan ss = new SerialScan(ByteBuffer.wrap(bytes));
+        assertEquals(Holder.class.getName(), ss.skipObject());
+        assertEquals("java.lang.String", ss.skipObject());
+        assertEquals("[J", ss.skipObject());
+        try {
+            ss.skipObject();
+            fail("Skipped past end of stream");
+        } catch (EOFException e) {
+            // OK
+        }
+
+        byte[] truncated = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        byte[][] bad = {
+            truncated,
+            // TC_STRING with a malformed two-byte character
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x74, 0, 2, (byte) 0xc3, 0x28},
+            // TC_REFERENCE to a handle that doesn't exist
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x71, 0, 0x7e, 0, 5},
+            // Class descriptor for "A" with -1 fields
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x73, 0x72, 0, 1, 0x41,
+             0, 0, 0, 0, 0, 0, 0, 0, 2, (byte) 0xff, (byte) 0xff},
+            // Field of "A" whose type signature is null
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x73, 0x72, 0, 1, 0x41,
+             0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 1, 0x4c, 0, 1, 0x78, 0x70},
+            // Array of class "[L"
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x75, 0x72, 0, 2, 0x5b, 0x4c,
+             0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0x78, 0x70, 0, 0, 0, 0},
+            // Class descriptor of "A" that is its own superclass
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x73, 0x72, 0, 1, 0x41,
+             0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0x78, 0x71, 0, 0x7e, 0, 0},
+            // Class descriptor of "A" whose superclass is a string from
+            // its annotation
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x73, 0x72, 0, 1, 0x41,
+             0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0x74, 0, 1, 0x42, 0x78,
+             0x71, 0, 0x7e, 0, 1},
+            // Proxy class descriptor claiming 2^31-1 interfaces
+            {(byte) 0xac, (byte) 0xed, 0, 5, 0x73, 0x7d,
+             0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0, 1, 0x41},
+        };
+        for (byte[] b : bad) {
+            try {
+                SerialScan.validate(new ByteArrayInputStream(b));
+                fail("Validated bad stream: " + Arrays.toString(b));
+            } catch (IOException e) {
+                // OK
+            }
+        }
+
+        // Whatever is wrong with the stream, the only exception is an
+        // IOException
+        Random random = new Random(13);
+        for (int i = 0; i < 5000; i++) {
+            byte[] b = bytes.clone();
+            for (int j = random.nextInt(3); j >= 0; j--)
+                b[4 + random.nextInt(b.length - 4)] = (byte) random.nextInt(256);
+            try {
+                SerialScan.validate(new ByteArrayInputStream(b));
+            } catch (IOException e) {
+                // OK
+            }
+        }
+
+        SerialLimits limits = new SerialLimits();
+        limits.setMaxArrayLength(1);
+        try {
+            SerialScan.validate(new ByteArrayInputStream(bytes), limits);
+            fail("Limit not enforced by validate");
+        } catch (SerialLimitException e) {
+            assertEquals("maxArrayLength", e.getLimit());
+        }
+        limits.setMaxArrayLength(4);
+        assertEquals(3, SerialScan.validate(
+                new ByteArrayInputStream(bytes), limits).getObjectCount());
+    }
+
+    public void testRenderer() throws Exception {
+        Holder inner = new Holder();
+        inner.held = "a rather long string";
+        Holder outer = new Holder();
+        outer.held = new Object[] {inner, outer, 1, 2, 3};
+        SEntity so = scan(outer);
+
+        StringWriter sw = new StringWriter();
+        new SerialRenderer().render(so, sw);
+        assertEquals(so.toString(), sw.toString());
+
+        SerialRenderer renderer = new SerialRenderer();
+        renderer.setMaxDepth(3);
+        renderer.setMaxElements(2);
+        renderer.setMaxStringLength(8);
+        String holder = Holder.class.getName();
+        String expected =
+                "SObject(" + holder + "){\n" +
+                "  held = SArray([Ljava.lang.Object;){\n" +
+                "    SObject(" + holder + "){\n" +
+                "      held = SString(String){...}\n" +
+                "    }\n" +
+                "    SObject(" + holder + "){...}\n" +
+                "    ... (3 more)\n" +
+                "  }\n" +
+                "}";
+        assertEquals(expected, renderer.render(so));
+        renderer.setMaxDepth(4);
+        assertTrue(renderer.render(so).contains(
+                "held = SString(String){\"a rather\"... (20 chars)}"));
+
+        List<Integer> big = new ArrayList<Integer>();
+        for (int i = 0; i < 100000; i++)
+            big.add(i);
+        SEntity sbig = scan(big);
+        renderer.setMaxElements(10);
+        String s = renderer.render(sbig);
+        assertTrue(s, s.contains("... (99991 more)"));  // block data + 100000
+        assertTrue(s.length() < 2000);
+        assertTrue(sbig.toString().length() > 100000 * 20);
+    }
+
+    public void testIncrementalScan() throws Exception {
+        StringBuilder sb = new StringBuilder("\u00e9x\u4e00");
+        while (sb.length() < 30000)
+            sb.append(sb);
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("bytes", new byte[5000]);
+        map.put("string", sb.toString());
+        Holder h = new Holder();
+        h.held = map;
+        Object[] objects = {h, "noddy", map, null, new int[] {1, 2, 3}, h};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (int i = 0; i < objects.length; i++) {
+            oout.writeObject(objects[i]);
+            if (i == 3)
+                oout.reset();
+        }
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        String expected = Arrays.toString(scanMultiple(objects));
+
+        for (int chunk : new int[] {1, 7, 1000, bytes.length}) {
+            IncrementalScan scan = new IncrementalScan();
+            SerialScanMetrics metrics = new SerialScanMetrics();
+            scan.setMetrics(metrics);
+            List<SEntity> got = new ArrayList<SEntity>();
+            for (int i = 0; i < bytes.length; i += chunk) {
+                ByteBuffer buf = ByteBuffer.wrap(
+                        bytes, i, Math.min(chunk, bytes.length - i));
+                for (SEntity x = scan.feed(buf);
+                        x != IncrementalScan.NEED_MORE_INPUT; x = scan.next())
+                    got.add(x);
+                assertFalse(buf.hasRemaining());
+            }
+            assertEquals("chunk " + chunk, expected, got.toString());
+            assertEquals(0, scan.getBufferedByteCount());
+            // Each object is built once, however the input is divided.
+            assertEquals("chunk " + chunk, objects.length, metrics.getReadCount());
+            assertTrue(metrics.getBytesRead() < bytes.length);
+        }
+
+        // A big object made of many small ones is not read again from its
+        // start each time more of it arrives.
+        map = new HashMap<String, Object>();
+        for (int i = 0; i < 5000; i++)
+            map.put("k" + i, i);
+        bout = new ByteArrayOutputStream();
+        oout = new ObjectOutputStream(bout);
+        oout.writeObject(map);
+        oout.close();
+        bytes = bout.toByteArray();
+        IncrementalScan mapScan = new IncrementalScan();
+        SerialScanMetrics metrics = new SerialScanMetrics();
+        mapScan.setMetrics(metrics);
+        SEntity x = IncrementalScan.NEED_MORE_INPUT;
+        for (int i = 0; i < bytes.length; i++) {
+            x = mapScan.feed(ByteBuffer.wrap(bytes, i, 1));
+            assertTrue(i == bytes.length - 1 ||
+                    x == IncrementalScan.NEED_MORE_INPUT);
+        }
+        assertEquals(scan(map).toString(), x.toString());
+        assertEquals(1, metrics.getReadCount());
+        assertEquals(bytes.length - 4, metrics.getBytesRead());
+
+        IncrementalScan scan = new IncrementalScan();
+        try {
+            scan.feed(ByteBuffer.wrap(new byte[] {1, 2, 3, 4, 5}));
+            fail("Accepted bad stream header");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+    }
+
+    public void testMetrics() throws Exception {
+        Holder inner = new Holder();
+        inner.held = new Object[] {"noddy", new int[3]};
+        Holder h = new Holder();
+        h.held = inner;
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(h);
+        oout.reset();
+        oout.writeObject("more");
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+
+        SerialScanMetrics metrics = new SerialScanMetrics();
+        MBeanServer mbs = MBeanServerFactory.newMBeanServer();
+        ObjectName name = new ObjectName("serialysis:type=SerialScanMetrics");
+        mbs.registerMBean(metrics, name);
+        for (int i = 0; i < 2; i++) {
+            SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+            ss.setMetrics(metrics);
+            ss.readObject();
+            ss.readObject();
+        }
+        assertEquals(4L, mbs.getAttribute(name, "ReadCount"));
+        assertEquals(2L * (bytes.length - 4), mbs.getAttribute(name, "BytesRead"));
+        assertEquals(4L, mbs.getAttribute(name, "ObjectCount"));
+        assertEquals(4L, mbs.getAttribute(name, "ArrayCount"));
+        assertEquals(4L, mbs.getAttribute(name, "StringCount"));
+        assertEquals(2L, mbs.getAttribute(name, "ResetCount"));
+        assertEquals(4L, mbs.getAttribute(name, "MaxDepth"));
+        long[] histogram = (long[]) mbs.getAttribute(name, "LatencyHistogram");
+        long total = 0;
+        for (long n : histogram)
+            total += n;
+        assertEquals(4, total);
+        mbs.invoke(name, "reset", null, null);
+        assertEquals(0L, mbs.getAttribute(name, "ReadCount"));
+    }
+
+    public void testTrace() throws Exception {
+        Holder h = new Holder();
+        h.held = new Object[] {"noddy", 5};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(h);
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+
+        SerialTraceBuffer buffer = new SerialTraceBuffer(1000);
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        ss.setTraceListener(buffer);
+        ss.readObject();
+        StringBuilder sb = new StringBuilder();
+        buffer.dump(sb);
+        String dump = sb.toString();
+        assertTrue(dump, dump.startsWith("@4 readObject\n@5 | newObject\n"));
+        assertTrue(dump, dump.contains("className: " + Holder.class.getName()));
+        assertTrue(dump, dump.contains("size: 2\n"));
+        assertTrue(dump, dump.endsWith("readObject done\n"));
+        assertFalse(dump, dump.contains("FAILED"));
+
+        SerialTraceBuffer small = new SerialTraceBuffer(4);
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        sb.setLength(0);
+        small.setErrorOutput(sb);
+        ss = new SerialScan(new ByteArrayInputStream(truncated));
+        ss.setTraceListener(small);
+        try {
+            ss.readObject();
+            fail("Read truncated stream");
+        } catch (EOFException e) {
+            // OK
+        }
+        assertEquals(4, small.size());
+        assertTrue(small.getRecordedCount() > 4);
+        dump = sb.toString();
+        assertTrue(dump, dump.startsWith("... ("));
+        assertTrue(dump, dump.contains("FAILED: java.io.EOFException"));
+        assertEquals(dump, 1, dump.split("FAILED").length - 1);
+    }
+
+    public void testLimits() throws Exception {
+        // An int[1] whose length has been changed to 2^31-1, as a
+        // hostile stream might.  Without limits, reading it would try
+        // to allocate 8GB.
+        byte[] bytes = serialize(new int[] {5});
+        int sizeOffset = bytes.length - 8;
+        bytes[sizeOffset] = 0x7f;
+        for (int i = 1; i < 4; i++)
+            bytes[sizeOffset + i] = (byte) 0xff;
+        SerialLimits limits = new SerialLimits();
+        limits.setMaxArrayLength(1000);
+        assertLimit("maxArrayLength", bytes, limits);
+        // The same for an array of objects, which nothing reads ahead of
+        bytes = serialize((Object) new Object[0]);
+        bytes[bytes.length - 4] = 0x7f;
+        bytes[bytes.length - 1] = (byte) 0xf0;
+        for (int i = bytes.length - 3; i < bytes.length - 1; i++)
+            bytes[i] = (byte) 0xff;
+        limits.setMaxArrayLength(10);
+        assertLimit("maxArrayLength", bytes, limits);
+
+        Holder h = null;
+        for (int i = 0; i < 10; i++) {
+            Holder outer = new Holder();
+            outer.held = h;
+            h = outer;
+        }
+        bytes = serialize(h);
+        limits = new SerialLimits();
+        limits.setMaxDepth(5);
+        assertLimit("maxDepth", bytes, limits);
+        limits.setMaxDepth(11);
+        readWithLimits(bytes, limits);
+
+        String[] strings = new String[100];
+        for (int i = 0; i < strings.length; i++)
+            strings[i] = "s" + i;
+        bytes = serialize((Object) strings);
+        limits = new SerialLimits();
+        limits.setMaxHandles(50);
+        assertLimit("maxHandles", bytes, limits);
+
+        bytes = serialize((Object) new Object[] {new int[300], new int[300]});
+        limits = new SerialLimits();
+        limits.setMaxElements(500);
+        assertLimit("maxElements", bytes, limits);
+        limits = new SerialLimits();
+        limits.setMaxBytes(2000);
+        assertLimit("maxBytes", bytes, limits);
+        // The totals start again with each readObject.
+        bytes = serialize(new int[300], new int[300]);
+        limits.setMaxElements(500);
+        SerialScan ss = readWithLimits(bytes, limits);
+        assertEquals(300, ((SArray) ss.readObject()).getLength());
+
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'x');
+        bytes = serialize(new String(chars));
+        limits = new SerialLimits();
+        limits.setMaxStringLength(65535);
+        assertLimit("maxStringLength", bytes, limits);
+        limits.setMaxStringLength(70000);
+        readWithLimits(bytes, limits);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.write(new byte[5000]);
+        oout.close();
+        limits = new SerialLimits();
+        limits.setMaxBytes(1000);
+        assertLimit("maxBytes", bout.toByteArray(), limits);
+
+        // Objects after a reset, including those in parts of the stream
+        // that readAllParallel decodes on other threads
+        bout = new ByteArrayOutputStream();
+        oout = new ObjectOutputStream(bout);
+        oout.writeObject(new int[5]);
+        oout.reset();
+        oout.writeObject(new int[1000]);
+        oout.close();
+        bytes = bout.toByteArray();
+        limits = new SerialLimits();
+        limits.setMaxArrayLength(10);
+        ss = new SerialScan(ByteBuffer.wrap(bytes));
+        ss.setLimits(limits);
+        try {
+            ss.readAllParallel();
+            fail("Limit not enforced after reset");
+        } catch (SerialLimitException e) {
+            assertEquals("maxArrayLength", e.getLimit());
+        }
+        IncrementalScan is = new IncrementalScan();
+        is.setLimits(limits);
+        assertEquals(5, ((SArray) is.feed(ByteBuffer.wrap(bytes))).getLength());
+        try {
+            is.next();
+            fail("IncrementalScan did not enforce limit");
+        } catch (SerialLimitException e) {
+            assertEquals("maxArrayLength", e.getLimit());
+        }
+
+        Object[] many = new Object[10000];
+        for (int i = 0; i < many.length; i++)
+            many[i] = new Holder();
+        bytes = serialize((Object) many);
+        limits = new SerialLimits();
+        limits.setTimeout(1, TimeUnit.NANOSECONDS);
+        assertLimit("timeout", bytes, limits);
+        assertEquals(1, limits.getTimeout(TimeUnit.NANOSECONDS));
+
+        try {
+            limits.setMaxDepth(-1);
+            fail("Accepted negative limit");
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    /*
+     * Check that the limit is enforced by every way of reading the
+     * stream, including those that go through a SerialEventReader.
+     */
+    private static void assertLimit(String limit, byte[] bytes,
+            SerialLimits limits) throws IOException {
+        for (int way = 0; way < READ_WAYS; way++) {
+            try {
+                readWithLimits(bytes, limits, way);
+                fail("Limit not enforced by way " + way + ": " + limit);
+            } catch (SerialLimitException e) {
+                assertEquals(limit, e.getLimit());
+            }
+        }
+    }
+
+    private static final int READ_WAYS = 7;
+
+    private static void readWithLimits(byte[] bytes, SerialLimits limits,
+            int way) throws IOException {
+        SerialScan ss = new SerialScan(ByteBuffer.wrap(bytes));
+        ss.setLimits(limits);
+        switch (way) {
+            case 0:
+                ss.readObject(); break;
+            case 1:
+                ss.skipObject(); break;
+            case 2:
+                ss.accept(new SerialVisitor() {}); break;
+            case 3:
+                ss.histogram(5); break;
+            case 4:
+                SerialPath.compile("[*]").evaluate(ss); break;
+            case 5:
+                ss.readAllParallel(); break;
+            case 6:
+                try {
+                    ss.iterator().next();
+                } catch (IllegalStateException e) {
+                    throw (IOException) e.getCause();
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("way " + way);
+        }
+    }
+
+    private static SerialScan readWithLimits(byte[] bytes, SerialLimits limits)
+            throws IOException {
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        ss.setLimits(limits);
+        ss.readObject();
+        return ss;
+    }
+
+    public void testHistogram() throws Exception {
+        char[] chars = new char[2000];
+        Arrays.fill(chars, 'x');
+        String big = new String(chars);
+        Holder inner = new Holder();
+        inner.held = new int[100];
+        Holder h = new Holder();
+        h.held = new Object[] {"noddy", big, inner, inner, ElementType.FIELD};
+        byte[] bytes = serialize(h, new long[10]);
+
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        ClassHistogram histogram = ss.histogram(2);
+        assertEquals(bytes.length - 4, histogram.getByteCount());
+        long total = 0;
+        for (ClassHistogram.Row row : histogram.getRows())
+            total += row.getByteCount();
+        assertEquals(histogram.getByteCount(), total);
+
+        ClassHistogram.Row row = histogram.getRow(Holder.class.getName());
+        assertEquals(2, row.getInstanceCount());
+        row = histogram.getRow("[I");
+        assertEquals(1, row.getInstanceCount());
+        assertEquals(100, row.getElementCount());
+        // TC_ARRAY, the class descriptor, the length, and the elements
+        assertEquals(1 + 18 + 4 + 400, row.getByteCount());
+        assertEquals(1, histogram.getRow("[J").getInstanceCount());
+        assertEquals(1, histogram.getRow(ElementType.class.getName())
+                .getInstanceCount());
+        row = histogram.getRow("java.lang.String");
+        assertEquals(3, row.getInstanceCount());
+        assertEquals(big.length() + 3 + "noddy".length() + 3 +
+                "FIELD".length() + 3, row.getByteCount());
+        assertEquals("java.lang.String", histogram.getRows().get(0).getClassName());
+
+        List<ClassHistogram.Item> strings = histogram.getLargestStrings();
+        assertEquals(2, strings.size());
+        assertEquals(big.length(), strings.get(0).getLength());
+        assertEquals("noddy".length(), strings.get(1).getLength());
+        List<ClassHistogram.Item> arrays = histogram.getLargestArrays();
+        assertEquals(2, arrays.size());
+        assertEquals("[Ljava.lang.Object;", arrays.get(0).getClassName());
+        assertEquals(5, arrays.get(0).getLength());
+        assertEquals("[I", arrays.get(1).getClassName());
+        assertTrue(histogram.toString().contains("[Ljava.lang.Object;"));
+
+        assertEquals(0x74, bytes[(int) strings.get(0).getPosition()]);  // TC_STRING
+        assertEquals(0x75, bytes[(int) arrays.get(0).getPosition()]);  // TC_ARRAY
+    }
+
+    public void testPath() throws Exception {
+        Holder inner = new Holder();
+        inner.held = "b";
+        Holder h = new Holder();
+        h.held = new Object[] {"a", inner, new int[] {1, 2, 3}, ElementType.FIELD};
+        byte[] bytes = serialize(h);
+
+        assertEquals(Arrays.<Object>asList("b"),
+                evaluateValues("held[1].held", bytes));
+        List<SEntity> all = evaluate("held[*]", bytes);
+        assertEquals(4, all.size());
+        assertEquals("a", ((SString) all.get(0)).getValue());
+        assertEquals(Holder.class.getName(), ((SObject) all.get(1)).getType());
+        assertEquals(3, ((SPrimitiveArray) all.get(2)).getLength());
+        assertEquals(ElementType.class.getName(), ((SObject) all.get(3)).getType());
+        assertEquals(Arrays.<Object>asList(2),
+                evaluateValues("held[2][1]", bytes));
+        assertEquals(Arrays.<Object>asList("FIELD"),
+                evaluateValues("held[3].<name>", bytes));
+        assertEquals(Arrays.<Object>asList("a"),
+                evaluateValues("SObject[" + Holder.class.getName() + "].held[0]", bytes));
+        assertEquals(0, evaluate("SObject[java.lang.Integer].value", bytes).size());
+        assertEquals(2, evaluate("held[*].SObject[*]", bytes).size());
+        assertEquals(1, evaluate("held[*].SArray[[I]", bytes).size());
+        assertEquals(0, evaluate("held[2].held", bytes).size());
+        assertEquals(Arrays.<Object>asList("b"),
+                evaluateValues("*[1].*", bytes));
+
+        // Evaluating a path leaves the scanner ready for the next object.
+        Holder h2 = new Holder();
+        h2.held = new Object[] {"a"};
+        bytes = serialize(h, h2, "end");
+        SerialPath path = SerialPath.compile("held[0]");
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        assertEquals(Arrays.asList("a"), values(path.evaluate(ss)));
+        assertEquals(Arrays.asList("a"), values(path.evaluate(ss)));
+        assertEquals("end", ((SString) ss.readObject()).getValue());
+        try {
+            path.evaluate(ss);
+            fail("Evaluated past end of stream");
+        } catch (EOFException e) {
+            // OK
+        }
+
+        // A string that was skipped can still be referenced...
+        Holder ref = new Holder();
+        ref.held = "shared";
+        bytes = serialize((Object) new Object[] {"shared", ref});
+        assertEquals(Arrays.<Object>asList("shared"),
+                evaluateValues("[1].held", bytes));
+        // ...but an object that was skipped cannot.
+        ref.held = inner;
+        bytes = serialize((Object) new Object[] {inner, ref});
+        try {
+            evaluate("[1].held", bytes);
+            fail("Resolved reference to skipped object");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+
+        // An object that a step reached before selects the same values
+        // when that step reaches a reference to it...
+        Holder outer = new Holder();
+        outer.held = inner;
+        bytes = serialize((Object) new Object[] {outer, ref});
+        assertEquals(Arrays.<Object>asList("b", "b"),
+                evaluateValues("[*].held.held", bytes));
+        // ...but not when it was reached by a different step.
+        bytes = serialize((Object) new Object[] {inner, ref});
+        try {
+            evaluate("[*].held.held", bytes);
+            fail("Followed reference to object reached by another step");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+
+        ArrayList<Holder> list = new ArrayList<Holder>();
+        for (String s : new String[] {"x", "y", "z"}) {
+            Holder e = new Holder();
+            e.held = s;
+            list.add(e);
+        }
+        list.add(list.get(0));
+        bytes = serialize(list);
+        assertEquals(5, evaluate("<annotations>", bytes).size());
+        assertEquals(Arrays.<Object>asList("x", "y", "z", "x"),
+                evaluateValues("<annotations>[*].held", bytes));
+        assertEquals(Arrays.<Object>asList("x"),
+                evaluateValues("<annotations>[1].held", bytes));
+        try {
+            // The element that [4] refers to was skipped.
+            evaluate("<annotations>[4].held", bytes);
+            fail("Followed reference to skipped element");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+        assertEquals(Arrays.<Object>asList(4),
+                evaluateValues("size", bytes));
+
+        String[] bad = {"a..b", "a[", "a[x]", ".a", "a.", "a[-1]", "SObject[]", "a]"};
+        for (String b : bad) {
+            try {
+                SerialPath.compile(b);
+                fail("Compiled bad path " + b);
+            } catch (IllegalArgumentException e) {
+                // OK
+            }
+        }
+    }
+
+    public void testIterator() throws Exception {
+        Holder h = new Holder();
+        h.held = new Object[] {"x", h, ElementType.FIELD, new int[] {1, 2}};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(h);
+        oout.writeObject("x");
+        oout.reset();
+        oout.writeObject(null);
+        oout.writeObject(h);
+        oout.reset();
+        oout.close();
+        byte[] bytes = bout.toByteArray();
+        String expected = Arrays.toString(readAll(
+                new SerialScan(new ByteArrayInputStream(bytes)), 4));
+
+        List<SEntity> all = new ArrayList<SEntity>();
+        SerialScan ss = new SerialScan(new ByteArrayInputStream(bytes));
+        for (SEntity x : ss)
+            all.add(x);
+        assertEquals(expected, all.toString());
+        Iterator<SEntity> it = ss.iterator();
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail("Iterated past end of stream");
+        } catch (NoSuchElementException e) {
+            // OK
+        }
+
+        // Streams appended to one another, as in a log file
+        byte[] one = serialize(h, "y");
+        byte[] two = serialize("y", h);
+        byte[] both = new byte[one.length + two.length];
+        System.arraycopy(one, 0, both, 0, one.length);
+        System.arraycopy(two, 0, both, one.length, two.length);
+        all.clear();
+        for (SEntity x : new SerialScan(new ByteArrayInputStream(both)))
+            all.add(x);
+        assertEquals(4, all.size());
+        assertEquals("y", ((SString) all.get(2)).getValue());
+        assertEquals(all.get(0).toString(), all.get(3).toString());
+        assertEquals(all.toString(), new SerialScan(ByteBuffer.wrap(both))
+                .readAllParallel().toString());
+        ss = new SerialScan(new ByteArrayInputStream(both));
+        readAll(ss, 2);
+        try {
+            ss.readObject();
+            fail("readObject accepted appended stream");
+        } catch (StreamCorruptedException e) {
+            // OK
+        }
+
+        // A truncated stream stops the iteration with an exception
+        byte[] truncated = new byte[both.length - 1];
+        System.arraycopy(both, 0, truncated, 0, truncated.length);
+        it = new SerialScan(new ByteArrayInputStream(truncated)).iterator();
+        for (int i = 0; i < 3; i++)
+            it.next();
+        try {
+            it.hasNext();
+            fail("Truncated stream did not fail");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof EOFException);
+        }
+        assertFalse(it.hasNext());
+    }
+
+    private static List<SEntity> evaluate(String path, byte[] bytes)
+            throws IOException {
+        return SerialPath.compile(path).evaluate(new ByteArrayInputStream(bytes));
+    }
+
+    private static List<Object> evaluateValues(String path, byte[] bytes)
+            throws IOException {
+        return values(evaluate(path, bytes));
+    }
+
+    /* The values of strings and primitives, and the types of objects. */
+    private static List<Object> values(List<SEntity> entities) {
+        List<Object> values = new ArrayList<Object>();
+        for (SEntity e : entities) {
+            if (e instanceof SString)
+                values.add(((SString) e).getValue());
+            else if (e instanceof SPrim)
+                values.add(((SPrim) e).getValue());
+            else if (e instanceof SObject)
+                values.add(((SObject) e).getType());
+            else
+                values.add(e);
+        }
+        return values;
+    }
+
+    public void testVisitor() throws Exception {
+        Holder x = new Holder();
+        x.held = new Object[] {"noddy", 5, x};
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(x);
+        oout.writeObject(x);
+        oout.writeObject("after");
+        oout.close();
+        ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
+        SerialScan ss = new SerialScan(bin);
+        final StringBuilder sb = new StringBuilder();
+        SerialVisitor visitor = new SerialVisitor() {
+            public Action visitObject(String className, int handle) {
+                sb.append("{");
+                return className.equals(Integer.class.getName()) ?
+                    Action.SKIP : Action.CONTINUE;
+            }
+            public Action visitArray(String className, int length, int handle) {
+                sb.append("[").append(length);
+                return Action.CONTINUE;
+            }
+            public void visitString(String value, int handle) {
+                sb.append('"').append(value).append('"');
+            }
+            public void visitReference(int handle) {
+                sb.append("^");
+            }
+            public void visitEnd() {
+                sb.append("}");
+            }
+        };
+        ss.accept(visitor);
+        assertEquals("{[3\"noddy\"{^}}", sb.toString());
+        sb.setLength(0);
+        ss.accept(visitor);
+        assertEquals("^", sb.toString());
+        assertEquals("after", ((SString) ss.readObject()).getValue());
+        try {
+            ss.accept(visitor);
+            fail("accept at end of stream");
+        } catch (EOFException e) {
+            // OK
+        }
+
+        // Block data is passed as it is, and a long block is not allocated
+        // until its bytes arrive.
+        bout = new ByteArrayOutputStream();
+        oout = new ObjectOutputStream(bout);
+        oout.writeInt(0x12345678);
+        oout.close();
+        final List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+        visitor = new SerialVisitor() {
+            public void visitBlockData(ByteBuffer data) {
+                blocks.add(data);
+            }
+        };
+        new SerialScan(ByteBuffer.wrap(bout.toByteArray())).accept(visitor);
+        assertEquals(1, blocks.size());
+        assertEquals(0x12345678, blocks.get(0).getInt());
+        byte[] huge = {
+            (byte) 0xac, (byte) 0xed, 0, 5,
+            0x7a, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xf0, // TC_BLOCKDATALONG
+            1, 2, 3, 4,
+        };
+        try {
+            new SerialScan(new ByteArrayInputStream(huge)).accept(visitor);
+            fail("accept read truncated block data");
+        } catch (EOFException e) {
+            // OK
+        }
+    }
+
+    public void testDiff() throws Exception {
+        Holder a = new Holder();
+        a.held = new Object[] {"x", 1, new int[] {1, 2, 3}, a, new Primitives()};
+        Holder b = new Holder();
+        b.held = new Object[] {"x", 2, new int[] {1, 5, 3}, b, new Primitives(),
+                               "extra"};
+        byte[] aBytes = serialize(a, "same");
+        byte[] bBytes = serialize(b, "same", "more");
+        List<SerialDiff.Difference> diffs = SerialDiff.compare(
+                new ByteArrayInputStream(aBytes), new ByteArrayInputStream(bBytes));
+        assertEquals("[CHANGED [0] held[1].value, CHANGED [0] held[2][1], " +
+                     "ADDED [0] held[5], ADDED [2] ]", diffs.toString());
+        SerialDiff.Difference d = diffs.get(1);
+        assertEquals(2, ((SPrim) d.getOldValue()).getValue());
+        assertEquals(5, ((SPrim) d.getNewValue()).getValue());
+        assertNull(diffs.get(2).getOldValue());
+        assertEquals("extra", ((SString) diffs.get(2).getNewValue()).getValue());
+
+        // The other way round
+        diffs = SerialDiff.compare(
+                new ByteArrayInputStream(bBytes), new ByteArrayInputStream(aBytes));
+        assertEquals("[CHANGED [0] held[1].value, CHANGED [0] held[2][1], " +
+                     "REMOVED [0] held[5], REMOVED [2] ]", diffs.toString());
+
+        // Entities, and a stream compared with itself
+        assertEquals(diffs.subList(0, 3).toString(),
+                SerialDiff.compare(scan(b), scan(a)).toString());
+        assertTrue(SerialDiff.compare(scan(a), scan(a)).isEmpty());
+        assertTrue(SerialDiff.compare(new ByteArrayInputStream(aBytes),
+                new ByteArrayInputStream(aBytes)).isEmpty());
+
+        // A value of a different type
+        b.held = "x";
+        assertEquals("[CHANGED [0] held]",
+                SerialDiff.compare(scan(a), scan(b)).toString());
+
+        // Primitive arrays of different lengths
+        a.held = new long[] {1, 2};
+        b.held = new long[] {1, 3, 4};
+        diffs = SerialDiff.compare(scan(a), scan(b));
+        assertEquals("[CHANGED [0] held[1], ADDED [0] held[2]]",
+                diffs.toString());
+        assertEquals(2L, ((SPrim) diffs.get(0).getOldValue()).getValue());
+        assertEquals(3L, ((SPrim) diffs.get(0).getNewValue()).getValue());
+        assertEquals(4L, ((SPrim) diffs.get(1).getNewValue()).getValue());
+        diffs = SerialDiff.compare(scan(b), scan(a));
+        assertEquals("[CHANGED [0] held[1], REMOVED [0] held[2]]",
+                diffs.toString());
+        assertEquals(4L, ((SPrim) diffs.get(1).getOldValue()).getValue());
+
+        // Values whose hashCodes are the same
+        Primitives p = new Primitives();
+        Primitives q = new Primitives();
+        p.j = 0;
+        q.j = 0x100000001L;
+        p.d = 0.0;
+        q.d = Double.longBitsToDouble(0x100000001L);
+        assertEquals(Long.valueOf(p.j).hashCode(), Long.valueOf(q.j).hashCode());
+        assertEquals(Double.valueOf(p.d).hashCode(),
+                     Double.valueOf(q.d).hashCode());
+        a.held = new Object[] {p, p.j};
+        b.held = new Object[] {q, q.j};
+        assertEquals("[CHANGED [0] held[0].d, CHANGED [0] held[0].j, " +
+                     "CHANGED [0] held[1].value]",
+                SerialDiff.compare(scan(a), scan(b)).toString());
+    }
+
     private static class Holder implements Serializable {
         private static final long serialVersionUID = 6922605819566649377L;
 
         Object held;
     }
 
+    private static class Primitives implements Serializable {
+        private static final long serialVersionUID = -3506421716237263447L;
+
+        byte b = 1;
+        char c = 'c';
+        double d = 2.5;
+        float f = 3.5f;
+        int i = 4;
+        long j = 5L;
+        short s = 6;
+        boolean z = true;
+    }
+
     private SEntity scan(Object x) throws IOException {
         return scanMultiple(new Object[] {x})[0];
     }
@@ -178,10 +1458,24 @@ public class SerialTest extends TestCase {
         oout.close();
         ByteArrayInputStream bis = new ByteArrayInputStream(bout.toByteArray());
         SerialScan ss = new SerialScan(bis);
-        SEntity[] sos = new SEntity[xs.length];
-        for (int i = 0; i < xs.length; i++)
-            sos[i] = ss.readObject();
+        SEntity[] sos = readAll(ss, xs.length);
         assertTrue(bis.read() == -1);  // should have exhausted input stream
         return sos;
     }
+
+    private static byte[] serialize(Object... objects) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        for (Object x : objects)
+            oout.writeObject(x);
+        oout.close();
+        return bout.toByteArray();
+    }
+
+    private static SEntity[] readAll(SerialScan ss, int n) throws IOException {
+        SEntity[] sos = new SEntity[n];
+        for (int i = 0; i < n; i++)
+            sos[i] = ss.readObject();
+        return sos;
+    }
 }